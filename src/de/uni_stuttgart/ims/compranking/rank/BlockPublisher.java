@@ -0,0 +1,226 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline.Block;
+
+
+/**
+ * Publish the lines of one or more files as large blocks of complete lines
+ * (gzipped files are decompressed, see InputFiles).
+ *
+ * The files are read by an own I/O thread, in the given order.
+ * The thread reads at most one block more than the subscriber
+ * has requested and then waits, so a slow subscriber
+ * (e.g. tokenizing) does not make the blocks pile up in memory,
+ * and a fast one gets the next block without waiting for the disk.
+ *
+ * A publisher can have only one subscriber.
+ */
+public class BlockPublisher implements Flow.Publisher<Block> {
+
+
+   private List<String> filenames;
+   private int blockSize;
+   private boolean subscribed = false;
+
+
+
+   /**
+    * Publish the lines of these files in blocks of LinePipeline.blockSize.
+    *
+    * @param filenames
+    */
+   public BlockPublisher (String... filenames) {
+      this(Arrays.asList(filenames), LinePipeline.blockSize);
+   }
+
+
+   /**
+    * Publish the lines of these files in blocks of this size
+    * (blocks are larger if a line is longer).
+    *
+    * @param filenames
+    * @param blockSize
+    */
+   public BlockPublisher (List<String> filenames, int blockSize) {
+      this.filenames = filenames;
+      this.blockSize = blockSize;
+   }
+
+
+
+   /**
+    * Start reading for this subscriber.
+    */
+   public synchronized void subscribe (Flow.Subscriber<? super Block> subscriber) {
+      BlockSubscription subscription = new BlockSubscription(subscriber);
+      if (subscribed) {
+         subscription.cancel();
+         subscriber.onSubscribe(subscription);
+         subscriber.onError(new IllegalStateException("BlockPublisher can have only one subscriber"));
+         return;
+      }
+      subscribed = true;
+      subscriber.onSubscribe(subscription);
+      subscription.start();
+   }
+
+
+
+   /**
+    * The I/O thread, waits for demand of the subscriber.
+    */
+   private class BlockSubscription extends Thread implements Flow.Subscription {
+
+      private Flow.Subscriber<? super Block> subscriber;
+      private long demand = 0;
+      private boolean cancelled = false;
+      private Throwable error = null;
+
+      BlockSubscription (Flow.Subscriber<? super Block> subscriber) {
+         super("read " + filenames);
+         setDaemon(true);
+         this.subscriber = subscriber;
+      }
+
+      public synchronized void request (long n) {
+         if (n <= 0) {
+            error = new IllegalArgumentException("request " + n + " blocks");
+            cancelled = true;
+         } else {
+            demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+         }
+         notifyAll();
+      }
+
+      public synchronized void cancel () {
+         cancelled = true;
+         notifyAll();
+      }
+
+      /**
+       * Wait until the subscriber wants one more block.
+       *
+       * @return false if the subscription was cancelled
+       */
+      private synchronized boolean awaitDemand () throws InterruptedException {
+         while (demand == 0 && !cancelled)
+            wait();
+         if (cancelled)
+            return false;
+         demand--;
+         return true;
+      }
+
+      private synchronized boolean isCancelled () {
+         return cancelled;
+      }
+
+      public void run () {
+         try {
+            for (String filename : filenames) {
+               if (!readBlocks(filename, this))
+                  break;
+            }
+         } catch (Throwable e) {
+            synchronized (this) {
+               error = e;
+            }
+         }
+         Throwable e;
+         synchronized (this) {
+            e = error;
+         }
+         if (e != null)
+            subscriber.onError(e);
+         else if (!isCancelled())
+            subscriber.onComplete();
+      }
+   }
+
+
+
+   /**
+    * Read blocks of complete lines and publish them.
+    *
+    * @return false if the subscription was cancelled
+    */
+   private boolean readBlocks (String filename, BlockSubscription subscription) throws IOException, InterruptedException {
+
+      InputStream in = InputFiles.openInputStream(filename);
+      try {
+         byte[] buffer = new byte[blockSize];
+         int filled = 0;
+         int lineno = 0;
+         boolean eof = false;
+
+         while (!eof) {
+
+            // fill the buffer
+            while (filled < buffer.length) {
+               int read = in.read(buffer, filled, buffer.length - filled);
+               if (read < 0) {
+                  eof = true;
+                  break;
+               }
+               filled += read;
+            }
+
+            // cut after the last newline
+            int end = filled;
+            if (!eof) {
+               end = DelimiterScanner.lastNewline(buffer, 0, filled) + 1;
+               if (end == 0) { // line longer than the buffer
+                  buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                  continue;
+               }
+            }
+            if (end == 0)
+               break;
+
+            Block block = new Block();
+            block.filename = filename;
+            block.bytes = buffer;
+            block.length = end;
+            block.firstLineno = lineno;
+            block.numberLines = countLines(buffer, end);
+            lineno += block.numberLines;
+
+            if (!subscription.awaitDemand())
+               return false;
+            subscription.subscriber.onNext(block);
+
+            // rest of the last line goes into the next buffer
+            byte[] next = new byte[Math.max(blockSize, filled - end)];
+            System.arraycopy(buffer, end, next, 0, filled - end);
+            filled = filled - end;
+            buffer = next;
+         }
+      } finally {
+         in.close();
+      }
+      return true;
+   }
+
+
+   /**
+    * Number of lines, a last line without newline is counted as well.
+    */
+   private static int countLines (byte[] bytes, int length) {
+      int number = DelimiterScanner.countNewlines(bytes, 0, length);
+      if (length > 0 && bytes[length-1] != '\n')
+         number++;
+      return number;
+   }
+
+}
@@ -0,0 +1,291 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Progress of a long ranking run (e.g. JFSARanker, CSRLRanker,
+ * RankingBaselines watching a folder),
+ * so that a restarted run does not read everything again:
+ * - the settings of the run (a checkpoint is only used for the same settings),
+ * - the input files that are done (with size and modification time;
+ *   if one of them has changed, the counters of the checkpoint
+ *   contain the old file and the run has to start again, see getChangedFiles),
+ * - the statistics counters of the ranker,
+ * - the state of the opinion counters.
+ *
+ * The checkpoint is stored next to the output file (<output>.checkpoint)
+ * after an input file is done, at most every interval seconds.
+ * It is written to a temporary file and renamed,
+ * so a crash while writing keeps the last checkpoint.
+ *
+ * The parsers read the input files sequentially,
+ * so the progress is recorded per input file.
+ */
+public class Checkpoint {
+
+
+   /**
+    * Extension of checkpoint files.
+    */
+   public static final String EXTENSION = ".checkpoint";
+
+   private static final int MAGIC = 0x434B5054; // CKPT
+   private static final int VERSION = 2;
+
+   /**
+    * Minimum time between two checkpoints (seconds),
+    * 0 to write a checkpoint after every input file.
+    */
+   public static int interval = 300;
+
+
+
+   private String filename;
+   private String settings;
+
+   /**
+    * Input files that are done: filename -> {size, lastModified}.
+    */
+   private LinkedHashMap<String, long[]> doneFiles = new LinkedHashMap<String, long[]>();
+
+   private LinkedHashMap<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+
+   private long lastWritten = System.currentTimeMillis();
+
+
+
+   /**
+    * New checkpoint for the run that writes this output file.
+    *
+    * @param outputFilename
+    * @param settings description of the settings of the run
+    */
+   public Checkpoint (String outputFilename, String settings) {
+      this.filename = outputFilename + EXTENSION;
+      this.settings = settings;
+   }
+
+
+
+   // FILES
+
+   /**
+    * Read the checkpoint of the run that writes this output file
+    * and restore the state of the counters.
+    *
+    * @param outputFilename
+    * @param settings description of the settings of the run
+    * @param counters empty counters, filled from the checkpoint
+    *    (the same counters in the same order as when writing)
+    * @return the checkpoint, null if there is none or it has other settings
+    *    (then the counters must not be used)
+    */
+   public static Checkpoint read (String outputFilename, String settings, ProductOpinionCounter... counters) {
+
+      Checkpoint checkpoint = new Checkpoint(outputFilename, settings);
+      File file = new File(checkpoint.filename);
+      if (!file.exists())
+         return null;
+
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            return null;
+         if (!in.readUTF().equals(settings)) {
+            System.out.println("checkpoint " + file + " has other settings, ignore it");
+            return null;
+         }
+
+         int numberFiles = in.readInt();
+         for (int i=0; i<numberFiles; i++)
+            checkpoint.doneFiles.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+
+         int numberStatistics = in.readInt();
+         for (int i=0; i<numberStatistics; i++)
+            checkpoint.statistics.put(in.readUTF(), in.readInt());
+
+         if (in.readInt() != counters.length)
+            return null;
+         for (ProductOpinionCounter counter : counters)
+            counter.readState(in);
+
+      } catch (IOException e) {
+         System.err.println("ERROR while reading checkpoint " + file + ": " + e.getMessage());
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               // ignore
+            }
+         }
+      }
+
+      System.out.println("resume from checkpoint " + file + " (" + checkpoint.doneFiles.size() + " files done)");
+      return checkpoint;
+   }
+
+
+   /**
+    * Write the checkpoint with the state of these counters.
+    *
+    * @param counters
+    * @throws IOException
+    */
+   public void write (ProductOpinionCounter... counters) throws IOException {
+
+      File file = new File(filename);
+      File tmpFile = new File(filename + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeUTF(settings);
+
+         out.writeInt(doneFiles.size());
+         for (Map.Entry<String, long[]> entry : doneFiles.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeLong(entry.getValue()[1]);
+         }
+
+         out.writeInt(statistics.size());
+         for (Map.Entry<String, Integer> entry : statistics.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+         }
+
+         out.writeInt(counters.length);
+         for (ProductOpinionCounter counter : counters)
+            counter.writeState(out);
+      } finally {
+         out.close();
+      }
+
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      lastWritten = System.currentTimeMillis();
+   }
+
+
+   /**
+    * Write the checkpoint if the last one is older than interval seconds,
+    * print an error if this fails (the run goes on).
+    *
+    * @param force write even if the last checkpoint is recent
+    * @param counters
+    */
+   public void writeIfDue (boolean force, ProductOpinionCounter... counters) {
+      if (!force && System.currentTimeMillis() - lastWritten < interval * 1000L)
+         return;
+      try {
+         write(counters);
+      } catch (IOException e) {
+         System.err.println("ERROR while writing checkpoint " + filename + ": " + e.getMessage());
+      }
+   }
+
+
+
+   // PROGRESS
+
+   /**
+    * Was this input file done (and has not changed since)?
+    *
+    * @param inputFilename
+    */
+   public boolean isDone (String inputFilename) {
+      long[] done = doneFiles.get(inputFilename);
+      File file = new File(inputFilename);
+      return done != null && done[0] == file.length() && done[1] == file.lastModified();
+   }
+
+
+   /**
+    * The input files that were done, but have changed since
+    * (or do not exist any more).
+    * The counters of the checkpoint contain the old contents of these files,
+    * so reading them again would count them twice.
+    */
+   public List<String> getChangedFiles () {
+      List<String> changed = new ArrayList<String>();
+      for (String inputFilename : doneFiles.keySet()) {
+         if (!isDone(inputFilename))
+            changed.add(inputFilename);
+      }
+      return changed;
+   }
+
+
+   /**
+    * Was this input file done (maybe it has changed since)?
+    *
+    * @param inputFilename
+    */
+   public boolean contains (String inputFilename) {
+      return doneFiles.containsKey(inputFilename);
+   }
+
+
+   /**
+    * Mark this input file as done.
+    *
+    * @param inputFilename
+    */
+   public void setDone (String inputFilename) {
+      File file = new File(inputFilename);
+      doneFiles.put(inputFilename, new long[] {file.length(), file.lastModified()});
+   }
+
+
+   /**
+    * Value of this statistics counter, 0 if it is not in the checkpoint.
+    *
+    * @param name
+    */
+   public int getStatistic (String name) {
+      Integer value = statistics.get(name);
+      return (value == null) ? 0 : value;
+   }
+
+
+   /**
+    * Names of all statistics counters in the checkpoint.
+    */
+   public List<String> getStatisticNames () {
+      return new ArrayList<String>(statistics.keySet());
+   }
+
+
+   /**
+    * Set the value of this statistics counter.
+    *
+    * @param name
+    * @param value
+    */
+   public void setStatistic (String name, int value) {
+      statistics.put(name, value);
+   }
+
+}
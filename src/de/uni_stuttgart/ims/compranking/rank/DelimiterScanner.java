@@ -0,0 +1,213 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Find delimiter bytes (newline, tab, quote, backslash) in a buffer
+ * 8 bytes at a time: each word of 8 bytes is read as one long
+ * and all bytes are compared at once with bit operations
+ * ("SIMD within a register", works on every JVM).
+ * Bytes at the end of the range that do not fill a word
+ * are compared one by one.
+ *
+ * With useWords = false, all bytes are compared one by one
+ * (to compare the speed, see ReaderBenchmark).
+ */
+public class DelimiterScanner {
+
+
+   /**
+    * Compare 8 bytes at a time (otherwise byte by byte).
+    */
+   public static boolean useWords = true;
+
+
+   private static final long ONES = 0x0101010101010101L;
+   private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+   private static final long NEWLINES = ONES * '\n';
+   private static final long TABS = ONES * '\t';
+   private static final long QUOTES = ONES * '"';
+   private static final long BACKSLASHES = ONES * '\\';
+
+
+
+   /**
+    * Position of the first newline in buf[from..to), to if there is none.
+    *
+    * @param buf
+    * @param from
+    * @param to
+    */
+   public static int nextNewline (ByteBuffer buf, int from, int to) {
+      int i = from;
+      if (useWords) {
+         boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+         for (; i + 8 <= to; i += 8) {
+            long mask = zeroBytes(buf.getLong(i) ^ NEWLINES);
+            if (mask != 0)
+               return i + firstByte(mask, bigEndian);
+         }
+      }
+      for (; i < to; i++) {
+         if (buf.get(i) == '\n')
+            return i;
+      }
+      return to;
+   }
+
+
+   /**
+    * Position of the first newline in bytes[from..to), to if there is none.
+    *
+    * @param bytes
+    * @param from
+    * @param to
+    */
+   public static int nextNewline (byte[] bytes, int from, int to) {
+      return nextNewline(ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()), from, to);
+   }
+
+
+   /**
+    * Position of the last newline in bytes[from..to), -1 if there is none.
+    *
+    * @param bytes
+    * @param from
+    * @param to
+    */
+   public static int lastNewline (byte[] bytes, int from, int to) {
+      int i = to;
+      if (useWords) {
+         ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+         boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+         for (; i - 8 >= from; i -= 8) {
+            long mask = zeroBytes(buf.getLong(i - 8) ^ NEWLINES);
+            if (mask != 0)
+               return i - 8 + lastByte(mask, bigEndian);
+         }
+      }
+      for (i--; i >= from; i--) {
+         if (bytes[i] == '\n')
+            return i;
+      }
+      return -1;
+   }
+
+
+   /**
+    * Number of newlines in bytes[from..to).
+    *
+    * @param bytes
+    * @param from
+    * @param to
+    */
+   public static int countNewlines (byte[] bytes, int from, int to) {
+      int number = 0;
+      int i = from;
+      if (useWords) {
+         ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+         for (; i + 8 <= to; i += 8)
+            number += Long.bitCount(zeroBytes(buf.getLong(i) ^ NEWLINES));
+      }
+      for (; i < to; i++) {
+         if (bytes[i] == '\n')
+            number++;
+      }
+      return number;
+   }
+
+
+   /**
+    * Position of the first tab or quote in buf[from..to), to if there is none
+    * (candidates for the field delimiters of the Amazon files).
+    *
+    * @param buf
+    * @param from
+    * @param to
+    */
+   public static int nextTabOrQuote (ByteBuffer buf, int from, int to) {
+      int i = from;
+      if (useWords) {
+         boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+         for (; i + 8 <= to; i += 8) {
+            long word = buf.getLong(i);
+            long mask = zeroBytes(word ^ TABS) | zeroBytes(word ^ QUOTES);
+            if (mask != 0)
+               return i + firstByte(mask, bigEndian);
+         }
+      }
+      for (; i < to; i++) {
+         byte b = buf.get(i);
+         if (b == '\t' || b == '"')
+            return i;
+      }
+      return to;
+   }
+
+
+
+   /**
+    * Position of the first quote or backslash in buf[from..to), to if there is none
+    * (end of a JSON string or an escape in it).
+    *
+    * @param buf
+    * @param from
+    * @param to
+    */
+   public static int nextQuoteOrBackslash (ByteBuffer buf, int from, int to) {
+      int i = from;
+      if (useWords) {
+         boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+         for (; i + 8 <= to; i += 8) {
+            long word = buf.getLong(i);
+            long mask = zeroBytes(word ^ QUOTES) | zeroBytes(word ^ BACKSLASHES);
+            if (mask != 0)
+               return i + firstByte(mask, bigEndian);
+         }
+      }
+      for (; i < to; i++) {
+         byte b = buf.get(i);
+         if (b == '"' || b == '\\')
+            return i;
+      }
+      return to;
+   }
+
+
+
+   /**
+    * Mask with the highest bit set in every byte of the word that is 0
+    * (exact, no false positives from carries).
+    */
+   private static long zeroBytes (long word) {
+      return ~(((word & LOW7) + LOW7) | word | LOW7);
+   }
+
+   /**
+    * Index of the first byte in memory order with a bit in the mask.
+    */
+   private static int firstByte (long mask, boolean bigEndian) {
+      if (bigEndian)
+         return Long.numberOfLeadingZeros(mask) >>> 3;
+      return Long.numberOfTrailingZeros(mask) >>> 3;
+   }
+
+   /**
+    * Index of the last byte in memory order with a bit in the mask.
+    */
+   private static int lastByte (long mask, boolean bigEndian) {
+      if (bigEndian)
+         return 7 - (Long.numberOfTrailingZeros(mask) >>> 3);
+      return 7 - (Long.numberOfLeadingZeros(mask) >>> 3);
+   }
+
+}
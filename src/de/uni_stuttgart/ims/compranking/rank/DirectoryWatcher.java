@@ -0,0 +1,157 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watch a folder for new (or changed) input files.
+ *
+ * Files that are still being written (e.g. copied into the folder)
+ * produce more events, so the files are only returned
+ * when there were no events for settleTime milliseconds.
+ */
+public class DirectoryWatcher {
+
+
+   /**
+    * Time without changes in the folder before new files are returned
+    * (milliseconds).
+    */
+   public static int settleTime = 10000;
+
+
+   private File folder;
+   private FileFilter filter;
+   private WatchService watchService;
+
+
+
+   /**
+    * Watch this folder for files accepted by the filter.
+    *
+    * @param folder
+    * @param filter
+    * @throws IOException
+    */
+   public DirectoryWatcher (String folder, FileFilter filter) throws IOException {
+      this.folder = new File(folder).getAbsoluteFile();
+      this.filter = filter;
+      watchService = FileSystems.getDefault().newWatchService();
+      this.folder.toPath().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+   }
+
+
+
+   /**
+    * All files in the folder that are accepted by the filter
+    * (absolute paths, sorted by name).
+    */
+   public List<String> listFiles () {
+      List<String> filenames = new ArrayList<String>();
+      File[] files = folder.listFiles(filter);
+      if (files != null) {
+         for (File file : files)
+            filenames.add(file.getPath());
+      }
+      Collections.sort(filenames);
+      return filenames;
+   }
+
+
+   /**
+    * All files in the folder that are accepted by the filter,
+    * after none of them changed for settleTime milliseconds
+    * (files that were being written when the folder was listed,
+    * e.g. at a restart, are returned when they are complete).
+    *
+    * @return absolute paths, sorted by name
+    * @throws InterruptedException
+    */
+   public List<String> listSettledFiles () throws InterruptedException {
+      while (true) {
+         List<String> filenames = listFiles();
+         long lastModified = 0;
+         for (String filename : filenames)
+            lastModified = Math.max(lastModified, new File(filename).lastModified());
+         long wait = lastModified + settleTime - System.currentTimeMillis();
+         if (wait <= 0)
+            return filenames;
+         System.out.println("wait for files in " + folder + " to be complete");
+         Thread.sleep(wait);
+      }
+   }
+
+
+   /**
+    * Wait until files are created or changed in the folder
+    * and nothing changed for settleTime milliseconds.
+    *
+    * @return the new or changed files accepted by the filter
+    *    (absolute paths, sorted by name, may be empty)
+    * @throws IOException if the folder cannot be watched any more
+    * @throws InterruptedException
+    */
+   public List<String> waitForFiles () throws IOException, InterruptedException {
+
+      TreeSet<String> changed = new TreeSet<String>();
+
+      WatchKey key = watchService.take();
+      while (key != null) {
+         for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+               // events were lost, look at all files
+               changed.addAll(listFiles());
+               continue;
+            }
+            File file = folder.toPath().resolve((Path) event.context()).toFile();
+            if (filter.accept(file))
+               changed.add(file.getPath());
+         }
+         if (!key.reset())
+            throw new IOException("Folder " + folder + " cannot be watched any more");
+
+         key = watchService.poll(settleTime, TimeUnit.MILLISECONDS);
+      }
+
+      // files may have been removed again
+      List<String> filenames = new ArrayList<String>();
+      for (String filename : changed) {
+         if (new File(filename).isFile())
+            filenames.add(filename);
+      }
+      return filenames;
+   }
+
+
+   /**
+    * Stop watching.
+    */
+   public void close () {
+      try {
+         watchService.close();
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+}
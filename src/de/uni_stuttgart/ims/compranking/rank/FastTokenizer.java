@@ -0,0 +1,450 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.util.Arrays;
+
+import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
+
+
+/**
+ * Tokenizer with a few hand-written rules that are close to
+ * the Penn Treebank tokenization of TokenizerStanford
+ * for review texts, but much faster
+ * (no regular expressions, one pass over the characters,
+ * the token boundaries are kept in reused arrays).
+ *
+ * Rules:
+ * - tokens are separated by whitespace,
+ * - brackets, double quotes, , ; ! ? $ # % and the ellipsis character
+ *   are tokens of their own (a run of ! and ? is one token,
+ *   commas, dots and colons between digits stay in the number),
+ * - "..." (two or more dots) and "--" are one token,
+ * - a dot at the end of a word is a token of its own,
+ *   except for abbreviations (U.S., e.g., J., Mr., ...),
+ * - single quotes at the start or end of a word are tokens of their own,
+ * - clitics are split off: n't 's 'm 'd 're 've 'll
+ *   (also with the typographic apostrophe),
+ * - URLs and a few emoticons (:-) ;) :D ...) are one token.
+ *
+ * The tokens are the substrings of the text, quotes and brackets
+ * are not converted (`` '' -LRB- ...) as Stanford may do.
+ * TokenizerComparison shows how far the results differ
+ * from TokenizerStanford on real reviews.
+ *
+ * To count tokens or look at them without creating a String for every token
+ * (and an array of them), use countTokens or tokenize with a TokenVisitor;
+ * the static versions of these methods work with any tokenizer.
+ *
+ * Not thread-safe, use one tokenizer per thread.
+ */
+public class FastTokenizer implements Tokenizer {
+
+
+   private static final String[] EMOTICONS = new String[] {
+      ":)", ":-)", ":(", ":-(", ";)", ";-)", ":D", ":-D", ":P", ":-P", ":p", ":/", ":-/", ":'(", "<3", "^^", "^_^", ":o", ":O" };
+
+   private static final String[] ABBREVIATIONS = new String[] {
+      "mr", "mrs", "ms", "dr", "prof", "jr", "sr", "st", "vs", "etc", "inc", "ltd", "co", "corp", "approx", "no", "vol", "min", "max", "ft", "lbs", "oz" };
+
+
+
+   /**
+    * Start and end of every token of the last text (reused).
+    */
+   private int[] starts = new int[256];
+   private int[] ends = new int[256];
+   private int numberTokens = 0;
+
+   /**
+    * Tokens after the core of the current word (reused).
+    */
+   private int[] trailing = new int[16];
+
+   /**
+    * Characters of the last text given to a visitor (reused).
+    */
+   private char[] chars = new char[1024];
+
+
+
+   /**
+    * Gets the tokens of a text one after the other
+    * as spans of a char array.
+    */
+   public interface TokenVisitor {
+
+      /**
+       * Called for every token in order, the token is
+       * text[offset..offset+length).
+       * The array is reused for the next text, copy what you keep.
+       *
+       * @param text
+       * @param offset
+       * @param length
+       */
+      public void token (char[] text, int offset, int length);
+   }
+
+
+
+   /**
+    * Split the text into tokens.
+    */
+   public String[] tokenize (String text) {
+      split(text);
+      String[] tokens = new String[numberTokens];
+      for (int i=0; i<numberTokens; i++)
+         tokens[i] = text.substring(starts[i], ends[i]);
+      return tokens;
+   }
+
+
+   /**
+    * Number of tokens of the text
+    * (the same as tokenize(text).length, no Strings are created).
+    *
+    * @param text
+    */
+   public int countTokens (String text) {
+      return split(text);
+   }
+
+
+   /**
+    * Give all tokens of the text to the visitor
+    * (no Strings are created).
+    *
+    * @param text
+    * @param visitor
+    * @return number of tokens
+    */
+   public int tokenize (String text, TokenVisitor visitor) {
+      int number = split(text);
+      if (number == 0)
+         return 0;
+      if (chars.length < text.length())
+         chars = new char[Math.max(text.length(), chars.length * 2)];
+      text.getChars(0, text.length(), chars, 0);
+      for (int i=0; i<number; i++)
+         visitor.token(chars, starts[i], ends[i] - starts[i]);
+      return number;
+   }
+
+
+   public void close () {
+   }
+
+
+
+   // ANY TOKENIZER
+
+   /**
+    * Number of tokens of the text,
+    * without Strings if it is a FastTokenizer.
+    *
+    * @param tokenizer
+    * @param text
+    */
+   public static int countTokens (Tokenizer tokenizer, String text) {
+      if (tokenizer instanceof FastTokenizer)
+         return ((FastTokenizer) tokenizer).countTokens(text);
+      return tokenizer.tokenize(text).length;
+   }
+
+
+   /**
+    * Give all tokens of the text to the visitor,
+    * without Strings if it is a FastTokenizer.
+    *
+    * @param tokenizer
+    * @param text
+    * @param visitor
+    * @return number of tokens
+    */
+   public static int tokenize (Tokenizer tokenizer, String text, TokenVisitor visitor) {
+      if (tokenizer instanceof FastTokenizer)
+         return ((FastTokenizer) tokenizer).tokenize(text, visitor);
+      String[] tokens = tokenizer.tokenize(text);
+      for (String token : tokens) {
+         char[] chars = token.toCharArray();
+         visitor.token(chars, 0, chars.length);
+      }
+      return tokens.length;
+   }
+
+
+
+   // SPLITTING
+
+   /**
+    * Find the tokens of the text (see starts, ends).
+    *
+    * @param text
+    * @return number of tokens
+    */
+   int split (CharSequence text) {
+      numberTokens = 0;
+      if (text == null)
+         return 0;
+      int length = text.length();
+      int i = 0;
+      while (i < length) {
+         while (i < length && Character.isWhitespace(text.charAt(i)))
+            i++;
+         int start = i;
+         while (i < length && !Character.isWhitespace(text.charAt(i)))
+            i++;
+         if (i > start)
+            addChunk(text, start, i);
+      }
+      return numberTokens;
+   }
+
+
+   /**
+    * Tokens of one chunk without whitespace.
+    */
+   private void addChunk (CharSequence text, int start, int end) {
+
+      if (isOneOf(text, start, end, EMOTICONS, false)) {
+         add(start, end);
+         return;
+      }
+
+      // URLs: everything but punctuation at the end
+      if (startsWith(text, start, end, "http://") || startsWith(text, start, end, "https://") || startsWith(text, start, end, "www.")) {
+         int coreEnd = end;
+         while (coreEnd > start && ".,;:!?)\"'".indexOf(text.charAt(coreEnd-1)) >= 0)
+            coreEnd--;
+         add(start, coreEnd);
+         addPunctuation(text, coreEnd, end);
+         return;
+      }
+
+      // punctuation that is always split
+      int wordStart = start;
+      int i = start;
+      while (i < end) {
+         char c = text.charAt(i);
+         int runEnd = i;
+         if (c == '!' || c == '?') {
+            while (runEnd < end && (text.charAt(runEnd) == '!' || text.charAt(runEnd) == '?'))
+               runEnd++;
+         } else if (c == '.' && i+1 < end && text.charAt(i+1) == '.') {
+            while (runEnd < end && text.charAt(runEnd) == '.')
+               runEnd++;
+         } else if (c == '-' && i+1 < end && text.charAt(i+1) == '-') {
+            while (runEnd < end && text.charAt(runEnd) == '-')
+               runEnd++;
+         } else if ((c == ',' || c == ':') && isDigit(text, i-1, start, end) && isDigit(text, i+1, start, end)) {
+            // 1,000 3:30
+         } else if (isAlwaysSplit(c)) {
+            runEnd = i+1;
+         }
+         if (runEnd > i) {
+            if (i > wordStart)
+               addWord(text, wordStart, i);
+            add(i, runEnd);
+            wordStart = runEnd;
+            i = runEnd;
+         } else {
+            i++;
+         }
+      }
+      if (end > wordStart)
+         addWord(text, wordStart, end);
+   }
+
+
+   /**
+    * Tokens of a word without punctuation that is always split:
+    * quotes at start and end, dot at the end, clitics.
+    */
+   private void addWord (CharSequence text, int start, int end) {
+
+      if (isClitic(text, start, end)) {
+         add(start, end);
+         return;
+      }
+
+      // quotes at the start
+      while (start < end && isQuote(text.charAt(start)) && !isClitic(text, start, end)) {
+         add(start, start+1);
+         start++;
+      }
+
+      // quotes and dot at the end (kept in reverse order)
+      int numberTrailing = 0;
+      boolean dot = false;
+      while (end > start) {
+         char c = text.charAt(end-1);
+         if (isQuote(c) && !isClitic(text, start, end)) {
+            numberTrailing = push(numberTrailing, end-1);
+            end--;
+         } else if (c == '.' && !dot && end-1 > start && !isAbbreviation(text, start, end-1)) {
+            numberTrailing = push(numberTrailing, end-1);
+            end--;
+            dot = true;
+         } else {
+            break;
+         }
+      }
+
+      // clitics
+      int cliticStart = end;
+      if (end - start > 3 && endsWithNegation(text, start, end))
+         cliticStart = end - 3;
+      else if (end - start > 2 && isClitic(text, end-2, end))
+         cliticStart = end - 2;
+      else if (end - start > 3 && isClitic(text, end-3, end))
+         cliticStart = end - 3;
+
+      if (cliticStart > start)
+         add(start, cliticStart);
+      if (end > cliticStart)
+         add(cliticStart, end);
+      for (int t=numberTrailing-1; t>=0; t--)
+         add(trailing[t], trailing[t]+1);
+   }
+
+
+   /**
+    * Split punctuation at the end of a URL into single tokens.
+    */
+   private void addPunctuation (CharSequence text, int start, int end) {
+      for (int i=start; i<end; i++)
+         add(i, i+1);
+   }
+
+
+   private void add (int start, int end) {
+      if (numberTokens == starts.length) {
+         starts = Arrays.copyOf(starts, numberTokens * 2);
+         ends = Arrays.copyOf(ends, numberTokens * 2);
+      }
+      starts[numberTokens] = start;
+      ends[numberTokens] = end;
+      numberTokens++;
+   }
+
+
+   private int push (int numberTrailing, int position) {
+      if (numberTrailing == trailing.length)
+         trailing = Arrays.copyOf(trailing, numberTrailing * 2);
+      trailing[numberTrailing] = position;
+      return numberTrailing + 1;
+   }
+
+
+
+   // CHARACTER CLASSES
+
+   private static boolean isAlwaysSplit (char c) {
+      switch (c) {
+      case '(': case ')': case '[': case ']': case '{': case '}':
+      case '"': case '`': case ',': case ';': case ':':
+      case '$': case '#': case '%':
+      case '\u201C': case '\u201D': case '\u2026':
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   private static boolean isQuote (char c) {
+      return c == '\'' || c == '\u2018' || c == '\u2019';
+   }
+
+   /**
+    * Is there a digit at i (and is i in [start, end))?
+    */
+   private static boolean isDigit (CharSequence text, int i, int start, int end) {
+      return i >= start && i < end && Character.isDigit(text.charAt(i));
+   }
+
+
+   /**
+    * Is text[start..end) a clitic ('s 'm 'd 're 've 'll n't)?
+    */
+   private static boolean isClitic (CharSequence text, int start, int end) {
+      int length = end - start;
+      if (length == 3 && endsWithNegation(text, start, end))
+         return true;
+      if (length < 2 || length > 3 || !isQuote(text.charAt(start)))
+         return false;
+      char c1 = Character.toLowerCase(text.charAt(start+1));
+      if (length == 2)
+         return c1 == 's' || c1 == 'm' || c1 == 'd';
+      char c2 = Character.toLowerCase(text.charAt(start+2));
+      return (c1 == 'r' && c2 == 'e') || (c1 == 'v' && c2 == 'e') || (c1 == 'l' && c2 == 'l');
+   }
+
+   /**
+    * Does text[start..end) end with n't?
+    */
+   private static boolean endsWithNegation (CharSequence text, int start, int end) {
+      return end - start >= 3
+            && Character.toLowerCase(text.charAt(end-3)) == 'n'
+            && isQuote(text.charAt(end-2))
+            && Character.toLowerCase(text.charAt(end-1)) == 't';
+   }
+
+
+   /**
+    * Is text[start..end) (without the dot at the end) an abbreviation?
+    * A single letter, letters with dots (U.S, e.g, Ph.D)
+    * or a known abbreviation (Mr, etc, ...).
+    */
+   private static boolean isAbbreviation (CharSequence text, int start, int end) {
+      if (end - start == 1)
+         return Character.isLetter(text.charAt(start));
+      if (isOneOf(text, start, end, ABBREVIATIONS, true))
+         return true;
+      boolean hasDot = false;
+      int segment = 0;
+      for (int i=start; i<end; i++) {
+         char c = text.charAt(i);
+         if (c == '.') {
+            hasDot = true;
+            segment = 0;
+         } else if (Character.isLetter(c) && ++segment <= 3) {
+            continue;
+         } else {
+            return false;
+         }
+      }
+      return hasDot;
+   }
+
+
+   private static boolean isOneOf (CharSequence text, int start, int end, String[] words, boolean ignoreCase) {
+      for (String word : words) {
+         if (word.length() != end - start)
+            continue;
+         int i = 0;
+         while (i < word.length() && (ignoreCase
+               ? Character.toLowerCase(text.charAt(start+i)) == word.charAt(i)
+               : text.charAt(start+i) == word.charAt(i)))
+            i++;
+         if (i == word.length())
+            return true;
+      }
+      return false;
+   }
+
+   private static boolean startsWith (CharSequence text, int start, int end, String prefix) {
+      if (end - start < prefix.length())
+         return false;
+      for (int i=0; i<prefix.length(); i++) {
+         if (Character.toLowerCase(text.charAt(start+i)) != prefix.charAt(i))
+            return false;
+      }
+      return true;
+   }
+
+}
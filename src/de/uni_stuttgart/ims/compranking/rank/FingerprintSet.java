@@ -0,0 +1,301 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Set of 64-bit fingerprints (e.g. of reviews, to find reviews
+ * that are contained in several input files).
+ *
+ * The fingerprints are stored outside of the Java heap
+ * (direct buffers, open addressing with linear probing),
+ * 8 bytes per slot and no objects per fingerprint,
+ * so a set of hundreds of millions of reviews does not
+ * need a large heap and does not slow down the garbage collector.
+ *
+ * The table doubles when it is 7/8 full, so it needs between
+ * about 9 and 18 bytes per fingerprint (about 9 if it is created
+ * with the expected number of fingerprints).
+ * The slot of a fingerprint is given by its highest bits,
+ * so when the table grows, the fingerprints of one segment
+ * go to two segments of the new table: the new segments are
+ * allocated when they are first used and every old segment
+ * is freed as soon as it is copied (at most about the size
+ * of the new table is allocated while it grows).
+ *
+ * Two different inputs have the same fingerprint with a
+ * probability of about n^2 / 2^65 (about 1 in 4000
+ * for 100 million reviews), the second one is then dropped too.
+ *
+ * The set can be used by several threads.
+ */
+public class FingerprintSet {
+
+
+   /**
+    * Slots in one direct buffer (8 MB).
+    */
+   private static final int SEGMENTBITS = 20;
+   private static final long SEGMENTSLOTS = 1L << SEGMENTBITS;
+
+   private static final int MINBITS = 10;
+
+   private static final long EMPTY = 0;
+
+   private static final long PRIME1 = 0x9E3779B185EBCA87L;
+   private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+
+   private ByteBuffer[] segments;
+   private long capacity;
+   private int bits;
+   private long size = 0;
+   private long numberDuplicates = 0;
+
+
+
+   /**
+    * Empty set.
+    */
+   public FingerprintSet () {
+      this(1 << 20);
+   }
+
+
+   /**
+    * Empty set with space for this number of fingerprints
+    * (before the table grows).
+    *
+    * @param expectedSize
+    */
+   public FingerprintSet (long expectedSize) {
+      int bits = MINBITS;
+      while ((1L << bits) / 8 * 7 < expectedSize)
+         bits++;
+      allocate(bits);
+   }
+
+
+
+   /**
+    * Add this fingerprint.
+    *
+    * @param fingerprint
+    * @return false if the fingerprint was already in the set
+    */
+   public synchronized boolean add (long fingerprint) {
+      if (fingerprint == EMPTY)
+         fingerprint = 1;
+      long mask = capacity - 1;
+      long i = slot(fingerprint);
+      long value;
+      while ((value = get(i)) != EMPTY) {
+         if (value == fingerprint) {
+            numberDuplicates++;
+            return false;
+         }
+         i = (i + 1) & mask;
+      }
+      put(i, fingerprint);
+      size++;
+      if (size > capacity / 8 * 7)
+         grow();
+      return true;
+   }
+
+
+   /**
+    * Number of different fingerprints.
+    */
+   public synchronized long size () {
+      return size;
+   }
+
+
+   /**
+    * Number of calls of add with a fingerprint that was already in the set.
+    */
+   public synchronized long getNumberDuplicates () {
+      return numberDuplicates;
+   }
+
+
+   /**
+    * Size of the table (bytes outside of the heap).
+    */
+   public synchronized long getMemorySize () {
+      long memory = 0;
+      for (ByteBuffer segment : segments) {
+         if (segment != null)
+            memory += segment.capacity();
+      }
+      return memory;
+   }
+
+
+
+   // HASHING
+
+   /**
+    * Start value for hash.
+    */
+   public static final long SEED = 0x27D4EB2F165667C5L;
+
+
+   /**
+    * Continue the 64-bit hash h with the bytes buf[start..end).
+    * Several fields are hashed by calling this for each field
+    * with the result of the previous field
+    * (the length is included, so "ab" + "c" differs from "a" + "bc").
+    *
+    * The bytes are read 8 at a time,
+    * the result does not depend on the byte order of the buffer.
+    *
+    * @param h
+    * @param buf
+    * @param start
+    * @param end
+    * @return
+    */
+   public static long hash (long h, ByteBuffer buf, int start, int end) {
+      boolean swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+      int i = start;
+      for (; i + 8 <= end; i += 8) {
+         long word = buf.getLong(i);
+         if (swap)
+            word = Long.reverseBytes(word);
+         h = Long.rotateLeft(h ^ mix(word), 27) * PRIME1 + PRIME2;
+      }
+      long tail = 0;
+      for (int shift = 0; i < end; i++, shift += 8)
+         tail |= (buf.get(i) & 0xffL) << shift;
+      h = Long.rotateLeft(h ^ mix(tail), 27) * PRIME1 + PRIME2;
+      return finish(h ^ (end - start));
+   }
+
+
+   private static long mix (long word) {
+      return Long.rotateLeft(word * PRIME2, 31) * PRIME1;
+   }
+
+   private static long finish (long h) {
+      h ^= h >>> 33;
+      h *= PRIME2;
+      h ^= h >>> 29;
+      h *= PRIME1;
+      h ^= h >>> 32;
+      return h;
+   }
+
+
+
+   // TABLE
+
+   /**
+    * Table with 2^bits slots, the segments are allocated when they are used.
+    */
+   private void allocate (int bits) {
+      this.bits = bits;
+      capacity = 1L << bits;
+      segments = new ByteBuffer[(int) ((capacity + SEGMENTSLOTS - 1) >>> SEGMENTBITS)];
+   }
+
+   private long get (long i) {
+      ByteBuffer segment = segments[(int) (i >>> SEGMENTBITS)];
+      if (segment == null)
+         return EMPTY;
+      return segment.getLong((int) (i & (SEGMENTSLOTS - 1)) << 3);
+   }
+
+   private void put (long i, long fingerprint) {
+      int s = (int) (i >>> SEGMENTBITS);
+      if (segments[s] == null) {
+         // direct buffers are filled with 0 (= EMPTY)
+         segments[s] = ByteBuffer.allocateDirect((int) (Math.min(SEGMENTSLOTS, capacity) * 8)).order(ByteOrder.nativeOrder());
+      }
+      segments[s].putLong((int) (i & (SEGMENTSLOTS - 1)) << 3, fingerprint);
+   }
+
+   /**
+    * Double the table, segment by segment
+    * (the fingerprints of old segment s go to the new segments 2s and 2s+1,
+    * or a little after them).
+    */
+   private void grow () {
+      ByteBuffer[] old = segments;
+      allocate(bits + 1);
+      long mask = capacity - 1;
+      for (int s=0; s<old.length; s++) {
+         ByteBuffer segment = old[s];
+         if (segment == null)
+            continue;
+         for (int j=0; j<segment.capacity(); j+=8) {
+            long fingerprint = segment.getLong(j);
+            if (fingerprint != EMPTY) {
+               long i = slot(fingerprint);
+               while (get(i) != EMPTY)
+                  i = (i + 1) & mask;
+               put(i, fingerprint);
+            }
+         }
+         old[s] = null;
+         free(segment);
+      }
+   }
+
+   private long slot (long fingerprint) {
+      return (fingerprint * 0x9E3779B97F4A7C15L) >>> (64 - bits);
+   }
+
+
+
+   // FREEING DIRECT BUFFERS
+
+   private static Object unsafe = null;
+   private static Method invokeCleaner = null;
+
+   static {
+      try {
+         // Java 9 and later
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Field field = unsafeClass.getDeclaredField("theUnsafe");
+         field.setAccessible(true);
+         unsafe = field.get(null);
+         invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (Exception e) {
+         // Java 8, see free
+      }
+   }
+
+   /**
+    * Free the memory of the direct buffer now
+    * instead of when the garbage collector finds it
+    * (the buffer must not be used any more).
+    * If this is not possible, the garbage collector frees it.
+    */
+   private static void free (ByteBuffer buffer) {
+      try {
+         if (invokeCleaner != null) {
+            invokeCleaner.invoke(unsafe, buffer);
+         } else {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+               cleaner.getClass().getMethod("clean").invoke(cleaner);
+         }
+      } catch (Exception e) {
+         // left to the garbage collector
+      }
+   }
+
+}
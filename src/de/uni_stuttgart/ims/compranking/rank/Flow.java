@@ -0,0 +1,111 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+
+/**
+ * Interfaces for sources that push items to subscribers
+ * only as far as the subscribers asked for them (backpressure).
+ *
+ * These are the interfaces of java.util.concurrent.Flow (Java 9),
+ * the code is compiled for Java 8.
+ * With Java 9, replace this class by java.util.concurrent.Flow.
+ */
+public final class Flow {
+
+   private Flow () {
+   }
+
+
+
+   /**
+    * A source of items (e.g. blocks of lines of a file).
+    *
+    * @param <T> the items
+    */
+   public interface Publisher<T> {
+
+      /**
+       * Add a subscriber, it gets onSubscribe first
+       * (or onError if it cannot be added).
+       *
+       * @param subscriber
+       */
+      public void subscribe (Subscriber<? super T> subscriber);
+   }
+
+
+
+   /**
+    * Receives the items of a publisher.
+    * The methods are called one after the other (never at the same time),
+    * onNext at most as often as items were requested.
+    *
+    * @param <T> the items
+    */
+   public interface Subscriber<T> {
+
+      /**
+       * Called first, no items are sent before subscription.request().
+       *
+       * @param subscription
+       */
+      public void onSubscribe (Subscription subscription);
+
+      /**
+       * Next item.
+       *
+       * @param item
+       */
+      public void onNext (T item);
+
+      /**
+       * The publisher failed, no more calls follow.
+       *
+       * @param throwable
+       */
+      public void onError (Throwable throwable);
+
+      /**
+       * All items were sent, no more calls follow.
+       */
+      public void onComplete ();
+   }
+
+
+
+   /**
+    * Link between one publisher and one subscriber.
+    */
+   public interface Subscription {
+
+      /**
+       * Allow the publisher to send n more items
+       * (can be called from any thread).
+       *
+       * @param n
+       */
+      public void request (long n);
+
+      /**
+       * Stop sending items (maybe after some more).
+       */
+      public void cancel ();
+   }
+
+
+
+   /**
+    * Subscriber and publisher at the same time (a processing step).
+    *
+    * @param <T> items received
+    * @param <R> items published
+    */
+   public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+   }
+
+}
@@ -0,0 +1,161 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Open input files of the rankers.
+ * Files ending in ".gz" are decompressed while reading
+ * (see ParallelGzipInputStream).
+ */
+public class InputFiles {
+
+
+   public static final String GZIPEXTENSION = ".gz";
+
+   /**
+    * Number of threads used to decompress one gzip file.
+    */
+   public static int numberThreads = Runtime.getRuntime().availableProcessors();
+
+
+
+   /**
+    * True if this file is gzip compressed (by its name).
+    *
+    * @param filename
+    */
+   public static boolean isGzip (String filename) {
+      return filename.endsWith(GZIPEXTENSION);
+   }
+
+
+   /**
+    * Name without the gzip extension.
+    *
+    * @param filename
+    */
+   public static String stripGzip (String filename) {
+      if (isGzip(filename))
+         return filename.substring(0, filename.length() - GZIPEXTENSION.length());
+      return filename;
+   }
+
+
+   /**
+    * True if the file name ends in this extension,
+    * with or without gzip extension.
+    *
+    * @param filename
+    * @param extension
+    */
+   public static boolean hasExtension (String filename, String extension) {
+      return stripGzip(filename).endsWith(extension);
+   }
+
+
+   /**
+    * Return the name of the file that exists,
+    * the file itself or the compressed / uncompressed version.
+    * If none exists, the filename is returned unchanged.
+    *
+    * @param filename
+    */
+   public static String findFile (String filename) {
+      if (new File(filename).exists())
+         return filename;
+      String other = isGzip(filename) ? stripGzip(filename) : filename + GZIPEXTENSION;
+      if (new File(other).exists())
+         return other;
+      return filename;
+   }
+
+
+
+   /**
+    * Open this file, decompress if it is gzipped.
+    *
+    * @param filename
+    * @throws IOException
+    */
+   public static InputStream openInputStream (String filename) throws IOException {
+      if (isGzip(filename))
+         return new ParallelGzipInputStream(filename, numberThreads);
+      return new FileInputStream(filename);
+   }
+
+
+   /**
+    * Open this file for reading lines (UTF-8), decompress if it is gzipped.
+    *
+    * @param filename
+    * @throws IOException
+    */
+   public static BufferedReader openReader (String filename) throws IOException {
+      return new BufferedReader(new InputStreamReader(openInputStream(filename), Charset.forName("UTF-8")));
+   }
+
+
+   /**
+    * Decompress this file to a temporary file
+    * (for readers that need a filename).
+    * The caller should delete the temporary file when it is read
+    * (see deleteTempFile), otherwise it is only deleted when the program ends.
+    * Uncompressed files are returned unchanged.
+    *
+    * @param filename
+    * @return the name of the file to read
+    * @throws IOException
+    */
+   public static String decompressToTempFile (String filename) throws IOException {
+
+      if (!isGzip(filename))
+         return filename;
+
+      String name = new File(stripGzip(filename)).getName();
+      File tmpFile = File.createTempFile(name + ".", null);
+      tmpFile.deleteOnExit();
+
+      InputStream in = openInputStream(filename);
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+         byte[] buffer = new byte[1 << 16];
+         int n;
+         while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+      } finally {
+         in.close();
+         out.close();
+      }
+
+      return tmpFile.getAbsolutePath();
+   }
+
+
+   /**
+    * Delete the file from decompressToTempFile
+    * (nothing happens if it is the original file or null).
+    *
+    * @param filename the original file
+    * @param tmpFilename the file returned by decompressToTempFile
+    */
+   public static void deleteTempFile (String filename, String tmpFilename) {
+      if (tmpFilename != null && !tmpFilename.equals(filename))
+         new File(tmpFilename).delete();
+   }
+
+}
@@ -0,0 +1,281 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Read a file of lines in a pipeline:
+ * - one I/O thread reads large blocks of complete lines
+ *   (see BlockPublisher, or any other publisher of blocks),
+ * - worker threads parse the lines of a block (e.g. split and tokenize),
+ * - the calling thread consumes the results in file order
+ *   (e.g. updates the counters).
+ *
+ * The pipeline subscribes to the blocks with backpressure:
+ * it requests queueLength blocks at the start and one more
+ * for every block that is consumed, so at most queueLength blocks
+ * are in memory, however slow the workers or the consumer are.
+ * Reading from disk and processing overlap,
+ * the results are the same as when reading sequentially.
+ *
+ * @param <W> state of one worker thread (e.g. a tokenizer)
+ * @param <R> result for one line
+ */
+public class LinePipeline<W, R> {
+
+
+   /**
+    * Size of the blocks that are read at once.
+    */
+   public static int blockSize = 1 << 22;
+
+   /**
+    * Maximum number of blocks that are requested and not consumed yet.
+    */
+   public static int queueLength = 8;
+
+   /**
+    * Maximum time (seconds) to wait for the workers
+    * after an error before they are closed.
+    */
+   public static int shutdownTimeout = 60;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+
+   /**
+    * Lines of the file from firstLineno (0-based),
+    * bytes[0..length) has only complete lines.
+    */
+   public static class Block {
+      public String filename;
+      public byte[] bytes;
+      public int length;
+      public int firstLineno;
+      public int numberLines;
+
+      /**
+       * Decode all lines of the block (without \n or \r\n).
+       */
+      public List<String> getLines () {
+         List<String> lines = new ArrayList<String>(numberLines);
+         int start = 0;
+         while (start < length) {
+            int i = DelimiterScanner.nextNewline(bytes, start, length);
+            int end = (i > start && bytes[i-1] == '\r') ? i-1 : i;
+            lines.add(new String(bytes, start, end - start, UTF8));
+            start = i+1;
+         }
+         return lines;
+      }
+   }
+
+
+
+   /**
+    * What to do with the lines.
+    *
+    * @param <W> state of one worker thread
+    * @param <R> result for one line
+    */
+   public interface Stage<W, R> {
+
+      /**
+       * Create the state of a new worker thread.
+       */
+      public W newWorker ();
+
+      /**
+       * Parse all lines of the block (called by a worker thread),
+       * add the results in order.
+       *
+       * @param worker
+       * @param block
+       * @param results
+       */
+      public void prepare (W worker, Block block, List<R> results);
+
+      /**
+       * Consume one result (called by the thread that runs the pipeline,
+       * in file order).
+       *
+       * @param result
+       */
+      public void consume (R result);
+
+      /**
+       * Clean up the state of a worker thread.
+       *
+       * @param worker
+       */
+      public void closeWorker (W worker);
+   }
+
+
+
+   private Stage<W, R> stage;
+   private int numberWorkers;
+
+   private List<W> workers = Collections.synchronizedList(new ArrayList<W>());
+   private ThreadLocal<W> worker = new ThreadLocal<W>() {
+      protected W initialValue () {
+         W w = stage.newWorker();
+         workers.add(w);
+         return w;
+      }
+   };
+
+   /**
+    * End of the blocks (put in the queue when the source is done).
+    */
+   private final Future<List<R>> endOfFile = new FutureTask<List<R>>(new Callable<List<R>>() {
+      public List<R> call () {
+         return null;
+      }
+   });
+
+
+
+   /**
+    * Run a pipeline with this stage and this number of worker threads.
+    *
+    * @param stage
+    * @param numberWorkers
+    */
+   public LinePipeline (Stage<W, R> stage, int numberWorkers) {
+      this.stage = stage;
+      this.numberWorkers = Math.max(1, numberWorkers);
+   }
+
+
+
+   /**
+    * Process the file.
+    *
+    * @param filename
+    * @return number of results that were consumed
+    * @throws IOException
+    */
+   public int process (String filename) throws IOException {
+      return process(new BlockPublisher(filename));
+   }
+
+
+   /**
+    * Process the blocks of this source
+    * (e.g. a BlockPublisher of several files).
+    * At most queueLength blocks are requested
+    * that are not consumed yet.
+    *
+    * @param source
+    * @return number of results that were consumed
+    * @throws IOException
+    */
+   public int process (Flow.Publisher<Block> source) throws IOException {
+
+      final ExecutorService pool = Executors.newFixedThreadPool(numberWorkers);
+      final BlockingQueue<Future<List<R>>> queue = new LinkedBlockingQueue<Future<List<R>>>();
+      final Flow.Subscription[] subscription = new Flow.Subscription[1];
+      final Throwable[] sourceError = new Throwable[1];
+
+      // publisher thread: give the blocks to the workers
+      source.subscribe(new Flow.Subscriber<Block>() {
+
+         public void onSubscribe (Flow.Subscription s) {
+            subscription[0] = s;
+            s.request(queueLength);
+         }
+
+         public void onNext (final Block block) {
+            queue.add(pool.submit(new Callable<List<R>>() {
+               public List<R> call () {
+                  List<R> results = new ArrayList<R>();
+                  stage.prepare(worker.get(), block, results);
+                  return results;
+               }
+            }));
+         }
+
+         public void onError (Throwable throwable) {
+            synchronized (sourceError) {
+               sourceError[0] = throwable;
+            }
+            queue.add(endOfFile);
+         }
+
+         public void onComplete () {
+            queue.add(endOfFile);
+         }
+      });
+
+      // this thread: consume the results in file order,
+      // ask for one more block for each block that is done
+      int numberLines = 0;
+      try {
+         while (true) {
+            Future<List<R>> next = queue.take();
+            if (next == endOfFile)
+               break;
+            for (R result : next.get()) {
+               stage.consume(result);
+               numberLines++;
+            }
+            subscription[0].request(1);
+         }
+      } catch (InterruptedException e) {
+         throw new IOException(e);
+      } catch (ExecutionException e) {
+         throw new IOException(e.getCause());
+      } finally {
+         subscription[0].cancel();
+         // after an error, blocks may still be prepared:
+         // the workers are only closed when no task uses them any more
+         // (e.g. their tokenizers go back to the TokenizerPool)
+         pool.shutdownNow();
+         boolean terminated = false;
+         try {
+            terminated = pool.awaitTermination(shutdownTimeout, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         if (terminated) {
+            synchronized (workers) {
+               for (W w : workers)
+                  stage.closeWorker(w);
+            }
+         } else {
+            System.err.println("WARNING: pipeline workers still running, they are not closed");
+         }
+      }
+
+      synchronized (sourceError) {
+         if (sourceError[0] instanceof IOException)
+            throw (IOException) sourceError[0];
+         if (sourceError[0] != null)
+            throw new IOException(sourceError[0]);
+      }
+
+      return numberLines;
+   }
+
+}
@@ -0,0 +1,455 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * Read a gzip file that consists of several members
+ * (e.g. written by pigz, bgzip or by concatenating gzip files)
+ * and decompress the members on several threads.
+ * The decompressed data is returned in the original order.
+ *
+ * Member boundaries are not stored in gzip files,
+ * so every position that looks like a gzip header is a candidate
+ * and decompressed speculatively. Only members that start exactly where
+ * the previous member ended and have a correct checksum are used.
+ *
+ * If a member is too large to be kept in memory or cannot be found,
+ * the rest of the file is read sequentially with a GZIPInputStream.
+ *
+ * The buffers of the decompressed members that are not returned yet
+ * are limited to maxPendingBytes: a thread that would exceed it
+ * stops (unless its member is the next one to return)
+ * and the member is decompressed again when it is needed.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+
+   /**
+    * Members that decompress to more than this are read sequentially.
+    */
+   private static final int MAXMEMBERSIZE = 1 << 27;
+
+   /**
+    * Buffer bytes of all members that are not returned yet
+    * (except the next one), at most 1/4 of the heap.
+    */
+   private static final long MAXPENDINGBYTES = 1L << 28;
+
+   /**
+    * Size of the blocks given to the inflater.
+    */
+   private static final int INPUTBLOCKSIZE = 1 << 16;
+
+   private static final int SCANWINDOWSIZE = 1 << 28;
+
+
+   private FileChannel channel;
+   private long fileSize;
+
+   /**
+    * Positions that look like the start of a gzip member.
+    */
+   private long[] candidates;
+   private int nextCandidate = 0;
+
+   private ExecutorService pool;
+   private int maxPending;
+   private ArrayDeque<Future<Member>> pending = new ArrayDeque<Future<Member>>();
+
+   /**
+    * Buffer bytes of the pending members.
+    */
+   private AtomicLong pendingBytes = new AtomicLong();
+   private long maxPendingBytes = Math.min(MAXPENDINGBYTES, Runtime.getRuntime().maxMemory() / 4);
+
+   /**
+    * Start of the next member to return.
+    */
+   private volatile long position = 0;
+
+   private byte[] current = new byte[0];
+   private int currentLength = 0;
+   private int currentPos = 0;
+
+   /**
+    * Used after switching to sequential reading.
+    */
+   private InputStream sequential = null;
+
+
+
+   /**
+    * One decompressed member
+    * (data null if it was stopped because of maxPendingBytes).
+    */
+   private static class Member {
+      long start;
+      long end;
+      byte[] data;
+      int length;
+   }
+
+
+   /**
+    * Output buffer that gives access to its array (no copy).
+    */
+   private static class Buffer extends ByteArrayOutputStream {
+      Buffer (int size) {
+         super(size);
+      }
+      byte[] array () {
+         return buf;
+      }
+   }
+
+
+
+   /**
+    * Read this gzip file, decompress with this number of threads.
+    *
+    * @param filename
+    * @param numberThreads
+    * @throws IOException
+    */
+   public ParallelGzipInputStream (String filename, int numberThreads) throws IOException {
+
+      channel = new RandomAccessFile(filename, "r").getChannel();
+      fileSize = channel.size();
+
+      candidates = findCandidates();
+
+      // Only one member: nothing to do in parallel
+      if (candidates.length < 2 || numberThreads < 2) {
+         startSequential();
+         return;
+      }
+
+      maxPending = numberThreads * 2;
+      pool = Executors.newFixedThreadPool(numberThreads, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "gunzip");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+
+
+   @Override
+   public int read () throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return (n <= 0) ? -1 : (b[0] & 0xff);
+   }
+
+
+   @Override
+   public int read (byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+         return 0;
+      while (sequential == null && currentPos == currentLength) {
+         if (!nextMember())
+            break;
+      }
+      if (sequential != null && currentPos == currentLength)
+         return sequential.read(b, off, len);
+      if (currentPos == currentLength)
+         return -1;
+      int n = Math.min(len, currentLength - currentPos);
+      System.arraycopy(current, currentPos, b, off, n);
+      currentPos += n;
+      return n;
+   }
+
+
+
+   /**
+    * Get the next member that starts at the current position.
+    *
+    * @return false at the end of the file
+    * @throws IOException
+    */
+   private boolean nextMember () throws IOException {
+
+      if (position >= fileSize) {
+         close();
+         return false;
+      }
+
+      // find the member at the current position,
+      // results for other candidates are ignored
+      while (true) {
+
+         // keep the threads busy
+         // (the candidates before the current position are skipped)
+         while (pending.size() < maxPending && pendingBytes.get() < maxPendingBytes
+               && nextCandidate < candidates.length) {
+            final long start = candidates[nextCandidate++];
+            if (start < position)
+               continue;
+            pending.add(pool.submit(new Callable<Member>() {
+               public Member call() {
+                  return decompressMember(start);
+               }
+            }));
+         }
+         if (pending.isEmpty())
+            break;
+
+         Member member = null;
+         try {
+            member = pending.poll().get();
+         } catch (InterruptedException e) {
+            throw new IOException(e);
+         } catch (ExecutionException e) {
+            throw new IOException(e);
+         }
+         if (member != null && member.data != null)
+            pendingBytes.addAndGet(-member.data.length);
+         if (member == null || member.start < position)
+            continue;
+         if (member.start > position)
+            break;
+         if (member.data == null) {
+            // stopped because of maxPendingBytes, now it is the next one
+            member = decompressMember(member.start);
+            if (member == null)
+               break;
+            pendingBytes.addAndGet(-member.data.length);
+         }
+         current = member.data;
+         currentLength = member.length;
+         currentPos = 0;
+         position = member.end;
+         return true;
+      }
+
+      // not found (member too large or not recognized)
+      startSequential();
+      return true;
+   }
+
+
+
+   /**
+    * Read the rest of the file from the current position
+    * with a GZIPInputStream.
+    */
+   private void startSequential () throws IOException {
+      for (Future<Member> future : pending)
+         future.cancel(true);
+      pending.clear();
+      if (pool != null)
+         pool.shutdownNow();
+      channel.position(position);
+      if (position < fileSize)
+         sequential = new GZIPInputStream(Channels.newInputStream(channel), INPUTBLOCKSIZE);
+      else
+         sequential = new ByteArrayInputStream(new byte[0]);
+      current = new byte[0];
+      currentLength = 0;
+      currentPos = 0;
+   }
+
+
+
+   /**
+    * Find all positions that look like a gzip header
+    * (ID1 ID2 CM=deflate FLG without reserved bits).
+    */
+   private long[] findCandidates () throws IOException {
+      List<Long> found = new ArrayList<Long>();
+      for (long offset = 0; offset < fileSize; offset += SCANWINDOWSIZE - 3) {
+         int length = (int) Math.min(SCANWINDOWSIZE, fileSize - offset);
+         MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+         for (int i=0; i+3<length; i++) {
+            if (window.get(i) == (byte) 0x1f && window.get(i+1) == (byte) 0x8b
+                  && window.get(i+2) == 8 && (window.get(i+3) & 0xe0) == 0) {
+               if (found.isEmpty() || found.get(found.size()-1) < offset + i)
+                  found.add(offset + i);
+            }
+         }
+         if (offset + length >= fileSize)
+            break;
+      }
+      long[] result = new long[found.size()];
+      for (int i=0; i<result.length; i++)
+         result[i] = found.get(i);
+      return result;
+   }
+
+
+
+   /**
+    * Decompress the gzip member starting at this position.
+    *
+    * @param start
+    * @return the member, null if there is no valid member
+    *    or it is too large, without data if it was stopped
+    *    because of maxPendingBytes (the buffer of a member with data
+    *    is counted in pendingBytes until the member is taken)
+    */
+   private Member decompressMember (long start) {
+
+      Inflater inflater = new Inflater(true);
+      long counted = 0;
+      try {
+         long headerEnd = parseHeader(start);
+         if (headerEnd < 0)
+            return null;
+
+         Buffer out = new Buffer(INPUTBLOCKSIZE * 4);
+         byte[] input = new byte[INPUTBLOCKSIZE];
+         byte[] output = new byte[INPUTBLOCKSIZE * 4];
+         long inputPos = headerEnd;
+         CRC32 crc = new CRC32();
+
+         while (!inflater.finished()) {
+            if (Thread.currentThread().isInterrupted())
+               return null;
+            if (inflater.needsInput()) {
+               int n = readAt(inputPos, input);
+               if (n <= 0)
+                  return null; // truncated
+               inflater.setInput(input, 0, n);
+               inputPos += n;
+            }
+            int n = inflater.inflate(output);
+            if (n == 0 && inflater.needsDictionary())
+               return null;
+            crc.update(output, 0, n);
+            out.write(output, 0, n);
+            if (out.size() > MAXMEMBERSIZE)
+               return null;
+            if (out.array().length > counted) {
+               long grown = out.array().length - counted;
+               counted += grown;
+               if (pendingBytes.addAndGet(grown) > maxPendingBytes && start != position) {
+                  Member stopped = new Member();
+                  stopped.start = start;
+                  return stopped;
+               }
+            }
+         }
+
+         // trailer: CRC32, ISIZE (little endian)
+         long trailer = headerEnd + inflater.getBytesRead();
+         ByteBuffer t = ByteBuffer.allocate(8);
+         if (channel.read(t, trailer) != 8)
+            return null;
+         long storedCrc = littleEndianInt(t, 0) & 0xffffffffL;
+         long storedSize = littleEndianInt(t, 4) & 0xffffffffL;
+         if (storedCrc != crc.getValue() || storedSize != (out.size() & 0xffffffffL))
+            return null;
+
+         Member member = new Member();
+         member.start = start;
+         member.end = trailer + 8;
+         member.data = out.array();
+         member.length = out.size();
+         counted = 0;
+         return member;
+
+      } catch (DataFormatException e) {
+         return null;
+      } catch (IOException e) {
+         return null;
+      } finally {
+         inflater.end();
+         // the bytes of a member that is not returned
+         pendingBytes.addAndGet(-counted);
+      }
+   }
+
+
+   /**
+    * Skip the gzip header at this position.
+    *
+    * @return position after the header, -1 if this is no valid header
+    */
+   private long parseHeader (long start) throws IOException {
+      byte[] header = new byte[10];
+      if (readAt(start, header) < 10)
+         return -1;
+      int flags = header[3] & 0xff;
+      long pos = start + 10;
+      byte[] two = new byte[2];
+      if ((flags & 4) != 0) { // FEXTRA
+         if (readAt(pos, two) < 2)
+            return -1;
+         pos += 2 + ((two[0] & 0xff) | ((two[1] & 0xff) << 8));
+      }
+      if ((flags & 8) != 0) // FNAME
+         pos = skipZeroTerminated(pos);
+      if ((flags & 16) != 0 && pos >= 0) // FCOMMENT
+         pos = skipZeroTerminated(pos);
+      if ((flags & 2) != 0 && pos >= 0) // FHCRC
+         pos += 2;
+      return (pos < fileSize) ? pos : -1;
+   }
+
+   private long skipZeroTerminated (long pos) throws IOException {
+      byte[] b = new byte[256];
+      while (pos < fileSize) {
+         int n = readAt(pos, b);
+         for (int i=0; i<n; i++) {
+            if (b[i] == 0)
+               return pos + i + 1;
+         }
+         pos += n;
+      }
+      return -1;
+   }
+
+   private int readAt (long pos, byte[] b) throws IOException {
+      if (pos >= fileSize)
+         return -1;
+      return channel.read(ByteBuffer.wrap(b), pos);
+   }
+
+   private static int littleEndianInt (ByteBuffer b, int i) {
+      return (b.get(i) & 0xff) | ((b.get(i+1) & 0xff) << 8) | ((b.get(i+2) & 0xff) << 16) | ((b.get(i+3) & 0xff) << 24);
+   }
+
+
+
+   @Override
+   public void close () throws IOException {
+      if (pool != null)
+         pool.shutdownNow();
+      if (sequential != null)
+         sequential.close();
+      channel.close();
+   }
+
+}
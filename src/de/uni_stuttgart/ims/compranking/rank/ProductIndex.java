@@ -0,0 +1,362 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Index of the lines of an input file by product:
+ * for every product, the byte ranges of the lines with reviews
+ * (or sentences) of this product.
+ * Consecutive lines of the same product are merged into one range.
+ *
+ * The index is stored next to the input file (<file>.pidx)
+ * and rebuilt if the input file has changed.
+ * Readers use it to read only the lines of relevant products.
+ *
+ * Offsets of gzipped files are offsets in the uncompressed data.
+ */
+public class ProductIndex {
+
+
+   /**
+    * Extension of index files.
+    */
+   public static final String EXTENSION = ".pidx";
+
+   private static final int MAGIC = 0x50494458; // PIDX
+   private static final int VERSION = 1;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+
+   /**
+    * Lines from start (inclusive) to end (exclusive),
+    * starting at line number firstLineno (0-based).
+    */
+   public static class Range {
+      public long start;
+      public long end;
+      public int firstLineno;
+      public int numberLines;
+
+      public Range (long start, long end, int firstLineno, int numberLines) {
+         this.start = start;
+         this.end = end;
+         this.firstLineno = firstLineno;
+         this.numberLines = numberLines;
+      }
+
+      public String toString () {
+         return start + "-" + end + " (line " + firstLineno + ")";
+      }
+   }
+
+
+
+   private LinkedHashMap<String, List<Range>> ranges = new LinkedHashMap<String, List<Range>>();
+
+   private int numberLines = 0;
+
+
+
+   // FILES
+
+   /**
+    * Filename of the index for this input file.
+    *
+    * @param filename
+    */
+   public static String getIndexFilename (String filename) {
+      return filename + EXTENSION;
+   }
+
+
+   /**
+    * Read the index of this input file.
+    *
+    * @param filename the input file
+    * @return the index, null if there is none or it is out of date
+    */
+   public static ProductIndex read (String filename) {
+
+      File source = new File(filename);
+      File indexFile = new File(getIndexFilename(filename));
+      if (!indexFile.exists())
+         return null;
+
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION
+               || in.readLong() != source.length() || in.readLong() != source.lastModified())
+            return null;
+
+         ProductIndex index = new ProductIndex();
+         index.numberLines = in.readInt();
+         int numberProducts = in.readInt();
+         for (int i=0; i<numberProducts; i++) {
+            byte[] product = new byte[in.readInt()];
+            in.readFully(product);
+            int numberRanges = in.readInt();
+            List<Range> productRanges = new ArrayList<Range>(numberRanges);
+            for (int j=0; j<numberRanges; j++) {
+               productRanges.add(new Range(in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            index.ranges.put(new String(product, UTF8), productRanges);
+         }
+         return index;
+
+      } catch (IOException e) {
+         System.err.println("ERROR while reading index " + indexFile + ": " + e.getMessage());
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               // ignore
+            }
+         }
+      }
+   }
+
+
+   /**
+    * Write the index of this input file.
+    *
+    * @param filename the input file
+    * @throws IOException
+    */
+   public void write (String filename) throws IOException {
+
+      File source = new File(filename);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFilename(filename)), 1 << 16));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(source.length());
+         out.writeLong(source.lastModified());
+         out.writeInt(numberLines);
+         out.writeInt(ranges.size());
+         for (Map.Entry<String, List<Range>> entry : ranges.entrySet()) {
+            byte[] product = entry.getKey().getBytes(UTF8);
+            out.writeInt(product.length);
+            out.write(product);
+            out.writeInt(entry.getValue().size());
+            for (Range range : entry.getValue()) {
+               out.writeLong(range.start);
+               out.writeLong(range.end);
+               out.writeInt(range.firstLineno);
+               out.writeInt(range.numberLines);
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+
+   /**
+    * Write the index, print an error if this fails
+    * (e.g. the folder is not writable).
+    *
+    * @param filename the input file
+    */
+   public void writeSilently (String filename) {
+      try {
+         write(filename);
+      } catch (IOException e) {
+         System.err.println("ERROR while writing index for " + filename + ": " + e.getMessage());
+      }
+   }
+
+
+
+   /**
+    * Read the index of this tab-separated file with the product
+    * in the first column (e.g. the sentence files of CSRL),
+    * build and store it if it does not exist or is out of date.
+    *
+    * @param filename
+    * @return
+    * @throws IOException
+    */
+   public static ProductIndex forTabSeparated (String filename) throws IOException {
+
+      ProductIndex index = read(filename);
+      if (index != null)
+         return index;
+
+      System.out.println("create product index for " + filename);
+      index = new ProductIndex();
+      InputStream in = new BufferedInputStream(InputFiles.openInputStream(filename), 1 << 16);
+      try {
+         ByteArrayBuilder product = new ByteArrayBuilder();
+         boolean inProduct = true;
+         long position = 0;
+         long lineStart = 0;
+         int b;
+         while ((b = in.read()) >= 0) {
+            position++;
+            if (b == '\n') {
+               index.add(product.toString(), lineStart, position);
+               product.reset();
+               inProduct = true;
+               lineStart = position;
+            } else if (b == '\t') {
+               inProduct = false;
+            } else if (inProduct && b != '\r') {
+               product.append(b);
+            }
+         }
+         if (position > lineStart)
+            index.add(product.toString(), lineStart, position);
+      } finally {
+         in.close();
+      }
+
+      index.writeSilently(filename);
+      return index;
+   }
+
+
+   /**
+    * Minimal growable byte array for the product column.
+    */
+   private static class ByteArrayBuilder {
+      private byte[] bytes = new byte[32];
+      private int length = 0;
+
+      void append (int b) {
+         if (length == bytes.length)
+            bytes = Arrays.copyOf(bytes, length*2);
+         bytes[length++] = (byte) b;
+      }
+
+      void reset () {
+         length = 0;
+      }
+
+      public String toString () {
+         return new String(bytes, 0, length, UTF8);
+      }
+   }
+
+
+
+   // BUILD
+
+   /**
+    * Add the next line of the file.
+    * Lines have to be added in file order, lines without product
+    * (e.g. format errors) are added with product null.
+    *
+    * @param product
+    * @param start
+    * @param end
+    */
+   public void add (String product, long start, long end) {
+      int lineno = numberLines++;
+      if (product == null)
+         return;
+      List<Range> productRanges = ranges.get(product);
+      if (productRanges == null) {
+         productRanges = new ArrayList<Range>();
+         ranges.put(product, productRanges);
+      }
+      Range last = productRanges.isEmpty() ? null : productRanges.get(productRanges.size()-1);
+      if (last != null && last.end == start && last.firstLineno + last.numberLines == lineno) {
+         last.end = end;
+         last.numberLines++;
+      } else {
+         productRanges.add(new Range(start, end, lineno, 1));
+      }
+   }
+
+
+
+   // ACCESS
+
+   /**
+    * Number of lines in the file.
+    */
+   public int getNumberLines () {
+      return numberLines;
+   }
+
+
+   /**
+    * True if the file has lines of at least one of these products.
+    *
+    * @param products
+    */
+   public boolean containsAny (Collection<String> products) {
+      for (String product : products) {
+         if (ranges.containsKey(product))
+            return true;
+      }
+      return false;
+   }
+
+
+   /**
+    * All ranges with lines of these products in file order,
+    * adjacent ranges are merged.
+    *
+    * @param products
+    * @return
+    */
+   public List<Range> getRanges (Collection<String> products) {
+
+      List<Range> found = new ArrayList<Range>();
+      for (String product : products) {
+         List<Range> productRanges = ranges.get(product);
+         if (productRanges != null)
+            found.addAll(productRanges);
+      }
+
+      Collections.sort(found, new Comparator<Range>() {
+         public int compare (Range r1, Range r2) {
+            return Long.compare(r1.start, r2.start);
+         }
+      });
+
+      List<Range> merged = new ArrayList<Range>();
+      Range last = null;
+      for (Range range : found) {
+         if (last != null && last.end == range.start && last.firstLineno + last.numberLines == range.firstLineno) {
+            last.end = range.end;
+            last.numberLines += range.numberLines;
+         } else {
+            last = new Range(range.start, range.end, range.firstLineno, range.numberLines);
+            merged.add(last);
+         }
+      }
+      return merged;
+   }
+
+}
@@ -9,8 +9,11 @@
 package de.uni_stuttgart.ims.compranking.rank;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.TreeSet;
 import java.util.Map.Entry;
 
@@ -30,9 +33,17 @@ public abstract class ProductOpinionCounter {
    /**
     * List of products (keys)
     * and the corresponding reviews (values).
+    * (All maps keep the order in which the products were added,
+    * so merged counters give the same output as sequential ones.)
     */
    protected HashMap<String, TreeSet<String>> numberOfReviews;
 
+   /**
+    * List of products (keys)
+    * and the corresponding reviews as numeric keys (values).
+    */
+   protected HashMap<String, ReviewKeySet> numberOfReviewKeys;
+
 
    /**
     * DEBUG/HACK
@@ -47,7 +58,8 @@ public abstract class ProductOpinionCounter {
     * Use this to count opinions about a product.
     */
    public ProductOpinionCounter() {
-      numberOfReviews = new HashMap<String, TreeSet<String>>();
+      numberOfReviews = new LinkedHashMap<String, TreeSet<String>>();
+      numberOfReviewKeys = new LinkedHashMap<String, ReviewKeySet>();
       comments = new HashMap<String, String>();
    }
 
@@ -64,6 +76,121 @@ public abstract class ProductOpinionCounter {
    }
 
 
+   /**
+    * Add a review to the list of reviews (unique)
+    *
+    * @param productID
+    * @param reviewKey numeric key of the review
+    */
+   public void addReview (String productID, long reviewKey) {
+      ReviewKeySet reviews = numberOfReviewKeys.get(productID);
+      if (reviews == null) {
+         reviews = new ReviewKeySet();
+         numberOfReviewKeys.put(productID, reviews);
+      }
+      reviews.add(reviewKey);
+   }
+
+
+   /**
+    * Number of different reviews for this product.
+    *
+    * @param productID
+    */
+   public int getNumberReviews (String productID) {
+      int number = 0;
+      TreeSet<String> reviews = numberOfReviews.get(productID);
+      if (reviews != null)
+         number += reviews.size();
+      ReviewKeySet reviewKeys = numberOfReviewKeys.get(productID);
+      if (reviewKeys != null)
+         number += reviewKeys.size();
+      return number;
+   }
+
+
+   /**
+    * Add the reviews of another counter to this one
+    * (used to join the results of parallel processing).
+    *
+    * @param other
+    */
+   protected void merge (ProductOpinionCounter other) {
+      for (Entry<String, TreeSet<String>> entry : other.numberOfReviews.entrySet()) {
+         TreeSet<String> reviews = numberOfReviews.get(entry.getKey());
+         if (reviews == null) {
+            reviews = new TreeSet<String>();
+            numberOfReviews.put(entry.getKey(), reviews);
+         }
+         reviews.addAll(entry.getValue());
+      }
+      for (Entry<String, ReviewKeySet> entry : other.numberOfReviewKeys.entrySet()) {
+         ReviewKeySet reviews = numberOfReviewKeys.get(entry.getKey());
+         if (reviews == null) {
+            reviews = new ReviewKeySet();
+            numberOfReviewKeys.put(entry.getKey(), reviews);
+         }
+         reviews.addAll(entry.getValue());
+      }
+   }
+
+
+   /**
+    * Write the reviews of all products (see Checkpoint).
+    *
+    * @param out
+    * @throws IOException
+    */
+   protected void writeState (DataOutputStream out) throws IOException {
+      out.writeInt(numberOfReviews.size());
+      for (Entry<String, TreeSet<String>> entry : numberOfReviews.entrySet()) {
+         out.writeUTF(entry.getKey());
+         out.writeInt(entry.getValue().size());
+         for (String reviewID : entry.getValue())
+            out.writeUTF(reviewID);
+      }
+      out.writeInt(numberOfReviewKeys.size());
+      for (Entry<String, ReviewKeySet> entry : numberOfReviewKeys.entrySet()) {
+         out.writeUTF(entry.getKey());
+         long[] keys = entry.getValue().toArray();
+         out.writeInt(keys.length);
+         for (long key : keys)
+            out.writeLong(key);
+      }
+   }
+
+
+   /**
+    * Read the reviews of all products written by writeState
+    * (replaces the reviews of this counter).
+    *
+    * @param in
+    * @throws IOException
+    */
+   protected void readState (DataInputStream in) throws IOException {
+      numberOfReviews.clear();
+      int numberProducts = in.readInt();
+      for (int i=0; i<numberProducts; i++) {
+         String productID = in.readUTF();
+         TreeSet<String> reviews = new TreeSet<String>();
+         int number = in.readInt();
+         for (int j=0; j<number; j++)
+            reviews.add(in.readUTF());
+         numberOfReviews.put(productID, reviews);
+      }
+      numberOfReviewKeys.clear();
+      numberProducts = in.readInt();
+      for (int i=0; i<numberProducts; i++) {
+         String productID = in.readUTF();
+         ReviewKeySet reviews = new ReviewKeySet();
+         int number = in.readInt();
+         for (int j=0; j<number; j++)
+            reviews.add(in.readLong());
+         numberOfReviewKeys.put(productID, reviews);
+      }
+   }
+
+
    /**
     * (Implementation specific)
     * Add a neutral opinion for this product.
@@ -83,6 +210,16 @@ public abstract class ProductOpinionCounter {
 
 
 
+   /**
+    * The comments of the products in the ranking
+    * (filled by getOverallOpinion).
+    */
+   public HashMap<String, String> getComments () {
+      return comments;
+   }
+
+
+
    /**
     * Write ranking to file. File is overwritten if it exists.
     * Format:
@@ -92,6 +229,21 @@ public abstract class ProductOpinionCounter {
     * @param outputFileName
     */
    public void writeRankingToFile (String outputFileName) {
+      HashMap<String, Double> mentionRanking = this.getOverallOpinion();
+      writeRankingToFile(outputFileName, mentionRanking, comments);
+   }
+
+
+   /**
+    * Write this ranking to file (e.g. scores that were collected
+    * from several counters, see getComments).
+    * File is overwritten if it exists.
+    *
+    * @param outputFileName
+    * @param mentionRanking product -> score
+    * @param comments product -> comment (may be empty)
+    */
+   public static void writeRankingToFile (String outputFileName, HashMap<String, Double> mentionRanking, HashMap<String, String> comments) {
 
       // Open output file
       System.out.println("Output ranking by terms to file " + outputFileName);
@@ -104,7 +256,6 @@ public abstract class ProductOpinionCounter {
 
 
       // Write ranking
-      HashMap<String, Double> mentionRanking = this.getOverallOpinion();
       int x=0;
       for (Entry<String, Double> entry : HashMapHelpers.sortHashMapByValueDescending(mentionRanking)) {
 
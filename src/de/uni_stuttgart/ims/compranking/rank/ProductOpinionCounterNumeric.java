@@ -8,7 +8,12 @@
 
 package de.uni_stuttgart.ims.compranking.rank;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 
 import de.uni_stuttgart.ims.util.HashMapHelpers;
 
@@ -38,7 +43,7 @@ public class ProductOpinionCounterNumeric extends ProductOpinionCounter {
     * @param normalize
     */
    public ProductOpinionCounterNumeric(boolean normalize) {
-      opinionRating = new HashMap<String, Double>();
+      opinionRating = new LinkedHashMap<String, Double>();
       this.normalize = normalize;
    }
 
@@ -66,6 +71,58 @@ public class ProductOpinionCounterNumeric extends ProductOpinionCounter {
       addReview(productID, reviewID);
    }
 
+   /**
+    * Add a rating for a product from a given review.
+    *
+    * @param productID
+    * @param reviewKey numeric key of the review
+    * @param rating
+    */
+   public void addRating (String productID, long reviewKey, double rating) {
+      HashMapHelpers.addOrCreate(opinionRating, productID, rating);
+      addReview(productID, reviewKey);
+   }
+
+
+   /**
+    * Add the ratings and reviews of another counter to this one
+    * (used to join the results of parallel processing).
+    *
+    * @param other
+    */
+   public void merge (ProductOpinionCounterNumeric other) {
+      super.merge(other);
+      for (Entry<String, Double> entry : other.opinionRating.entrySet()) {
+         HashMapHelpers.addOrCreate(opinionRating, entry.getKey(), entry.getValue());
+      }
+   }
+
+
+   /**
+    * Write the ratings and reviews (see Checkpoint).
+    */
+   @Override
+   protected void writeState (DataOutputStream out) throws IOException {
+      super.writeState(out);
+      out.writeInt(opinionRating.size());
+      for (Entry<String, Double> entry : opinionRating.entrySet()) {
+         out.writeUTF(entry.getKey());
+         out.writeDouble(entry.getValue());
+      }
+   }
+
+   /**
+    * Read the ratings and reviews written by writeState.
+    */
+   @Override
+   protected void readState (DataInputStream in) throws IOException {
+      super.readState(in);
+      opinionRating.clear();
+      int size = in.readInt();
+      for (int i=0; i<size; i++)
+         opinionRating.put(in.readUTF(), in.readDouble());
+   }
+
 
    /**
     * Overall opinion depends on normalization:
@@ -88,7 +145,7 @@ public class ProductOpinionCounterNumeric extends ProductOpinionCounter {
          for (String prodID : opinionRating.keySet()) {
             double ratingsSum = opinionRating.get(prodID); // cannot be null
             if (normalize) {
-               double numberReviews = numberOfReviews.get(prodID).size(); // cannot be null
+               double numberReviews = getNumberReviews(prodID); // cannot be 0
                //System.out.println(prodID + " " + ratingsSum + " / " + numberReviews + " = "+ (ratingsSum / numberReviews) );
                opinionsAll.put(prodID, ratingsSum / numberReviews);
                comments.put(prodID,  ratingsSum + "\t" + numberReviews);
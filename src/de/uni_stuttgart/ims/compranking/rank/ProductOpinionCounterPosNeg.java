@@ -8,10 +8,14 @@
 
 package de.uni_stuttgart.ims.compranking.rank;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
 
 import de.uni_stuttgart.ims.util.HashMapHelpers;
 
@@ -74,10 +78,10 @@ public class ProductOpinionCounterPosNeg extends ProductOpinionCounter {
 
       this.doNormalize = normalize;
 
-      opinionPositive = new HashMap<String, Integer>();
-      opinionNegative = new HashMap<String, Integer>();
+      opinionPositive = new LinkedHashMap<String, Integer>();
+      opinionNegative = new LinkedHashMap<String, Integer>();
 
-      reviewLengths = new HashMap<String, Integer>();
+      reviewLengths = new LinkedHashMap<String, Integer>();
 
    }
 
@@ -96,6 +100,18 @@ public class ProductOpinionCounterPosNeg extends ProductOpinionCounter {
 
    }
 
+   /**
+    * Add a review to the list of reviews (unique)
+    * and its length
+    *
+    * @param productID
+    * @param reviewKey numeric key of the review
+    */
+   public void addReviewWithLength (String productID, long reviewKey, int reviewLength) {
+      super.addReview(productID, reviewKey);
+      HashMapHelpers.addOrCreate(reviewLengths, productID, reviewLength);
+   }
+
 
 
    /**
@@ -118,6 +134,17 @@ public class ProductOpinionCounterPosNeg extends ProductOpinionCounter {
       addReview(productID, reviewID);
    }
 
+   /**
+    * Add a review and positive score+1 for the product.
+    *
+    * @param productID
+    * @param reviewKey numeric key of the review
+    */
+   public void addPos (String productID, long reviewKey) {
+      HashMapHelpers.addOrCreate(opinionPositive, productID, 1);
+      addReview(productID, reviewKey);
+   }
+
    /**
     * Add a review and depending on the polarity mode
     * - agnostic: count an opinion as positive
@@ -140,6 +167,92 @@ public class ProductOpinionCounterPosNeg extends ProductOpinionCounter {
       addReview(productID, reviewID);
    }
 
+   /**
+    * Add a review and a negative opinion
+    * depending on the polarity mode (see above).
+    *
+    * @param productID
+    * @param reviewKey numeric key of the review
+    */
+   public void addNeg (String productID, long reviewKey) {
+      HashMap<String, Integer> useMap = null;
+      switch (usePolarityMode) {
+      case agnostic : useMap = opinionPositive; // count as positive (don't care about polarity)
+         break;
+      case onlyPos : return; // ignore negative opinions
+      case both : useMap = opinionNegative; // count as negative
+         break;
+      }
+      HashMapHelpers.addOrCreate(useMap, productID, 1);
+      addReview(productID, reviewKey);
+   }
+
+
+
+   /**
+    * Add the opinions, review lengths and reviews of another counter
+    * to this one (used to join the results of parallel processing).
+    *
+    * @param other
+    */
+   public void merge (ProductOpinionCounterPosNeg other) {
+      super.merge(other);
+      mergeMap(opinionPositive, other.opinionPositive);
+      mergeMap(opinionNegative, other.opinionNegative);
+      mergeMap(reviewLengths, other.reviewLengths);
+   }
+
+   private static void mergeMap (HashMap<String, Integer> map, HashMap<String, Integer> otherMap) {
+      for (Entry<String, Integer> entry : otherMap.entrySet()) {
+         HashMapHelpers.addOrCreate(map, entry.getKey(), entry.getValue());
+      }
+   }
+
+
+   /**
+    * A new empty counter with the same settings.
+    */
+   public ProductOpinionCounterPosNeg emptyCopy () {
+      return new ProductOpinionCounterPosNeg(usePolarityMode, doNormalize);
+   }
+
+
+   /**
+    * Write the opinions, review lengths and reviews (see Checkpoint).
+    */
+   @Override
+   protected void writeState (DataOutputStream out) throws IOException {
+      super.writeState(out);
+      writeMap(out, opinionPositive);
+      writeMap(out, opinionNegative);
+      writeMap(out, reviewLengths);
+   }
+
+   /**
+    * Read the opinions, review lengths and reviews written by writeState.
+    */
+   @Override
+   protected void readState (DataInputStream in) throws IOException {
+      super.readState(in);
+      readMap(in, opinionPositive);
+      readMap(in, opinionNegative);
+      readMap(in, reviewLengths);
+   }
+
+   private static void writeMap (DataOutputStream out, HashMap<String, Integer> map) throws IOException {
+      out.writeInt(map.size());
+      for (Entry<String, Integer> entry : map.entrySet()) {
+         out.writeUTF(entry.getKey());
+         out.writeInt(entry.getValue());
+      }
+   }
+
+   private static void readMap (DataInputStream in, HashMap<String, Integer> map) throws IOException {
+      map.clear();
+      int size = in.readInt();
+      for (int i=0; i<size; i++)
+         map.put(in.readUTF(), in.readInt());
+   }
 
 
    /**
@@ -174,10 +287,7 @@ public class ProductOpinionCounterPosNeg extends ProductOpinionCounter {
             valueNeg = 0;
 
 
-         TreeSet<String> reviews = numberOfReviews.get(prodID);
-         int numberReviews = 0;
-         if (reviews != null)
-            numberReviews = reviews.size();
+         int numberReviews = getNumberReviews(prodID);
 
          String comment = valuePos + "\t" + valueNeg + "\t" + numberReviews;
 
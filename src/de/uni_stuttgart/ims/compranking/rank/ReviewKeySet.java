@@ -0,0 +1,128 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.util.Arrays;
+
+
+/**
+ * Set of numeric review keys (unique),
+ * stored as primitive longs (open addressing, no objects per key).
+ */
+public class ReviewKeySet {
+
+   private static final long EMPTY = Long.MIN_VALUE;
+
+   private long[] keys;
+   private int size = 0;
+   private boolean containsEmpty = false;
+
+   /**
+    * The last key that was added
+    * (the same review is usually added several times in a row).
+    */
+   private long lastKey = EMPTY;
+
+
+   public ReviewKeySet () {
+      keys = new long[8];
+      Arrays.fill(keys, EMPTY);
+   }
+
+
+   /**
+    * Add this key.
+    *
+    * @param key
+    * @return false if the key was already in the set
+    */
+   public boolean add (long key) {
+      if (key == EMPTY) {
+         if (containsEmpty)
+            return false;
+         containsEmpty = true;
+         size++;
+         return true;
+      }
+      if (key == lastKey)
+         return false;
+      lastKey = key;
+      int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while (keys[i] != EMPTY) {
+         if (keys[i] == key)
+            return false;
+         i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      size++;
+      if (size * 2 > keys.length)
+         grow();
+      return true;
+   }
+
+
+   /**
+    * Add all keys of the other set.
+    *
+    * @param other
+    */
+   public void addAll (ReviewKeySet other) {
+      if (other.containsEmpty)
+         add(EMPTY);
+      for (long key : other.keys) {
+         if (key != EMPTY)
+            add(key);
+      }
+   }
+
+
+   /**
+    * All keys (in no particular order).
+    */
+   public long[] toArray () {
+      long[] array = new long[size];
+      int i = 0;
+      if (containsEmpty)
+         array[i++] = EMPTY;
+      for (long key : keys) {
+         if (key != EMPTY)
+            array[i++] = key;
+      }
+      return array;
+   }
+
+
+   /**
+    * Number of keys.
+    */
+   public int size () {
+      return size;
+   }
+
+
+   private void grow () {
+      long[] old = keys;
+      keys = new long[old.length * 2];
+      Arrays.fill(keys, EMPTY);
+      int mask = keys.length - 1;
+      for (long key : old) {
+         if (key != EMPTY) {
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY)
+               i = (i + 1) & mask;
+            keys[i] = key;
+         }
+      }
+   }
+
+   private static int slot (long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32) & mask;
+   }
+
+}
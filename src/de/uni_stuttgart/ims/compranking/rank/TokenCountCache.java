@@ -0,0 +1,345 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * Number of tokens of review texts, kept in a file between runs,
+ * so every text is tokenized only once
+ * (and not again for every input file, setting and run).
+ *
+ * The key is a 64-bit hash of the text (see FingerprintSet.hash).
+ * Two different texts get the same hash (and the same number of tokens)
+ * with a probability of about 1 in 4000 for 100 million texts.
+ * The counts depend on the tokenizer,
+ * use a separate file for every tokenizer.
+ *
+ * File format: header (magic, version, number of slots, number of entries),
+ * then a table with open addressing (linear probing),
+ * 12 bytes per slot (hash, number of tokens), hash 0 = empty.
+ * The file is mapped into memory, new entries are written
+ * by the operating system. When the table is 3/4 full,
+ * it is copied into a file twice the size that replaces the old one
+ * (if this fails, no new texts are stored).
+ *
+ * The cache can be used by several threads,
+ * but only by one process at a time.
+ */
+public class TokenCountCache implements Closeable {
+
+
+   private static final int MAGIC = 0x544B4343; // TKCC
+   private static final int VERSION = 1;
+
+   private static final int HEADERSIZE = 24;
+   private static final int SLOTSIZE = 12;
+
+   /**
+    * Slots in one mapped segment (mappings are limited to 2 GB).
+    */
+   private static final int SEGMENTBITS = 26;
+   private static final long SEGMENTSLOTS = 1L << SEGMENTBITS;
+
+   private static final long EMPTY = 0;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+
+   private File file;
+   private RandomAccessFile raf;
+   private MappedByteBuffer header;
+   private MappedByteBuffer[] segments;
+   private long capacity;
+   private long size;
+
+   /**
+    * The table could not grow, new texts are not stored
+    * (the table stays at most 3/4 full, so the probing ends).
+    */
+   private boolean full = false;
+
+   private long numberHits = 0;
+   private long numberMisses = 0;
+
+
+
+   /**
+    * Open the cache in this file, create it if it does not exist
+    * (or if it was written by another version).
+    *
+    * @param filename
+    * @throws IOException
+    */
+   public TokenCountCache (String filename) throws IOException {
+      file = new File(filename);
+      if (file.exists() && !isValid(file)) {
+         System.out.println("token count cache " + file + " has another format, create a new one");
+         file.delete();
+      }
+      if (!file.exists())
+         create(file, 1 << 16);
+      map();
+      System.out.println("token count cache " + file + ": " + size + " texts");
+   }
+
+
+
+   /**
+    * Number of tokens of the text with this hash,
+    * -1 if it is not in the cache.
+    *
+    * @param hash
+    */
+   public synchronized int get (long hash) {
+      if (hash == EMPTY)
+         hash = 1;
+      long mask = capacity - 1;
+      long key;
+      for (long i = slot(hash, mask); (key = getKey(i)) != EMPTY; i = (i + 1) & mask) {
+         if (key == hash) {
+            numberHits++;
+            return getCount(i);
+         }
+      }
+      numberMisses++;
+      return -1;
+   }
+
+
+   /**
+    * Store the number of tokens of the text with this hash
+    * (not stored if the table could not grow).
+    *
+    * @param hash
+    * @param numberTokens
+    */
+   public synchronized void put (long hash, int numberTokens) {
+      if (hash == EMPTY)
+         hash = 1;
+      long mask = capacity - 1;
+      long i = slot(hash, mask);
+      long key;
+      while ((key = getKey(i)) != EMPTY) {
+         if (key == hash) {
+            putCount(i, numberTokens);
+            return;
+         }
+         i = (i + 1) & mask;
+      }
+      if (full)
+         return;
+      putCount(i, numberTokens);
+      putKey(i, hash);
+      size++;
+      header.putLong(16, size);
+      if (size * 4 > capacity * 3) {
+         try {
+            grow();
+         } catch (IOException e) {
+            System.err.println("ERROR while growing token count cache " + file + ": " + e.getMessage());
+            System.err.println("WARNING: token count cache " + file + " is full, new texts are not stored");
+            full = true;
+         }
+      }
+   }
+
+
+   /**
+    * Number of texts in the cache.
+    */
+   public synchronized long size () {
+      return size;
+   }
+
+
+   /**
+    * Number of calls of get that found the text / did not find it.
+    */
+   public synchronized String getStatistics () {
+      return numberHits + " hits, " + numberMisses + " misses, " + size + " texts";
+   }
+
+
+   /**
+    * Write all entries to the file and close it.
+    */
+   public synchronized void close () throws IOException {
+      if (raf == null)
+         return;
+      flush();
+      raf.close();
+      raf = null;
+      header = null;
+      segments = null;
+   }
+
+
+
+   // HASHING
+
+   /**
+    * Hash of a text (UTF-8).
+    *
+    * @param text
+    */
+   public static long hash (String text) {
+      byte[] bytes = text.getBytes(UTF8);
+      return hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+   }
+
+
+   /**
+    * Hash of the text in buf[start..end) (UTF-8).
+    *
+    * @param buf
+    * @param start
+    * @param end
+    */
+   public static long hash (ByteBuffer buf, int start, int end) {
+      return FingerprintSet.hash(FingerprintSet.SEED, buf, start, end);
+   }
+
+
+
+   // FILE
+
+   private static boolean isValid (File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         if (raf.length() < HEADERSIZE)
+            return false;
+         if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+            return false;
+         long capacity = raf.readLong();
+         return Long.bitCount(capacity) == 1 && raf.length() == HEADERSIZE + capacity * SLOTSIZE;
+      } finally {
+         raf.close();
+      }
+   }
+
+
+   /**
+    * Create an empty cache file with this number of slots.
+    */
+   private static void create (File file, long capacity) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         raf.writeInt(MAGIC);
+         raf.writeInt(VERSION);
+         raf.writeLong(capacity);
+         raf.writeLong(0);
+         // new bytes of the file are 0 (= EMPTY)
+         raf.setLength(HEADERSIZE + capacity * SLOTSIZE);
+      } finally {
+         raf.close();
+      }
+   }
+
+
+   private void map () throws IOException {
+      raf = new RandomAccessFile(file, "rw");
+      FileChannel channel = raf.getChannel();
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADERSIZE);
+      capacity = header.getLong(8);
+      size = header.getLong(16);
+      int numberSegments = (int) ((capacity + SEGMENTSLOTS - 1) >>> SEGMENTBITS);
+      segments = new MappedByteBuffer[numberSegments];
+      for (int s=0; s<numberSegments; s++) {
+         long segmentSlots = Math.min(SEGMENTSLOTS, capacity - ((long) s << SEGMENTBITS));
+         segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, HEADERSIZE + ((long) s << SEGMENTBITS) * SLOTSIZE, segmentSlots * SLOTSIZE);
+      }
+   }
+
+
+   private void flush () {
+      header.force();
+      for (MappedByteBuffer segment : segments)
+         segment.force();
+   }
+
+
+   /**
+    * Copy all entries into a new file with twice the slots
+    * and replace the old file.
+    */
+   private void grow () throws IOException {
+      File tmpFile = new File(file.getPath() + ".tmp");
+      TokenCountCache bigger = null;
+      try {
+         create(tmpFile, capacity * 2);
+         bigger = new TokenCountCache(tmpFile);
+         for (long i=0; i<capacity; i++) {
+            long key = getKey(i);
+            if (key != EMPTY)
+               bigger.put(key, getCount(i));
+         }
+         bigger.close();
+      } catch (IOException e) {
+         if (bigger != null && bigger.raf != null)
+            bigger.raf.close();
+         tmpFile.delete();
+         throw e;
+      }
+      raf.close();
+      try {
+         Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         tmpFile.delete();
+         throw e;
+      } finally {
+         // the new file, or the old one if it was not replaced
+         map();
+      }
+   }
+
+
+   /**
+    * Open an empty file created for grow (no messages).
+    */
+   private TokenCountCache (File file) throws IOException {
+      this.file = file;
+      map();
+   }
+
+
+
+   // TABLE
+
+   private long getKey (long i) {
+      return segments[(int) (i >>> SEGMENTBITS)].getLong((int) (i & (SEGMENTSLOTS - 1)) * SLOTSIZE);
+   }
+
+   private int getCount (long i) {
+      return segments[(int) (i >>> SEGMENTBITS)].getInt((int) (i & (SEGMENTSLOTS - 1)) * SLOTSIZE + 8);
+   }
+
+   private void putKey (long i, long key) {
+      segments[(int) (i >>> SEGMENTBITS)].putLong((int) (i & (SEGMENTSLOTS - 1)) * SLOTSIZE, key);
+   }
+
+   private void putCount (long i, int count) {
+      segments[(int) (i >>> SEGMENTBITS)].putInt((int) (i & (SEGMENTSLOTS - 1)) * SLOTSIZE + 8, count);
+   }
+
+   private static long slot (long hash, long mask) {
+      return (hash * 0x9E3779B97F4A7C15L >>> 20) & mask;
+   }
+
+}
@@ -0,0 +1,174 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+
+import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
+import de.uni_stuttgart.ims.nlpbase.tools.TokenizerStanford;
+
+
+/**
+ * Tokenizers that are created once and used again
+ * for all files, settings and threads of one run
+ * (a tokenizer is not thread-safe and may be expensive to create).
+ *
+ * A thread takes a tokenizer with acquire, uses it alone
+ * and gives it back with release; the next acquire
+ * (of any thread) gets the same tokenizer again.
+ * New tokenizers are created when none is free,
+ * at most maxTokenizers of each type (acquire waits for a free one then).
+ *
+ * The time spent in acquire (waiting for a free tokenizer
+ * or creating a new one) is counted, see getStatistics.
+ */
+public class TokenizerPool {
+
+
+   public enum TokenizerType { stanford, fast };
+
+
+   /**
+    * Maximum number of tokenizers of one type,
+    * 0 for no limit (a new one is created when none is free).
+    * Do not use a limit if the threads wait for each other
+    * while they keep their tokenizers (e.g. forks that are joined later).
+    */
+   public static int maxTokenizers = 0;
+
+
+   private static final EnumMap<TokenizerType, TokenizerPool> pools = new EnumMap<TokenizerType, TokenizerPool>(TokenizerType.class);
+
+
+
+   private TokenizerType type;
+
+   /**
+    * Tokenizers that are not used at the moment.
+    */
+   private ArrayDeque<Tokenizer> free = new ArrayDeque<Tokenizer>();
+
+   private int numberCreated = 0;
+   private long numberAcquired = 0;
+   private long numberWaited = 0;
+   private long waitTime = 0;
+   private long maxWaitTime = 0;
+
+
+
+   private TokenizerPool (TokenizerType type) {
+      this.type = type;
+   }
+
+
+
+   /**
+    * Get a tokenizer of this type for the calling thread.
+    * Give it back with release when it is not used any more.
+    *
+    * @param type
+    */
+   public static Tokenizer acquire (TokenizerType type) {
+      return getPool(type).take();
+   }
+
+
+   /**
+    * Give back a tokenizer from acquire
+    * (nothing happens for null).
+    *
+    * @param tokenizer
+    */
+   public static void release (Tokenizer tokenizer) {
+      if (tokenizer == null)
+         return;
+      getPool((tokenizer instanceof FastTokenizer) ? TokenizerType.fast : TokenizerType.stanford).putBack(tokenizer);
+   }
+
+
+   /**
+    * Number of tokenizers and time spent waiting for them
+    * for all types that were used.
+    */
+   public static String getStatistics () {
+      StringBuilder sb = new StringBuilder();
+      synchronized (pools) {
+         for (TokenizerPool pool : pools.values()) {
+            if (sb.length() > 0)
+               sb.append("\n");
+            sb.append(pool.getPoolStatistics());
+         }
+      }
+      return sb.toString();
+   }
+
+
+
+   private static TokenizerPool getPool (TokenizerType type) {
+      synchronized (pools) {
+         TokenizerPool pool = pools.get(type);
+         if (pool == null) {
+            pool = new TokenizerPool(type);
+            pools.put(type, pool);
+         }
+         return pool;
+      }
+   }
+
+
+   private Tokenizer take () {
+
+      long start = System.nanoTime();
+      Tokenizer tokenizer = null;
+      boolean waited = false;
+
+      synchronized (this) {
+         while (free.isEmpty() && maxTokenizers > 0 && numberCreated >= maxTokenizers) {
+            waited = true;
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               // create a new one instead
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         tokenizer = free.poll();
+         if (tokenizer == null)
+            numberCreated++;
+      }
+
+      // create outside of the lock, other threads may create at the same time
+      if (tokenizer == null)
+         tokenizer = (type == TokenizerType.fast) ? new FastTokenizer() : new TokenizerStanford();
+
+      long time = System.nanoTime() - start;
+      synchronized (this) {
+         numberAcquired++;
+         if (waited)
+            numberWaited++;
+         waitTime += time;
+         maxWaitTime = Math.max(maxWaitTime, time);
+      }
+      return tokenizer;
+   }
+
+
+   private synchronized void putBack (Tokenizer tokenizer) {
+      free.push(tokenizer);
+      notify();
+   }
+
+
+   private synchronized String getPoolStatistics () {
+      return "Tokenizer pool " + type + ": " + numberCreated + " tokenizers created, "
+            + numberAcquired + " acquired (" + numberWaited + " waited for a free one), "
+            + String.format("time in acquire %.1f ms (max %.1f ms)", waitTime / 1e6, maxWaitTime / 1e6);
+   }
+
+}
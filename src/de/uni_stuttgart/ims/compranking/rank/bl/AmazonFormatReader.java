@@ -10,16 +10,77 @@
 
 package de.uni_stuttgart.ims.compranking.rank.bl;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
-
-public class AmazonFormatReader {
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import de.uni_stuttgart.ims.compranking.rank.DelimiterScanner;
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.InputFiles;
+import de.uni_stuttgart.ims.compranking.rank.TokenCountCache;
+
+
+/**
+ * Read reviews in the format of the Amazon downloader,
+ * one review per line.
+ * Lines that start with { are read as JSON objects
+ * (JSON lines format of the newer Amazon datasets, see JsonLineParser),
+ * so both formats can be given to the same consumers.
+ *
+ * Lines are scanned once at byte level for both the quoted CSV
+ * delimiter "," and the tab delimiter, Strings are only created
+ * for the fields that are actually requested from a review.
+ * The fields that are needed can be declared with setFields,
+ * the others are not touched (but a line is still only valid
+ * if it has the correct number of fields).
+ *
+ * Use getLine() to get a new Review object for every line,
+ * or next() / getReview() to reuse one Review for all lines
+ * (the fields are views of the input buffer, nothing is copied,
+ * the review is only valid until the next call of next()).
+ *
+ * @author kesslewd
+ *
+ */
+public class AmazonFormatReader implements Closeable {
+
+
+   /**
+    * How to access the input file.
+    * - stream: read through a buffered input stream
+    * - mapped: memory-map the file with FileChannel.map
+    */
+   public enum ReadMode { stream, mapped };
+
+   /**
+    * Fields of a review (see setFields).
+    */
+   public enum Field { id, product, reviewer, rating, title, text };
+
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * Size of one mapped window in mapped mode
+    * (files larger than this are mapped window by window).
+    */
+   private static final int MAPWINDOWSIZE = 1 << 28;
+
+   /**
+    * Size of the read buffer in stream mode.
+    */
+   private static final int STREAMBUFFERSIZE = 1 << 16;
 
 
    //private int correctpartslength = 8; // OLD amazon format
@@ -28,78 +89,628 @@ public class AmazonFormatReader {
 
    private boolean useMyOwnID = true; // generate own ID, discard those found in Amazon file
 
+   private EnumSet<Field> fields = EnumSet.allOf(Field.class);
 
-   String prefix;
 
-   BufferedReader br = null;
+   private String filename;
+   String prefix;
+   private int fileIndex;
 
    int lineno = 0;
 
+   /**
+    * Index of every file prefix (for the numeric review keys).
+    */
+   private static HashMap<String, Integer> fileIndexes = new HashMap<String, Integer>();
+   private static List<String> filePrefixes = new ArrayList<String>();
+
+   /**
+    * The review that is reused by next().
+    */
+   private Review current = new Review();
+
+   /**
+    * The stream buffer as ByteBuffer (stream mode, for reused reviews).
+    */
+   private ByteBuffer streamView = null;
+
+   private ReadMode readMode;
+
+
+   // stream mode
+   private InputStream in = null;
+   private byte[] streamBuffer;
+   private int streamLimit = 0;
+   private boolean streamEOF = false;
+
+   // review store
+   private ReviewStore store = null;
+
+   // mapped mode
+   private FileChannel channel = null;
+   private ByteBuffer window = null;
+   private long windowStart = 0;
+   private long rangeEnd = 0;
+   private long fileSize = 0;
+
+   /**
+    * Current read position (in stream buffer or mapped window).
+    */
+   private int pos = 0;
+
+   /**
+    * Positions of the delimiters in the current line
+    * (reused for every line).
+    */
+   private int[] csvDelims = new int[16];
+   private int[] tabDelims = new int[16];
 
+   private JsonLineParser json = null;
+
+
+
+   /**
+    * Read reviews from this file (stream mode).
+    *
+    * @param csvFilename
+    */
    public AmazonFormatReader(String csvFilename) {
+      this(csvFilename, ReadMode.stream);
+   }
+
+
+   /**
+    * Read reviews from this file.
+    * If the file is a review store (see ReviewStore),
+    * the reviews are read from the store.
+    * Gzipped files (.gz) are always read in stream mode.
+    *
+    * @param csvFilename
+    * @param readMode
+    */
+   public AmazonFormatReader(String csvFilename, ReadMode readMode) {
+
+      if (InputFiles.isGzip(csvFilename))
+         readMode = ReadMode.stream;
+      this.readMode = readMode;
+      this.filename = csvFilename;
 
       // open input file
       try {
-         br = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(csvFilename)), Charset.forName("UTF-8")));
-      } catch (FileNotFoundException e) {
-         e.printStackTrace();
+         if (ReviewStore.isStore(csvFilename)) {
+            store = new ReviewStore(csvFilename);
+         } else if (readMode == ReadMode.mapped) {
+            channel = new RandomAccessFile(csvFilename, "r").getChannel();
+            fileSize = channel.size();
+            rangeEnd = fileSize;
+            mapWindow(0);
+         } else {
+            in = InputFiles.openInputStream(csvFilename);
+            streamBuffer = new byte[STREAMBUFFERSIZE];
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException("ERROR while opening file " + csvFilename, e);
       }
 
-      int tmp = csvFilename.lastIndexOf('/');
-      prefix = csvFilename.substring(Math.max(0, tmp+1), Math.max(0, csvFilename.indexOf('.', tmp))) + "-";
+      prefix = getFilePrefix(csvFilename);
+      fileIndex = getFileIndex(prefix);
 
       System.out.println("open file " + csvFilename);
    }
 
-   public static class Review {
-      public String id = null;
-      public String productid = null;
-      public String title = null;
-      public String text = null;
+
+   /**
+    * Read reviews from a part of this file (mapped mode).
+    * The part has to start at the beginning of a line and end after a line.
+    *
+    * @param csvFilename
+    * @param start first byte of the part
+    * @param end end of the part (exclusive)
+    * @param firstLineno number of lines in the file before this part
+    *    (for the fallback IDs)
+    */
+   public AmazonFormatReader(String csvFilename, long start, long end, int firstLineno) {
+
+      this.readMode = ReadMode.mapped;
+      this.lineno = firstLineno;
+      this.filename = csvFilename;
+
+      // open input file
+      try {
+         channel = new RandomAccessFile(csvFilename, "r").getChannel();
+         fileSize = channel.size();
+         rangeEnd = Math.min(end, fileSize);
+         mapWindow(start);
+      } catch (IOException e) {
+         throw new UncheckedIOException("ERROR while opening file " + csvFilename, e);
+      }
+
+      prefix = getFilePrefix(csvFilename);
+      fileIndex = getFileIndex(prefix);
+   }
+
+
+   /**
+    * Read reviews from a block of lines of this file that is already
+    * in memory (see LinePipeline), nothing is read from disk.
+    *
+    * @param csvFilename the file of the block (for the IDs)
+    * @param bytes
+    * @param length number of bytes in the block
+    * @param firstLineno number of lines in the file before this block
+    */
+   AmazonFormatReader(String csvFilename, byte[] bytes, int length, int firstLineno) {
+
+      this.readMode = ReadMode.mapped;
+      this.lineno = firstLineno;
+      this.filename = csvFilename;
+
+      window = ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.nativeOrder());
+      fileSize = length;
+      rangeEnd = length;
+
+      prefix = getFilePrefix(csvFilename);
+      fileIndex = getFileIndex(prefix);
+   }
+
+
+   /**
+    * Read reviews from a range of records of a review store.
+    *
+    * @param storeFilename
+    * @param firstRecord
+    * @param endRecord end of the range (exclusive)
+    * @throws IOException
+    */
+   public AmazonFormatReader(String storeFilename, long firstRecord, long endRecord) throws IOException {
+      this.readMode = ReadMode.mapped;
+      this.filename = storeFilename;
+      this.store = new ReviewStore(storeFilename, firstRecord, endRecord);
+   }
+
+
+
+   /**
+    * Ignore lines that do not have the correct format silently
+    * (otherwise they are printed).
+    *
+    * @param ignoreformaterrors
+    */
+   public void setIgnoreFormatErrors (boolean ignoreformaterrors) {
+      this.ignoreformaterrors = ignoreformaterrors;
+   }
+
+
+   /**
+    * Only these fields of the reviews are used
+    * (asking a review for other fields throws an IllegalStateException).
+    * Review stores do not read title and text if they are not needed.
+    * Default: all fields.
+    *
+    * @param fields
+    */
+   public void setFields (EnumSet<Field> fields) {
+      this.fields = fields;
+      if (store != null)
+         store.setReadTexts(fields.contains(Field.title) || fields.contains(Field.text));
+   }
+
+
+   /**
+    * Number of lines read so far.
+    * @return
+    */
+   public int getLineNumber () {
+      return lineno;
    }
 
 
+   /**
+    * Position in the file of the next line (mapped mode).
+    */
+   long getPosition () {
+      return Math.min(windowStart + pos, fileSize);
+   }
+
+
+   /**
+    * Continue reading with another part of the file (mapped mode).
+    * The part has to start at the beginning of a line and end after a line.
+    * If the part is in the current window, it is not mapped again.
+    *
+    * @param start first byte of the part
+    * @param end end of the part (exclusive)
+    * @param firstLineno number of lines in the file before this part
+    * @throws IOException
+    */
+   void setRange (long start, long end, int firstLineno) throws IOException {
+      rangeEnd = Math.min(end, fileSize);
+      lineno = firstLineno;
+      if (window != null && start >= windowStart && rangeEnd <= windowStart + window.limit())
+         pos = (int) (start - windowStart);
+      else
+         mapWindow(start);
+   }
+
+
+
+   /**
+    * One review (= one line of the input file).
+    *
+    * Only the positions of the fields are stored,
+    * the Strings are created when asked for.
+    */
+   public static class Review {
+
+      ByteBuffer buf = null;
+      ByteBuffer productBuf = null;
+      ByteBuffer lineBuf = null;
+
+      String prefix;
+      int fileIndex;
+      int recordNumber;
+      boolean valid = false;
+      boolean useMyOwnID = true;
+      EnumSet<Field> fields;
+
+      int lineStart, lineEnd;
+      int idStart, idEnd;
+      int productStart, productEnd;
+      int reviewerStart, reviewerEnd;
+      int ratingStart, ratingEnd;
+      int titleStart, titleEnd;
+      int textStart, textEnd;
+
+      String id = null;
+      String productid = null;
+      String title = null;
+      String text = null;
+      double rating = Double.NaN;
+      long fingerprint = 0;
+
+      private ByteSlice productView = null;
+      private ByteSlice titleView = null;
+      private ByteSlice textView = null;
+
+
+      /**
+       * Forget the fields of the previous line (for reuse).
+       */
+      void reset () {
+         valid = false;
+         id = null;
+         productid = null;
+         title = null;
+         text = null;
+         rating = Double.NaN;
+         fingerprint = 0;
+      }
+
+
+      /**
+       * False if the line does not have the correct format.
+       * @return
+       */
+      public boolean isValid () {
+         return valid;
+      }
+
+      public String getId () {
+         if (id == null) {
+            if (idEnd > idStart & !useMyOwnID & fields.contains(Field.id))
+               id = decode(buf, idStart, idEnd);
+            else
+               id = prefix + recordNumber; // fallback id
+         }
+         return id;
+      }
+
+      /**
+       * Numeric key of this review (index of the file, see getFileIndex,
+       * and line number), the same information as the fallback ID
+       * without creating a String.
+       */
+      public long getKey () {
+         return ((long) fileIndex << 32) | (recordNumber & 0xffffffffL);
+      }
+
+      /**
+       * 64-bit hash of product ID, reviewer ID and text
+       * (the same review in several files has the same fingerprint,
+       * see FingerprintSet).
+       */
+      public long getFingerprint () {
+         if (fingerprint == 0) {
+            check(Field.product);
+            check(Field.reviewer);
+            check(Field.text);
+            long h = FingerprintSet.hash(FingerprintSet.SEED, productBuf, productStart, productEnd);
+            h = FingerprintSet.hash(h, buf, reviewerStart, reviewerEnd);
+            fingerprint = FingerprintSet.hash(h, buf, textStart, textEnd);
+         }
+         return fingerprint;
+      }
+
+      /**
+       * 64-bit hash of the text (see TokenCountCache).
+       */
+      public long getTextHash () {
+         check(Field.text);
+         return TokenCountCache.hash(buf, textStart, textEnd);
+      }
+
+      public String getProductID () {
+         if (productid == null) {
+            check(Field.product);
+            productid = decode(productBuf, productStart, productEnd);
+         }
+         return productid;
+      }
 
+      /**
+       * The product ID as view of the input bytes
+       * (reused, valid until the next line is read).
+       */
+      public ByteSlice getProductIDView () {
+         check(Field.product);
+         if (productView == null)
+            productView = new ByteSlice();
+         return productView.set(productBuf, productStart, productEnd);
+      }
+
+      /**
+       * The title as view of the input bytes
+       * (reused, valid until the next line is read).
+       */
+      public ByteSlice getTitleView () {
+         check(Field.title);
+         if (titleView == null)
+            titleView = new ByteSlice();
+         return titleView.set(buf, titleStart, titleEnd);
+      }
+
+      /**
+       * The text as view of the input bytes
+       * (reused, valid until the next line is read).
+       */
+      public ByteSlice getTextView () {
+         check(Field.text);
+         if (textView == null)
+            textView = new ByteSlice();
+         return textView.set(buf, textStart, textEnd);
+      }
+
+      public String getTitle () {
+         if (title == null) {
+            check(Field.title);
+            title = decode(buf, titleStart, titleEnd);
+         }
+         return title;
+      }
+
+      public String getText () {
+         if (text == null) {
+            check(Field.text);
+            text = decode(buf, textStart, textEnd);
+         }
+         return text;
+      }
+
+      public double getRating () {
+         if (Double.isNaN(rating)) {
+            check(Field.rating);
+            rating = parseDouble(buf, ratingStart, ratingEnd);
+         }
+         return rating;
+      }
+
+      /**
+       * Fields that were not requested from the reader
+       * are not valid (e.g. not read from a review store).
+       */
+      private void check (Field field) {
+         if (!fields.contains(field))
+            throw new IllegalStateException("Field " + field + " was not requested from the reader (see setFields)");
+      }
+
+   }
 
+
+
+   /**
+    * Read the next review.
+    *
+    * @return the next review (check isValid() for format errors),
+    *    null at the end of the file
+    */
    public Review getLine () {
+      Review myreview = new Review();
+      if (!read(myreview, true))
+         return null;
+      return myreview;
+   }
 
-      String strLine = null;
 
-      lineno++;
+   /**
+    * Go to the next review, get it with getReview()
+    * (the same Review object is reused for all lines).
+    *
+    * @return false at the end of the file
+    * @throws UncheckedIOException if the file cannot be read
+    *    (e.g. a truncated gzip file), this is not the end of the file
+    */
+   public boolean next () {
+      current.reset();
+      return read(current, false);
+   }
+
+
+   /**
+    * The current review (after next()).
+    * The review and its views are only valid until the next call of next().
+    *
+    * @return
+    */
+   public Review getReview () {
+      return current;
+   }
+
+
+
+   /**
+    * Read the next line into this review.
+    *
+    * @param myreview
+    * @param copy in stream mode, copy the line
+    *    (otherwise the review points into the stream buffer)
+    * @return false at the end of the file
+    */
+   private boolean read (Review myreview, boolean copy) {
+
+      myreview.useMyOwnID = useMyOwnID;
+      myreview.fields = fields;
+
+      if (store != null)
+         return readRecord(myreview);
 
       // Read line (= 1 review)
-      // If this fails or the line is null,
-      // -> return null
+      // If there is no more line -> return false,
+      // if reading fails, stop (this is not the end of the file)
+      int lineEnd = -1;
       try {
-         strLine = br.readLine();
-         //System.out.println("get line =" + strLine + "=");
-      } catch (IOException e1) {
-         // TODO Auto-generated catch block
-         e1.printStackTrace();
-         return null;
+         lineEnd = findLineEnd();
+      } catch (IOException e) {
+         throw new UncheckedIOException("ERROR while reading line " + (lineno+1) + " of file " + filename, e);
       }
-      if (strLine == null)
-         return null;
+      if (lineEnd < 0)
+         return false;
+
+      lineno++;
+
+      ByteBuffer buf = (readMode == ReadMode.stream) ? getStreamView() : window;
+      int lineStart = pos;
+      pos = lineEnd + 1;
 
+      // clip off \r of \r\n
+      if (lineEnd > lineStart && buf.get(lineEnd-1) == '\r')
+         lineEnd--;
+
+      // In stream mode the buffer is overwritten on the next read,
+      // so keep a copy of the line
+      if (readMode == ReadMode.stream && copy) {
+         buf = ByteBuffer.wrap(Arrays.copyOfRange(streamBuffer, lineStart, lineEnd));
+         lineEnd -= lineStart;
+         lineStart = 0;
+      }
 
       // Otherwise, let's create a review
-      Review myreview = new Review();
+      myreview.buf = buf;
+      myreview.productBuf = buf;
+      myreview.prefix = prefix;
+      myreview.fileIndex = fileIndex;
+      myreview.recordNumber = lineno-1;
+      myreview.lineBuf = buf;
+      myreview.lineStart = lineStart;
+      myreview.lineEnd = lineEnd;
+
+      if (JsonLineParser.isJson(buf, lineStart, lineEnd))
+         parseJsonLine(buf, lineStart, lineEnd, myreview, copy);
+      else
+         parseLine(buf, lineStart, lineEnd, myreview);
+
+      return true;
+   }
+
+
+
+   /**
+    * Read the next review from the review store.
+    *
+    * @param myreview
+    * @return false at the end of the store
+    */
+   private boolean readRecord (Review myreview) {
+      try {
+         if (!store.next(myreview))
+            return false;
+      } catch (IOException e) {
+         throw new UncheckedIOException("ERROR while reading record " + (lineno+1) + " of review store " + filename, e);
+      }
+      lineno++;
+      return true;
+   }
+
+
+
+   /**
+    * Get the fields from a JSON line.
+    *
+    * @param copy the review is kept after the next line
+    */
+   private void parseJsonLine (ByteBuffer buf, int lineStart, int lineEnd, Review myreview, boolean copy) {
+      if (json == null)
+         json = new JsonLineParser();
+      if (!json.parse(buf, lineStart, lineEnd, myreview, fields, copy) && !ignoreformaterrors)
+         System.out.println("JSON error -- ignore line " + decode(buf, lineStart, lineEnd));
+   }
+
 
-      // Split at "," (delims)
-      // if this doesn't give the correct number of parts,
-      // try split at \t (for "all" format)
-      String[] parts = strLine.split("\",\"");
-      if (parts.length != correctpartslength) {
-         parts = strLine.split("\t");
+
+   /**
+    * Split the line into fields.
+    *
+    * Split at "," (delims),
+    * if this doesn't give the correct number of parts,
+    * try split at \t (for "all" format).
+    * Both delimiters are found in the same pass.
+    *
+    * @param buf
+    * @param lineStart
+    * @param lineEnd
+    * @param myreview
+    */
+   private void parseLine (ByteBuffer buf, int lineStart, int lineEnd, Review myreview) {
+
+      int numberCsv = 0;
+      int numberTab = 0;
+
+      int i = lineStart;
+      while ((i = DelimiterScanner.nextTabOrQuote(buf, i, lineEnd)) < lineEnd) {
+         byte b = buf.get(i);
+         if (b == '\t') {
+            if (numberTab == tabDelims.length)
+               tabDelims = Arrays.copyOf(tabDelims, numberTab*2);
+            tabDelims[numberTab++] = i;
+         } else if (b == '"' && i+2 < lineEnd && buf.get(i+1) == ',' && buf.get(i+2) == '"') {
+            if (numberCsv == csvDelims.length)
+               csvDelims = Arrays.copyOf(csvDelims, numberCsv*2);
+            csvDelims[numberCsv++] = i;
+            i += 3; // delimiters do not overlap
+            continue;
+         }
+         i++;
+      }
+
+      boolean splitTab = false;
+      int[] delims = csvDelims;
+      int numberDelims = numberCsv;
+      int delimLength = 3;
+      int numberParts = countParts(lineStart, lineEnd, delims, numberDelims, delimLength);
+      if (numberParts != correctpartslength) {
+         splitTab = true;
+         delims = tabDelims;
+         numberDelims = numberTab;
+         delimLength = 1;
+         numberParts = countParts(lineStart, lineEnd, delims, numberDelims, delimLength);
       }
 
       // Ignore things that are not reviews
       // (there are some errors in the extraction script)
       // -> return an empty review
-      if (parts.length != correctpartslength ) {
+      if (numberParts != correctpartslength) {
          if (!ignoreformaterrors)
-            System.out.println(parts.length + " parts -- ignore line " + Arrays.toString(parts));
-         return myreview;
+            System.out.println(numberParts + " parts -- ignore line " + decode(buf, lineStart, lineEnd));
+         return;
       }
 
 
@@ -115,22 +726,284 @@ public class AmazonFormatReader {
       // "0","XX","0061785679","5.0","0","0","February 9, 2015","A3GZG3F23DL9U1","Five Stars","Loved it"
 
 
-      // Get parts (id, title, text, product)
-      if (!parts[0].trim().isEmpty() & !useMyOwnID)
-         myreview.id = parts[0].substring(1); // clip of first "
-      else
-         myreview.id = prefix + (lineno-1); // fallback id
+      // Get parts (id, title, text, product, reviewer, rating)
+      myreview.idStart = lineStart + 1; // clip of first "
+      myreview.idEnd = delims[0];
+      if (!useMyOwnID && fields.contains(Field.id)) {
+         if (delims[0] == lineStart || isBlank(buf, lineStart, delims[0]))
+            myreview.idEnd = myreview.idStart; // empty id, use fallback
+      }
 
-      myreview.productid = parts[2];
+      myreview.productStart = delims[1] + delimLength;
+      myreview.productEnd = delims[2];
 
-      myreview.text = parts[parts.length-1];
-      myreview.text = myreview.text.substring(0, myreview.text.length()-1); // clip of last "
+      int reviewerPart = (splitTab) ? 3 : 7;
+      myreview.reviewerStart = delims[reviewerPart-1] + delimLength;
+      myreview.reviewerEnd = delims[reviewerPart];
+
+      int ratingPart = (splitTab) ? 6 : 3;
+      myreview.ratingStart = delims[ratingPart-1] + delimLength;
+      myreview.ratingEnd = delims[ratingPart];
+
+      myreview.titleStart = delims[numberParts-3] + delimLength;
+      myreview.titleEnd = delims[numberParts-2];
+
+      myreview.textStart = delims[numberParts-2] + delimLength;
+      myreview.textEnd = partEnd(lineEnd, delims, numberDelims, numberParts-1) - 1; // clip of last "
+
+      myreview.valid = true;
+   }
+
+
+
+   /**
+    * Number of parts when splitting at these delimiters,
+    * trailing empty parts are removed (like String.split).
+    */
+   private static int countParts (int lineStart, int lineEnd, int[] delims, int numberDelims, int delimLength) {
+      int numberParts = numberDelims + 1;
+      while (numberParts > 1) {
+         int start = delims[numberParts-2] + delimLength;
+         if (partEnd(lineEnd, delims, numberDelims, numberParts-1) > start)
+            break;
+         numberParts--;
+      }
+      return numberParts;
+   }
+
+   /**
+    * End of this part (next delimiter or end of line).
+    */
+   private static int partEnd (int lineEnd, int[] delims, int numberDelims, int part) {
+      return (part < numberDelims) ? delims[part] : lineEnd;
+   }
 
-      return myreview;
 
+
+   /**
+    * Find the end of the next line (position of \n or end of input)
+    * starting from the current position,
+    * refill the buffer or map the next window if necessary.
+    *
+    * @return position of the line end, -1 if there are no more lines
+    * @throws IOException
+    */
+   private int findLineEnd () throws IOException {
+
+      if (readMode == ReadMode.mapped) {
+         if (window == null)
+            return -1;
+         while (true) {
+            int limit = (int) Math.min(window.limit(), rangeEnd - windowStart);
+            int i = DelimiterScanner.nextNewline(window, pos, limit);
+            if (i < limit)
+               return i;
+            // no newline in the rest of the window
+            if (windowStart + limit >= rangeEnd) {
+               // last line without newline
+               return (pos < limit) ? limit : -1;
+            }
+            if (pos == 0 && limit == MAPWINDOWSIZE)
+               throw new IOException("Line longer than " + MAPWINDOWSIZE + " bytes at offset " + windowStart);
+            mapWindow(windowStart + pos);
+         }
+      } else {
+         if (in == null)
+            return -1;
+         int searchFrom = pos;
+         while (true) {
+            int i = DelimiterScanner.nextNewline(getStreamView(), searchFrom, streamLimit);
+            if (i < streamLimit)
+               return i;
+            if (streamEOF) {
+               return (pos < streamLimit) ? streamLimit : -1;
+            }
+            // move rest of the line to the front, grow if needed
+            int rest = streamLimit - pos;
+            if (pos == 0 && rest == streamBuffer.length)
+               streamBuffer = Arrays.copyOf(streamBuffer, streamBuffer.length*2);
+            else
+               System.arraycopy(streamBuffer, pos, streamBuffer, 0, rest);
+            pos = 0;
+            streamLimit = rest;
+            searchFrom = rest;
+            int read = in.read(streamBuffer, streamLimit, streamBuffer.length - streamLimit);
+            if (read < 0)
+               streamEOF = true;
+            else
+               streamLimit += read;
+         }
+      }
+   }
+
+
+   /**
+    * View of the stream buffer (created again when the buffer grows).
+    */
+   private ByteBuffer getStreamView () {
+      if (streamView == null || streamView.array() != streamBuffer)
+         streamView = ByteBuffer.wrap(streamBuffer).order(ByteOrder.nativeOrder());
+      return streamView;
+   }
+
+
+   /**
+    * Map the window of the file starting at this offset.
+    *
+    * @param offset
+    * @throws IOException
+    */
+   private void mapWindow (long offset) throws IOException {
+      long length = Math.min(MAPWINDOWSIZE, fileSize - offset);
+      windowStart = offset;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      window.order(ByteOrder.nativeOrder()); // for DelimiterScanner
+      pos = 0;
+   }
+
+
+
+   /**
+    * Close the input file.
+    */
+   public void close () {
+      try {
+         if (in != null)
+            in.close();
+         if (channel != null)
+            channel.close();
+         if (store != null)
+            store.close();
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      window = null;
+   }
+
+
+
+   // REVIEW KEYS
+
+   /**
+    * Prefix of the fallback IDs of the reviews in this file
+    * (file name up to the first dot, plus "-").
+    *
+    * @param csvFilename
+    */
+   public static String getFilePrefix (String csvFilename) {
+      int tmp = csvFilename.lastIndexOf('/');
+      return csvFilename.substring(Math.max(0, tmp+1), Math.max(0, csvFilename.indexOf('.', tmp))) + "-";
+   }
+
+
+   /**
+    * Index of the file with this prefix (for the numeric review keys),
+    * every prefix gets the next free index when it is first seen.
+    *
+    * @param prefix
+    */
+   public static synchronized int getFileIndex (String prefix) {
+      Integer index = fileIndexes.get(prefix);
+      if (index == null) {
+         index = filePrefixes.size();
+         fileIndexes.put(prefix, index);
+         filePrefixes.add(prefix);
+      }
+      return index;
+   }
+
+
+   /**
+    * All file prefixes that have an index (the index is the position in the list).
+    */
+   public static synchronized List<String> getFilePrefixes () {
+      return new ArrayList<String>(filePrefixes);
+   }
+
+
+   /**
+    * Give the file prefixes the indexes of an earlier run
+    * (so keys that were stored, e.g. in a checkpoint, stay valid).
+    * Call before any file is read.
+    *
+    * @param prefixes the prefixes in index order (see getFilePrefixes)
+    * @return false if a prefix has another index already
+    */
+   public static synchronized boolean restoreFilePrefixes (List<String> prefixes) {
+      boolean ok = true;
+      for (int i=0; i<prefixes.size(); i++) {
+         if (getFileIndex(prefixes.get(i)) != i)
+            ok = false;
+      }
+      return ok;
+   }
+
+
+   /**
+    * The fallback ID (prefix + line number) of the review with this key.
+    *
+    * @param key
+    */
+   public static synchronized String getId (long key) {
+      return filePrefixes.get((int) (key >>> 32)) + (int) key;
+   }
+
+
+
+   // HELPERS
+
+
+   /**
+    * Create a String from the UTF-8 bytes in the buffer.
+    */
+   static String decode (ByteBuffer buf, int start, int end) {
+      if (end <= start)
+         return "";
+      if (buf.hasArray())
+         return new String(buf.array(), buf.arrayOffset() + start, end - start, UTF8);
+      byte[] bytes = new byte[end - start];
+      for (int i=start; i<end; i++)
+         bytes[i-start] = buf.get(i);
+      return new String(bytes, UTF8);
+   }
+
+
+   private static boolean isBlank (ByteBuffer buf, int start, int end) {
+      for (int i=start; i<end; i++) {
+         if (buf.get(i) > ' ')
+            return false;
+      }
+      return true;
    }
 
 
+   /**
+    * Parse a number like 5.0 directly from the bytes,
+    * anything unusual is handled by Double.parseDouble.
+    */
+   static double parseDouble (ByteBuffer buf, int start, int end) {
+      long mantissa = 0;
+      int decimals = 0;
+      boolean seenPoint = false;
+      boolean ok = end > start & end - start < 16;
+      for (int i=start; i<end & ok; i++) {
+         byte b = buf.get(i);
+         if (b >= '0' && b <= '9') {
+            mantissa = mantissa * 10 + (b - '0');
+            if (seenPoint)
+               decimals++;
+         } else if (b == '.' && !seenPoint) {
+            seenPoint = true;
+         } else {
+            ok = false;
+         }
+      }
+      if (ok) // exact: both numbers are representable, one rounding step
+         return mantissa / POWERSOFTEN[decimals];
+      return Double.parseDouble(decode(buf, start, end).trim());
+   }
+
+   private static final double[] POWERSOFTEN = new double[] {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16};
 
 
 
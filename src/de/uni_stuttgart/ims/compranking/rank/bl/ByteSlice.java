@@ -0,0 +1,147 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * View of a part of a buffer with UTF-8 text (e.g. one field of a review),
+ * no bytes are copied.
+ *
+ * As CharSequence, every byte is one character,
+ * this is exact for ASCII (e.g. product IDs);
+ * use toString() to decode other text.
+ *
+ * The view is reused by the reader, it is only valid until the
+ * next review is read.
+ */
+public class ByteSlice implements CharSequence {
+
+   private ByteBuffer buf;
+   private int start;
+   private int end;
+
+
+   ByteSlice () {
+   }
+
+   ByteSlice (ByteBuffer buf, int start, int end) {
+      set(buf, start, end);
+   }
+
+
+   ByteSlice set (ByteBuffer buf, int start, int end) {
+      this.buf = buf;
+      this.start = start;
+      this.end = Math.max(start, end);
+      return this;
+   }
+
+
+   /**
+    * The buffer with the bytes.
+    */
+   public ByteBuffer getBuffer () {
+      return buf;
+   }
+
+   /**
+    * Position of the first byte in the buffer.
+    */
+   public int getStart () {
+      return start;
+   }
+
+   /**
+    * Position after the last byte in the buffer.
+    */
+   public int getEnd () {
+      return end;
+   }
+
+   /**
+    * Byte at this position of the slice.
+    */
+   public byte byteAt (int index) {
+      return buf.get(start + index);
+   }
+
+
+   public int length () {
+      return end - start;
+   }
+
+   public char charAt (int index) {
+      return (char) (buf.get(start + index) & 0xff);
+   }
+
+   public CharSequence subSequence (int from, int to) {
+      return new ByteSlice(buf, start + from, start + to);
+   }
+
+
+   /**
+    * True if the slice has exactly these bytes
+    * (e.g. the UTF-8 encoding of a String, nothing is decoded).
+    *
+    * @param bytes
+    */
+   public boolean contentEquals (byte[] bytes) {
+      if (bytes.length != end - start)
+         return false;
+      for (int i=0; i<bytes.length; i++) {
+         if (buf.get(start + i) != bytes[i])
+            return false;
+      }
+      return true;
+   }
+
+
+   /**
+    * Hash over the bytes (equal to String.hashCode() for ASCII).
+    */
+   public int hashCode () {
+      return hash(buf, start, end);
+   }
+
+   public boolean equals (Object o) {
+      if (!(o instanceof ByteSlice))
+         return false;
+      ByteSlice other = (ByteSlice) o;
+      if (other.length() != length())
+         return false;
+      for (int i=0; i<length(); i++) {
+         if (byteAt(i) != other.byteAt(i))
+            return false;
+      }
+      return true;
+   }
+
+   static int hash (ByteBuffer buf, int start, int end) {
+      int h = 0;
+      for (int i=start; i<end; i++)
+         h = 31 * h + (buf.get(i) & 0xff);
+      return h;
+   }
+
+   static int hash (byte[] bytes) {
+      int h = 0;
+      for (byte b : bytes)
+         h = 31 * h + (b & 0xff);
+      return h;
+   }
+
+
+   /**
+    * Decode the bytes (UTF-8).
+    */
+   public String toString () {
+      return AmazonFormatReader.decode(buf, start, end);
+   }
+
+}
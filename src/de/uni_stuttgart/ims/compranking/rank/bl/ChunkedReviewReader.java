@@ -0,0 +1,703 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.Flow;
+import de.uni_stuttgart.ims.compranking.rank.InputFiles;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline.Block;
+import de.uni_stuttgart.ims.compranking.rank.ProductIndex;
+import de.uni_stuttgart.ims.compranking.rank.ProductIndex.Range;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Process one file of Amazon reviews with several threads.
+ *
+ * The file is split into byte ranges that start at the beginning of a line,
+ * every range is read by its own AmazonFormatReader and counted by
+ * its own fork of the consumer. The forks are joined in file order.
+ *
+ * The line numbers before every range are counted first (in parallel),
+ * so the fallback review IDs (prefix + lineno) are the same
+ * as when reading the file sequentially.
+ * Review stores are split into ranges of records
+ * (the records contain the line numbers).
+ *
+ * Reviews that were seen before (in this or another file)
+ * can be dropped before they reach the consumer,
+ * see FingerprintSet.
+ *
+ * Several files can also be read as one stream of blocks
+ * (processPipelined), then every block gets its own fork,
+ * or at the same time with one fork per file (processFiles).
+ */
+public class ChunkedReviewReader {
+
+
+   /**
+    * Size of the mapped blocks for counting lines.
+    */
+   private static final int COUNTBLOCKSIZE = 1 << 26;
+
+
+   /**
+    * A part of a file.
+    */
+   public static class Chunk {
+      public long start;
+      public long end;
+      public int firstLineno = 0;
+      public int numberLines = 0;
+
+      public Chunk (long start, long end) {
+         this.start = start;
+         this.end = end;
+      }
+
+      public String toString () {
+         return start + "-" + end + " (line " + firstLineno + ")";
+      }
+   }
+
+
+
+   /**
+    * Read all reviews in the file and give them to the consumer.
+    *
+    * @param csvFile
+    * @param consumer
+    * @param numberThreads
+    * @param readMode used if the file is read sequentially
+    * @param ignoreformaterrors
+    * @return number of lines read
+    */
+   public static <T extends ReviewConsumer<T>> int process (String csvFile, T consumer, int numberThreads, ReadMode readMode, boolean ignoreformaterrors) {
+      return process(csvFile, consumer, numberThreads, readMode, ignoreformaterrors, (FingerprintSet) null);
+   }
+
+
+   /**
+    * Read all reviews in the file and give them to the consumer.
+    * With more than one thread, the file is split into parts
+    * and processed by forks of the consumer.
+    * Gzipped files are always read sequentially,
+    * and all files if duplicates are dropped (which of two duplicates
+    * is kept would depend on the threads otherwise).
+    * If the file or a part cannot be read completely (an error of the reader
+    * or fewer lines than counted when splitting), the other parts are cancelled
+    * and a RuntimeException is thrown (the consumer has incomplete counts).
+    *
+    * @param csvFile
+    * @param consumer
+    * @param numberThreads
+    * @param readMode used if the file is read sequentially
+    * @param ignoreformaterrors
+    * @param duplicates fingerprints of the reviews seen before,
+    *    reviews that are in the set are dropped, new ones are added
+    *    (null to give all reviews to the consumer)
+    * @return number of lines read
+    */
+   public static <T extends ReviewConsumer<T>> int process (String csvFile, T consumer, int numberThreads, ReadMode readMode, boolean ignoreformaterrors, FingerprintSet duplicates) {
+
+      // gzipped files cannot be split, they are decompressed in parallel instead;
+      // with duplicates, the first review in the file has to be the one that is kept
+      if (numberThreads <= 1 || InputFiles.isGzip(csvFile) || duplicates != null) {
+         AmazonFormatReader reader = new AmazonFormatReader(csvFile, readMode);
+         try {
+            return process(reader, consumer, ignoreformaterrors, duplicates);
+         } finally {
+            reader.close();
+         }
+      }
+
+      List<Chunk> chunks = null;
+      ExecutorService pool = Executors.newFixedThreadPool(numberThreads);
+      final boolean isStore = ReviewStore.isStore(csvFile);
+      try {
+         if (isStore)
+            chunks = splitStore(csvFile, numberThreads);
+         else
+            chunks = split(csvFile, numberThreads, pool);
+      } catch (Exception e) {
+         throw failed(csvFile, e, pool);
+      }
+
+      System.out.println("open file " + csvFile + " in " + chunks.size() + " parts");
+
+      // Process every part with its own fork
+      List<Future<T>> parts = new ArrayList<Future<T>>();
+      final String file = csvFile;
+      final boolean ignore = ignoreformaterrors;
+      final FingerprintSet seen = duplicates;
+      for (final Chunk chunk : chunks) {
+         final T part = consumer.fork();
+         parts.add(pool.submit(new Callable<T>() {
+            public T call() throws IOException {
+               AmazonFormatReader reader = null;
+               if (isStore)
+                  reader = new AmazonFormatReader(file, chunk.start, chunk.end);
+               else
+                  reader = new AmazonFormatReader(file, chunk.start, chunk.end, chunk.firstLineno);
+               int lines = 0;
+               try {
+                  lines = process(reader, part, ignore, seen);
+               } finally {
+                  reader.close();
+               }
+               // the lines were counted when the file was split,
+               // fewer lines means the part was not read completely
+               if (lines != chunk.numberLines)
+                  throw new IOException("read " + lines + " of " + chunk.numberLines + " lines of part " + chunk);
+               return part;
+            }
+         }));
+      }
+
+      // Join in file order
+      try {
+         for (Future<T> part : parts) {
+            consumer.join(part.get());
+         }
+      } catch (InterruptedException e) {
+         throw failed(csvFile, e, pool);
+      } catch (ExecutionException e) {
+         throw failed(csvFile, e, pool);
+      }
+      pool.shutdown();
+
+      Chunk last = chunks.get(chunks.size()-1);
+      return last.firstLineno + last.numberLines;
+   }
+
+
+
+   /**
+    * Read only the reviews of these products and give them to the consumer.
+    * The product index of the file (see ProductIndex) is used to
+    * skip the lines of all other products without reading them,
+    * it is created on the first run.
+    * Gzipped files, review stores and products == null
+    * are processed as a whole.
+    *
+    * @param csvFile
+    * @param consumer
+    * @param numberThreads
+    * @param readMode used if the file is processed as a whole
+    * @param ignoreformaterrors
+    * @param products
+    * @return number of lines read
+    */
+   public static <T extends ReviewConsumer<T>> int process (String csvFile, T consumer, int numberThreads, ReadMode readMode, boolean ignoreformaterrors, Collection<String> products) {
+      return process(csvFile, consumer, numberThreads, readMode, ignoreformaterrors, products, null);
+   }
+
+
+   /**
+    * Read only the reviews of these products and give them to the consumer,
+    * drop the reviews that were seen before.
+    *
+    * @param csvFile
+    * @param consumer
+    * @param numberThreads
+    * @param readMode used if the file is processed as a whole
+    * @param ignoreformaterrors
+    * @param products
+    * @param duplicates fingerprints of the reviews seen before
+    *    (null to give all reviews to the consumer)
+    * @return number of lines read
+    * @throws RuntimeException if a range cannot be read
+    *    (the consumer has incomplete counts)
+    */
+   public static <T extends ReviewConsumer<T>> int process (String csvFile, T consumer, int numberThreads, ReadMode readMode, boolean ignoreformaterrors, Collection<String> products, FingerprintSet duplicates) {
+
+      if (products == null || InputFiles.isGzip(csvFile) || ReviewStore.isStore(csvFile))
+         return process(csvFile, consumer, numberThreads, readMode, ignoreformaterrors, duplicates);
+
+      List<Range> ranges = getProductIndex(csvFile).getRanges(products);
+      if (ranges.isEmpty()) {
+         System.out.println("no relevant products in file " + csvFile);
+         return 0;
+      }
+
+      if (numberThreads <= 1 || duplicates != null) {
+         System.out.println("open file " + csvFile + " (" + ranges.size() + " ranges of relevant products)");
+         try {
+            return process(csvFile, ranges, consumer, ignoreformaterrors, duplicates);
+         } catch (IOException e) {
+            throw new RuntimeException("ERROR while reading file " + csvFile + ": " + e.getMessage(), e);
+         }
+      }
+
+      // Distribute the ranges over the threads (about the same size)
+      long size = 0;
+      for (Range range : ranges)
+         size += range.end - range.start;
+      long groupSize = size / numberThreads + 1;
+      List<List<Range>> groups = new ArrayList<List<Range>>();
+      List<Range> group = null;
+      long currentSize = 0;
+      for (Range range : ranges) {
+         if (group == null || currentSize >= groupSize) {
+            group = new ArrayList<Range>();
+            groups.add(group);
+            currentSize = 0;
+         }
+         group.add(range);
+         currentSize += range.end - range.start;
+      }
+
+      System.out.println("open file " + csvFile + " (" + ranges.size() + " ranges of relevant products) in " + groups.size() + " parts");
+
+      // Process every group with its own fork
+      ExecutorService pool = Executors.newFixedThreadPool(numberThreads);
+      List<Future<T>> parts = new ArrayList<Future<T>>();
+      final int[] groupLines = new int[groups.size()];
+      final String file = csvFile;
+      final boolean ignore = ignoreformaterrors;
+      final FingerprintSet seen = duplicates;
+      for (int i=0; i<groups.size(); i++) {
+         final T part = consumer.fork();
+         final List<Range> groupRanges = groups.get(i);
+         final int groupNumber = i;
+         parts.add(pool.submit(new Callable<T>() {
+            public T call() throws IOException {
+               groupLines[groupNumber] = process(file, groupRanges, part, ignore, seen);
+               return part;
+            }
+         }));
+      }
+
+      // Join in file order
+      int numberLines = 0;
+      try {
+         for (int i=0; i<parts.size(); i++) {
+            consumer.join(parts.get(i).get());
+            numberLines += groupLines[i];
+         }
+      } catch (InterruptedException e) {
+         throw failed(csvFile, e, pool);
+      } catch (ExecutionException e) {
+         throw failed(csvFile, e, pool);
+      }
+      pool.shutdown();
+
+      return numberLines;
+   }
+
+
+
+   /**
+    * What to do with one input file of processFiles.
+    *
+    * @param <T> the consumer
+    */
+   public interface FileTask<T> {
+
+      /**
+       * Read this file into this fork of the consumer.
+       *
+       * @param part
+       * @param csvFile
+       */
+      public void analyze (T part, String csvFile);
+   }
+
+
+   /**
+    * Process several files at the same time:
+    * every file is read into its own fork of the consumer
+    * on a work-stealing pool with this number of threads
+    * (files of different size keep all threads busy).
+    * The forks are joined pairwise in file order
+    * (first half of the files, then second half),
+    * so the counts and the order of the products are the same
+    * as when reading the files one after the other.
+    *
+    * The file indexes of the review keys are given in file order
+    * before the files are read.
+    *
+    * @param files
+    * @param consumer
+    * @param numberThreads
+    * @param task reads one file, e.g. analyze(csvFile) of the fork
+    */
+   public static <T extends ReviewConsumer<T>> void processFiles (String[] files, T consumer, int numberThreads, FileTask<T> task) {
+
+      if (files.length == 0)
+         return;
+
+      for (String csvFile : files)
+         AmazonFormatReader.getFileIndex(AmazonFormatReader.getFilePrefix(csvFile));
+
+      ForkJoinPool pool = new ForkJoinPool(Math.max(1, numberThreads));
+      try {
+         consumer.join(pool.invoke(new FileRange<T>(files, 0, files.length, consumer, task)));
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+
+   /**
+    * Files [from, to) of processFiles, split in half until one file is left.
+    */
+   private static class FileRange<T extends ReviewConsumer<T>> extends RecursiveTask<T> {
+
+      private static final long serialVersionUID = 1L;
+
+      private String[] files;
+      private int from;
+      private int to;
+      private T consumer;
+      private FileTask<T> task;
+
+      FileRange (String[] files, int from, int to, T consumer, FileTask<T> task) {
+         this.files = files;
+         this.from = from;
+         this.to = to;
+         this.consumer = consumer;
+         this.task = task;
+      }
+
+      protected T compute () {
+         if (to - from == 1) {
+            T part = consumer.fork();
+            task.analyze(part, files[from]);
+            return part;
+         }
+         int middle = (from + to) >>> 1;
+         FileRange<T> first = new FileRange<T>(files, from, middle, consumer, task);
+         first.fork();
+         T second = new FileRange<T>(files, middle, to, consumer, task).compute();
+         T part = first.join();
+         part.join(second);
+         return part;
+      }
+   }
+
+
+
+   /**
+    * Read the reviews in these blocks in a pipeline (see LinePipeline):
+    * every block is counted by its own fork of the consumer
+    * on one of the worker threads, the forks are joined in order.
+    * The source only reads as many blocks ahead as the pipeline requests,
+    * so a slow consumer (e.g. tokenizing) does not fill the memory
+    * and reading goes on while the workers count.
+    * If duplicates are dropped, there is only one worker
+    * (the blocks are counted in order, so the first review is kept).
+    *
+    * @param source blocks of Amazon files, e.g. a BlockPublisher
+    *    of several files (not review stores)
+    * @param consumer
+    * @param numberWorkers
+    * @param ignoreformaterrors
+    * @param duplicates fingerprints of the reviews seen before
+    *    (null to give all reviews to the consumer)
+    * @return number of lines read
+    * @throws IOException
+    */
+   public static <T extends ReviewConsumer<T>> int processPipelined (Flow.Publisher<Block> source, final T consumer, int numberWorkers, final boolean ignoreformaterrors, final FingerprintSet duplicates) throws IOException {
+
+      final AtomicInteger lines = new AtomicInteger();
+
+      LinePipeline.Stage<Void, T> stage = new LinePipeline.Stage<Void, T>() {
+
+         public Void newWorker () {
+            return null;
+         }
+
+         public void prepare (Void worker, Block block, List<T> results) {
+            T part = consumer.fork();
+            AmazonFormatReader reader = new AmazonFormatReader(block.filename, block.bytes, block.length, block.firstLineno);
+            lines.addAndGet(process(reader, part, ignoreformaterrors, duplicates));
+            reader.close();
+            results.add(part);
+         }
+
+         public void consume (T part) {
+            consumer.join(part);
+         }
+
+         public void closeWorker (Void worker) {
+         }
+      };
+
+      new LinePipeline<Void, T>(stage, (duplicates != null) ? 1 : numberWorkers).process(source);
+      return lines.get();
+   }
+
+
+
+   /**
+    * Error for a file that could not be read completely:
+    * the remaining parts are cancelled, the counts of the consumer
+    * are incomplete and must not be written.
+    *
+    * @param csvFile
+    * @param e exception of the part that failed
+    * @param pool the threads of the parts
+    * @return
+    */
+   private static RuntimeException failed (String csvFile, Exception e, ExecutorService pool) {
+      pool.shutdownNow();
+      if (e instanceof InterruptedException)
+         Thread.currentThread().interrupt();
+      Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+      return new RuntimeException("ERROR while reading file " + csvFile + ": " + cause.getMessage(), cause);
+   }
+
+
+
+   /**
+    * Give all reviews in these ranges to the consumer,
+    * the file is opened only once.
+    *
+    * @return number of lines read
+    * @throws IOException
+    */
+   private static int process (String csvFile, List<Range> ranges, ReviewConsumer<?> consumer, boolean ignoreformaterrors, FingerprintSet duplicates) throws IOException {
+      AmazonFormatReader reader = new AmazonFormatReader(csvFile, ReadMode.mapped);
+      int lines = 0;
+      try {
+         for (Range range : ranges) {
+            reader.setRange(range.start, range.end, range.firstLineno);
+            lines += process(reader, consumer, ignoreformaterrors, duplicates);
+         }
+      } finally {
+         reader.close();
+      }
+      return lines;
+   }
+
+
+
+   /**
+    * Read the product index of this file,
+    * create and store it if it does not exist or is out of date.
+    *
+    * @param csvFile
+    * @return
+    */
+   public static ProductIndex getProductIndex (String csvFile) {
+
+      ProductIndex index = ProductIndex.read(csvFile);
+      if (index != null)
+         return index;
+
+      System.out.println("create product index for " + csvFile);
+      index = new ProductIndex();
+      AmazonFormatReader reader = new AmazonFormatReader(csvFile, ReadMode.mapped);
+      reader.setIgnoreFormatErrors(true);
+      long start = reader.getPosition();
+      while (reader.next()) {
+         Review review = reader.getReview();
+         long end = reader.getPosition();
+         index.add(review.isValid() ? review.getProductID() : null, start, end);
+         start = end;
+      }
+      reader.close();
+
+      index.writeSilently(csvFile);
+      return index;
+   }
+
+
+
+   /**
+    * Give all reviews from this reader to the consumer
+    * (except the ones in duplicates).
+    *
+    * @return number of lines read
+    */
+   private static int process (AmazonFormatReader reader, ReviewConsumer<?> consumer, boolean ignoreformaterrors, FingerprintSet duplicates) {
+      reader.setIgnoreFormatErrors(ignoreformaterrors);
+      reader.setFields(getFields(consumer, duplicates));
+      int lines = 0;
+      while (reader.next()) {
+         lines++;
+         Review review = reader.getReview();
+         if (duplicates != null && review.isValid() && !duplicates.add(review.getFingerprint()))
+            continue;
+         consumer.processReview(review);
+      }
+      return lines;
+   }
+
+
+
+   /**
+    * The fields the reader has to provide for this consumer
+    * (and for the fingerprints if duplicates are dropped).
+    *
+    * @param consumer
+    * @param duplicates
+    * @return
+    */
+   static EnumSet<Field> getFields (ReviewConsumer<?> consumer, FingerprintSet duplicates) {
+      EnumSet<Field> fields = EnumSet.copyOf(consumer.getFields());
+      if (duplicates != null)
+         fields.addAll(EnumSet.of(Field.product, Field.reviewer, Field.text));
+      return fields;
+   }
+
+
+
+   /**
+    * Split the file into (about) this number of parts
+    * that start at the beginning of a line
+    * and count the lines before every part.
+    *
+    * @param csvFile
+    * @param numberChunks
+    * @param pool used to count lines in parallel
+    * @return
+    * @throws IOException
+    * @throws ExecutionException
+    * @throws InterruptedException
+    */
+   public static List<Chunk> split (final String csvFile, int numberChunks, ExecutorService pool) throws IOException, InterruptedException, ExecutionException {
+
+      List<Chunk> chunks = new ArrayList<Chunk>();
+
+      RandomAccessFile file = new RandomAccessFile(csvFile, "r");
+      long size = file.length();
+
+      long start = 0;
+      for (int i=1; i<=numberChunks && start < size; i++) {
+         long end = (i == numberChunks) ? size : Math.max(start, size / numberChunks * i);
+         end = nextLineStart(file, end);
+         if (end > start) {
+            chunks.add(new Chunk(start, end));
+            start = end;
+         }
+      }
+      file.close();
+
+      if (chunks.isEmpty())
+         chunks.add(new Chunk(0, 0));
+
+      // Count the lines in every part
+      List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+      for (final Chunk chunk : chunks) {
+         counts.add(pool.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+               return countLines(csvFile, chunk);
+            }
+         }));
+      }
+      int lineno = 0;
+      for (int i=0; i<chunks.size(); i++) {
+         chunks.get(i).firstLineno = lineno;
+         chunks.get(i).numberLines = counts.get(i).get();
+         lineno += chunks.get(i).numberLines;
+      }
+
+      return chunks;
+   }
+
+
+
+   /**
+    * Split a review store into this number of ranges of records.
+    *
+    * @param storeFile
+    * @param numberChunks
+    * @return
+    * @throws IOException
+    */
+   public static List<Chunk> splitStore (String storeFile, int numberChunks) throws IOException {
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      long numberRecords = ReviewStore.getNumberRecords(storeFile);
+      long start = 0;
+      for (int i=1; i<=numberChunks; i++) {
+         long end = numberRecords / numberChunks * i;
+         if (i == numberChunks)
+            end = numberRecords;
+         Chunk chunk = new Chunk(start, end);
+         chunk.firstLineno = (int) start;
+         chunk.numberLines = (int) (end - start);
+         chunks.add(chunk);
+         start = end;
+      }
+      return chunks;
+   }
+
+
+
+   /**
+    * Position after the next newline at or after this position
+    * (or the end of the file).
+    */
+   private static long nextLineStart (RandomAccessFile file, long position) throws IOException {
+      long size = file.length();
+      if (position <= 0)
+         return 0;
+      byte[] buffer = new byte[1 << 16];
+      long current = position - 1; // the part may end right after a newline
+      while (current < size) {
+         file.seek(current);
+         int read = file.read(buffer);
+         if (read <= 0)
+            break;
+         for (int i=0; i<read; i++) {
+            if (buffer[i] == '\n')
+               return current + i + 1;
+         }
+         current += read;
+      }
+      return size;
+   }
+
+
+
+   /**
+    * Number of lines in this part of the file,
+    * a last line without newline is counted as well.
+    */
+   private static int countLines (String csvFile, Chunk chunk) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(csvFile, "r");
+      FileChannel channel = file.getChannel();
+      int lines = 0;
+      byte last = '\n';
+      for (long offset = chunk.start; offset < chunk.end; offset += COUNTBLOCKSIZE) {
+         int length = (int) Math.min(COUNTBLOCKSIZE, chunk.end - offset);
+         MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+         for (int i=0; i<length; i++) {
+            if (block.get(i) == '\n')
+               lines++;
+         }
+         last = block.get(length-1);
+      }
+      file.close();
+      if (last != '\n')
+         lines++;
+      return lines;
+   }
+
+}
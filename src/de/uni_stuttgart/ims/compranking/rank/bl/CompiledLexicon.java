@@ -0,0 +1,290 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Words with a small value (e.g. the polarity of a sentiment term),
+ * compiled into arrays for fast lookup of tokens
+ * (case-insensitive, from a span of a char array or CharSequence,
+ * without creating Strings).
+ *
+ * The words are kept lowercase one after the other in one char array,
+ * with their hash values. The table is open addressing (linear probing)
+ * over the number of the word, at most half full.
+ * A lookup hashes the lowercase characters of the span,
+ * compares the hash of the words in the probed slots
+ * and then the characters.
+ *
+ * Lowercase is Character.toLowerCase for every character,
+ * this is the same as String.toLowerCase except for a few
+ * special characters (e.g. the Turkish dotted I).
+ *
+ * The lexicon cannot be changed after it is built
+ * and can be used by several threads.
+ * The arrays can be written to a file and read back
+ * (e.g. from a mapped file) without building the table again.
+ */
+public class CompiledLexicon {
+
+
+   /**
+    * Characters of all words, words[wordStarts[w]..wordStarts[w+1]) is word w.
+    */
+   private char[] words;
+   private int[] wordStarts;
+   private int[] hashes;
+   private byte[] values;
+
+   /**
+    * Number of the word + 1 in every slot, 0 = empty.
+    */
+   private int[] table;
+   private int mask;
+
+
+
+   /**
+    * Compile these words (they are lowercased) with their values.
+    * The values should not be 0 (0 is returned for words that are not found).
+    *
+    * @param entries
+    */
+   public CompiledLexicon (Map<String, Byte> entries) {
+
+      int numberWords = entries.size();
+      int numberChars = 0;
+      for (String word : entries.keySet())
+         numberChars += word.length();
+
+      words = new char[numberChars];
+      wordStarts = new int[numberWords + 1];
+      hashes = new int[numberWords];
+      values = new byte[numberWords];
+
+      int capacity = 16;
+      while (capacity < numberWords * 2)
+         capacity *= 2;
+      table = new int[capacity];
+      mask = capacity - 1;
+
+      int w = 0;
+      int position = 0;
+      for (Map.Entry<String, Byte> entry : entries.entrySet()) {
+         String word = entry.getKey();
+         wordStarts[w] = position;
+         for (int i=0; i<word.length(); i++)
+            words[position++] = toLowerCase(word.charAt(i));
+         wordStarts[w+1] = position;
+         hashes[w] = hash(words, wordStarts[w], word.length());
+         values[w] = entry.getValue();
+
+         // insert (if the same lowercase word is there, combine the values)
+         int slot = hashes[w] & mask;
+         while (table[slot] != 0) {
+            int other = table[slot] - 1;
+            if (hashes[other] == hashes[w] && equals(other, words, wordStarts[w], word.length()))
+               break;
+            slot = (slot + 1) & mask;
+         }
+         if (table[slot] != 0) {
+            values[table[slot] - 1] |= values[w];
+         } else {
+            table[slot] = w + 1;
+         }
+         w++;
+      }
+   }
+
+
+
+   private CompiledLexicon () {
+   }
+
+
+   /**
+    * Read a lexicon from the buffer (from its position on),
+    * as written by write.
+    *
+    * @param buf
+    */
+   public static CompiledLexicon read (ByteBuffer buf) {
+      CompiledLexicon lexicon = new CompiledLexicon();
+      int numberWords = buf.getInt();
+      int numberChars = buf.getInt();
+      int capacity = buf.getInt();
+      lexicon.words = new char[numberChars];
+      lexicon.wordStarts = new int[numberWords + 1];
+      lexicon.hashes = new int[numberWords];
+      lexicon.values = new byte[numberWords];
+      lexicon.table = new int[capacity];
+      lexicon.mask = capacity - 1;
+      buf.asCharBuffer().get(lexicon.words);
+      buf.position(buf.position() + numberChars * 2);
+      buf.asIntBuffer().get(lexicon.wordStarts);
+      buf.position(buf.position() + (numberWords + 1) * 4);
+      buf.asIntBuffer().get(lexicon.hashes);
+      buf.position(buf.position() + numberWords * 4);
+      buf.asIntBuffer().get(lexicon.table);
+      buf.position(buf.position() + capacity * 4);
+      buf.get(lexicon.values);
+      return lexicon;
+   }
+
+
+   /**
+    * Write all arrays of the lexicon (see read).
+    *
+    * @param out
+    * @throws IOException
+    */
+   public void write (DataOutputStream out) throws IOException {
+      out.writeInt(values.length);
+      out.writeInt(words.length);
+      out.writeInt(table.length);
+      for (char c : words)
+         out.writeChar(c);
+      for (int start : wordStarts)
+         out.writeInt(start);
+      for (int hash : hashes)
+         out.writeInt(hash);
+      for (int slot : table)
+         out.writeInt(slot);
+      out.write(values);
+   }
+
+
+   /**
+    * All words (lowercase) with their values.
+    */
+   public TreeMap<String, Byte> toMap () {
+      TreeMap<String, Byte> entries = new TreeMap<String, Byte>();
+      for (int slot : table) {
+         if (slot != 0) {
+            int w = slot - 1;
+            entries.put(new String(words, wordStarts[w], wordStarts[w+1] - wordStarts[w]), values[w]);
+         }
+      }
+      return entries;
+   }
+
+
+
+   /**
+    * Value of the word text[offset..offset+length) (ignoring case),
+    * 0 if it is not in the lexicon.
+    *
+    * @param text
+    * @param offset
+    * @param length
+    */
+   public byte get (char[] text, int offset, int length) {
+      int hash = hash(text, offset, length);
+      for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+         int w = table[slot] - 1;
+         if (hashes[w] == hash && equals(w, text, offset, length))
+            return values[w];
+      }
+      return 0;
+   }
+
+
+   /**
+    * Value of the word text[offset..offset+length) (ignoring case),
+    * 0 if it is not in the lexicon.
+    *
+    * @param text
+    * @param offset
+    * @param length
+    */
+   public byte get (CharSequence text, int offset, int length) {
+      int hash = hash(text, offset, length);
+      for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+         int w = table[slot] - 1;
+         if (hashes[w] == hash && equals(w, text, offset, length))
+            return values[w];
+      }
+      return 0;
+   }
+
+
+   /**
+    * Number of different words.
+    */
+   public int size () {
+      int size = 0;
+      for (int slot : table) {
+         if (slot != 0)
+            size++;
+      }
+      return size;
+   }
+
+
+
+   /**
+    * Is word w the same as text[offset..offset+length) (ignoring case)?
+    */
+   private boolean equals (int w, char[] text, int offset, int length) {
+      int start = wordStarts[w];
+      if (wordStarts[w+1] - start != length)
+         return false;
+      for (int i=0; i<length; i++) {
+         if (words[start+i] != toLowerCase(text[offset+i]))
+            return false;
+      }
+      return true;
+   }
+
+
+   private boolean equals (int w, CharSequence text, int offset, int length) {
+      int start = wordStarts[w];
+      if (wordStarts[w+1] - start != length)
+         return false;
+      for (int i=0; i<length; i++) {
+         if (words[start+i] != toLowerCase(text.charAt(offset+i)))
+            return false;
+      }
+      return true;
+   }
+
+
+   /**
+    * FNV-1a hash of the lowercase characters, mixed for the table.
+    */
+   private static int hash (char[] text, int offset, int length) {
+      int hash = 0x811C9DC5;
+      for (int i=0; i<length; i++) {
+         hash ^= toLowerCase(text[offset+i]);
+         hash *= 0x01000193;
+      }
+      return hash ^ (hash >>> 16);
+   }
+
+   private static int hash (CharSequence text, int offset, int length) {
+      int hash = 0x811C9DC5;
+      for (int i=0; i<length; i++) {
+         hash ^= toLowerCase(text.charAt(offset+i));
+         hash *= 0x01000193;
+      }
+      return hash ^ (hash >>> 16);
+   }
+
+
+   private static char toLowerCase (char c) {
+      if (c < 128)
+         return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+      return Character.toLowerCase(c);
+   }
+
+}
@@ -0,0 +1,164 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.uni_stuttgart.ims.compranking.rank.FastTokenizer;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+import de.uni_stuttgart.ims.compranking.rank.bl.SentimentDictionary.DictionaryType;
+
+
+/**
+ * Compare the lookups of sentiment terms on the tokens of real reviews:
+ * - isPositiveWord and isNegative (two TreeSets, lowercase String each),
+ * - polarityOf(CharSequence) (one probe in the compiled lexicon),
+ * - polarityOf(char[], offset, length) (the same from a span).
+ *
+ * Prints the time per token (best of several rounds, after warm-up)
+ * and checks that all give the same numbers of positive and negative terms.
+ */
+public class DictionaryBenchmark {
+
+
+   /**
+    * Maximum number of tokens that are looked up in a round.
+    */
+   static int maxTokens = 2000000;
+
+   static int numberRounds = 10;
+
+
+   private static int numberPos;
+   private static int numberNeg;
+
+
+
+   /**
+    * Run the benchmark.
+    *
+    * Usage: DictionaryBenchmark <dictionary (mpqa|gi)> <input files (Amazon CSV)>*
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      DictionaryType dictionaryType = null;
+      String[] files = null;
+
+      try {
+         if (args.length < 2) {
+            System.err.println("Usage: DictionaryBenchmark <dictionary (mpqa|gi)> <input files (Amazon CSV)>*");
+            System.exit(1);
+         } else {
+            dictionaryType = DictionaryType.valueOf(args[0]);
+            files = Arrays.copyOfRange(args, 1, args.length);
+         }
+      } catch (Exception e) {
+         System.err.println("ERROR !!! in initialization: " + e.getMessage());
+         System.exit(1);
+      }
+
+      SentimentDictionary dictionary = new SentimentDictionary(dictionaryType);
+
+
+      // tokens of the review texts, as Strings and as spans of one array
+      List<String> tokenList = new ArrayList<String>();
+      FastTokenizer tokenizer = new FastTokenizer();
+      for (String csvFile : files) {
+         AmazonFormatReader reader = new AmazonFormatReader(csvFile, ReadMode.mapped);
+         reader.setIgnoreFormatErrors(true);
+         while (reader.next() && tokenList.size() < maxTokens) {
+            Review review = reader.getReview();
+            if (review.isValid())
+               tokenList.addAll(Arrays.asList(tokenizer.tokenize(review.getText())));
+         }
+         reader.close();
+      }
+      String[] tokens = tokenList.toArray(new String[tokenList.size()]);
+
+      StringBuilder sb = new StringBuilder();
+      int[] offsets = new int[tokens.length + 1];
+      for (int i=0; i<tokens.length; i++) {
+         offsets[i] = sb.length();
+         sb.append(tokens[i]);
+      }
+      offsets[tokens.length] = sb.length();
+      char[] chars = sb.toString().toCharArray();
+
+      System.out.println("Look up " + tokens.length + " tokens, " + numberRounds + " rounds.");
+      if (tokens.length == 0)
+         return;
+
+
+      // best time of all rounds for each way
+      long[] best = new long[] {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+      int[][] counts = new int[3][];
+      for (int round=0; round<numberRounds; round++) {
+         for (int way=0; way<3; way++) {
+            numberPos = 0;
+            numberNeg = 0;
+            long start = System.nanoTime();
+            switch (way) {
+            case 0 : lookUpTreeSets(dictionary, tokens); break;
+            case 1 : lookUpPolarity(dictionary, tokens); break;
+            case 2 : lookUpSpans(dictionary, chars, offsets); break;
+            }
+            best[way] = Math.min(best[way], System.nanoTime() - start);
+            counts[way] = new int[] {numberPos, numberNeg};
+         }
+      }
+
+      String[] names = new String[] {"isPositiveWord + isNegative", "polarityOf(CharSequence)", "polarityOf(char[])"};
+      for (int way=0; way<3; way++) {
+         System.out.println(String.format("%-30s %6.1f ns/token  %d pos, %d neg", names[way],
+               (double) best[way] / tokens.length, counts[way][0], counts[way][1]));
+      }
+      if (!Arrays.equals(counts[0], counts[1]) || !Arrays.equals(counts[0], counts[2]))
+         System.err.println("ERROR: the lookups give different counts");
+
+      System.out.println("done.");
+   }
+
+
+
+   private static void lookUpTreeSets (SentimentDictionary dictionary, String[] tokens) {
+      for (String token : tokens) {
+         String word = token.toLowerCase();
+         if (dictionary.isPositiveWord(word))
+            numberPos++;
+         if (dictionary.isNegative(word))
+            numberNeg++;
+      }
+   }
+
+
+   private static void lookUpPolarity (SentimentDictionary dictionary, String[] tokens) {
+      for (String token : tokens) {
+         byte polarity = dictionary.polarityOf(token);
+         if ((polarity & SentimentDictionary.POSITIVE) != 0)
+            numberPos++;
+         if ((polarity & SentimentDictionary.NEGATIVE) != 0)
+            numberNeg++;
+      }
+   }
+
+
+   private static void lookUpSpans (SentimentDictionary dictionary, char[] chars, int[] offsets) {
+      for (int i=0; i<offsets.length-1; i++) {
+         byte polarity = dictionary.polarityOf(chars, offsets[i], offsets[i+1] - offsets[i]);
+         if ((polarity & SentimentDictionary.POSITIVE) != 0)
+            numberPos++;
+         if ((polarity & SentimentDictionary.NEGATIVE) != 0)
+            numberNeg++;
+      }
+   }
+
+}
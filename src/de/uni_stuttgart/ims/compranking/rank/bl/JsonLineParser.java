@@ -0,0 +1,425 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+
+import de.uni_stuttgart.ims.compranking.rank.DelimiterScanner;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Parse one review in the JSON lines format of the newer Amazon datasets
+ * (one object per line), e.g.
+ * {"overall": 5.0, "reviewerID": "A2SUAM1J3GNN3B", "asin": "0000013714", "style": {"Format:": " Hardcover"},
+ *  "reviewText": "I bought this for my husband ...", "summary": "Heavenly Highway Hymns"}
+ *
+ * The line is scanned once at byte level, only the positions of
+ * asin (product), reviewerID, overall (rating), summary (title)
+ * and reviewText (text) are recorded, all other values
+ * (including nested objects and arrays) are skipped.
+ * No objects are created for the fields, the review points
+ * into the input buffer like for the CSV format.
+ *
+ * If one of the requested strings (see AmazonFormatReader.setFields)
+ * contains escapes (quotes, newlines, unicode ...),
+ * the requested fields are unescaped into a separate buffer.
+ */
+class JsonLineParser {
+
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final int PRODUCT = 0;
+   private static final int REVIEWER = 1;
+   private static final int RATING = 2;
+   private static final int TITLE = 3;
+   private static final int TEXT = 4;
+
+   private static final byte[][] KEYS = new byte[][] {
+      "asin".getBytes(UTF8), "reviewerID".getBytes(UTF8), "overall".getBytes(UTF8),
+      "summary".getBytes(UTF8), "reviewText".getBytes(UTF8) };
+
+   private static final Field[] FIELDS = new Field[] {
+      Field.product, Field.reviewer, Field.rating, Field.title, Field.text };
+
+
+   // per field of the current line
+   private int[] starts = new int[KEYS.length];
+   private int[] ends = new int[KEYS.length];
+   private boolean[] found = new boolean[KEYS.length];
+   private boolean[] escaped = new boolean[KEYS.length];
+
+   /**
+    * Unescaped fields (reused for every line, see parse).
+    */
+   private byte[] scratch = new byte[1 << 12];
+   private ByteBuffer scratchView = ByteBuffer.wrap(scratch).order(ByteOrder.nativeOrder());
+
+   /**
+    * Duplicate of the line buffer for copying.
+    */
+   private ByteBuffer source;
+
+   /**
+    * Current position in the line.
+    */
+   private int pos;
+   private ByteBuffer buf;
+   private int end;
+
+   /**
+    * Did the last string contain escapes?
+    */
+   private boolean stringEscaped;
+
+
+
+   /**
+    * Is this line a JSON object (and not a CSV line)?
+    */
+   static boolean isJson (ByteBuffer buf, int lineStart, int lineEnd) {
+      return lineStart < lineEnd && buf.get(lineStart) == '{';
+   }
+
+
+
+   /**
+    * Set the fields of the review from this JSON line.
+    *
+    * @param buf
+    * @param lineStart
+    * @param lineEnd
+    * @param review
+    * @param fields the fields that are used
+    * @param copy true if the review is kept after the next line
+    *    (then unescaped fields get their own buffer)
+    * @return false if the line is not valid JSON
+    *    or product or rating are missing
+    */
+   boolean parse (ByteBuffer buf, int lineStart, int lineEnd, Review review, EnumSet<Field> fields, boolean copy) {
+
+      this.buf = buf;
+      this.end = lineEnd;
+      this.pos = lineStart + 1; // after {
+      for (int f=0; f<KEYS.length; f++) {
+         found[f] = false;
+         escaped[f] = false;
+      }
+
+      skipWhitespace();
+      if (pos < end && buf.get(pos) == '}')
+         pos++;
+      else {
+         while (true) {
+            // key
+            if (pos >= end || buf.get(pos) != '"')
+               return false;
+            int keyStart = pos + 1;
+            if (!skipString())
+               return false;
+            int field = findKey(keyStart, pos - 1);
+
+            skipWhitespace();
+            if (pos >= end || buf.get(pos) != ':')
+               return false;
+            pos++;
+            skipWhitespace();
+
+            // value
+            if (pos >= end)
+               return false;
+            int valueStart = pos;
+            boolean isString = buf.get(pos) == '"';
+            stringEscaped = false;
+            if (!skipValue())
+               return false;
+            if (field >= 0) {
+               found[field] = true;
+               starts[field] = (isString) ? valueStart + 1 : valueStart;
+               ends[field] = (isString) ? pos - 1 : pos;
+               escaped[field] = isString && stringEscaped && fields.contains(FIELDS[field]);
+            }
+
+            skipWhitespace();
+            if (pos >= end)
+               return false;
+            byte b = buf.get(pos++);
+            if (b == '}')
+               break;
+            if (b != ',')
+               return false;
+            skipWhitespace();
+         }
+      }
+      skipWhitespace();
+      if (pos != end || !found[PRODUCT] || !found[RATING])
+         return false;
+
+      // unescape if necessary
+      ByteBuffer fieldBuf = buf;
+      if (escaped[PRODUCT] || escaped[REVIEWER] || escaped[RATING] || escaped[TITLE] || escaped[TEXT])
+         fieldBuf = unescapeFields(fields, copy);
+
+      review.idStart = lineStart;
+      review.idEnd = lineStart; // no id, use fallback
+      review.buf = fieldBuf;
+      review.productBuf = fieldBuf;
+      review.productStart = starts[PRODUCT];
+      review.productEnd = ends[PRODUCT];
+      review.ratingStart = starts[RATING];
+      review.ratingEnd = ends[RATING];
+      review.reviewerStart = (found[REVIEWER]) ? starts[REVIEWER] : 0;
+      review.reviewerEnd = (found[REVIEWER]) ? ends[REVIEWER] : 0;
+      review.titleStart = (found[TITLE]) ? starts[TITLE] : 0;
+      review.titleEnd = (found[TITLE]) ? ends[TITLE] : 0;
+      review.textStart = (found[TEXT]) ? starts[TEXT] : 0;
+      review.textEnd = (found[TEXT]) ? ends[TEXT] : 0;
+      review.valid = true;
+      return true;
+   }
+
+
+
+   private void skipWhitespace () {
+      while (pos < end) {
+         byte b = buf.get(pos);
+         if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+            return;
+         pos++;
+      }
+   }
+
+
+   /**
+    * Skip the string starting at pos (at the opening quote).
+    *
+    * @return false if the string does not end in this line
+    */
+   private boolean skipString () {
+      int i = pos + 1;
+      while (true) {
+         i = DelimiterScanner.nextQuoteOrBackslash(buf, i, end);
+         if (i >= end)
+            return false;
+         if (buf.get(i) == '"')
+            break;
+         stringEscaped = true;
+         i += 2; // skip escaped character
+      }
+      pos = i + 1;
+      return true;
+   }
+
+
+   /**
+    * Skip the value starting at pos (string, number, true/false/null,
+    * object or array).
+    *
+    * @return false if the value is not complete
+    */
+   private boolean skipValue () {
+      byte b = buf.get(pos);
+      if (b == '"')
+         return skipString();
+
+      if (b == '{' || b == '[') {
+         int depth = 0;
+         while (pos < end) {
+            b = buf.get(pos);
+            if (b == '"') {
+               if (!skipString())
+                  return false;
+               continue;
+            }
+            if (b == '{' || b == '[')
+               depth++;
+            else if (b == '}' || b == ']')
+               depth--;
+            pos++;
+            if (depth == 0)
+               return true;
+         }
+         return false;
+      }
+
+      // number, true, false, null
+      int start = pos;
+      while (pos < end) {
+         b = buf.get(pos);
+         if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n')
+            break;
+         pos++;
+      }
+      return pos > start;
+   }
+
+
+   /**
+    * The field with this key, -1 if it is not needed.
+    */
+   private int findKey (int start, int end) {
+      for (int f=0; f<KEYS.length; f++) {
+         byte[] key = KEYS[f];
+         if (key.length != end - start)
+            continue;
+         int i = 0;
+         while (i < key.length && buf.get(start + i) == key[i])
+            i++;
+         if (i == key.length)
+            return f;
+      }
+      return -1;
+   }
+
+
+
+   /**
+    * Copy all found fields that are used into one buffer,
+    * unescape the strings.
+    *
+    * @param fields the fields that are used
+    * @param copy use a new buffer instead of the reused one
+    * @return the buffer, starts and ends point into it
+    */
+   private ByteBuffer unescapeFields (EnumSet<Field> fields, boolean copy) {
+      int length = 0;
+      for (int f=0; f<KEYS.length; f++) {
+         if (found[f] && !fields.contains(FIELDS[f]))
+            found[f] = false;
+         if (found[f])
+            length += ends[f] - starts[f];
+      }
+      byte[] bytes = scratch;
+      if (copy || length > bytes.length)
+         bytes = new byte[Math.max(length, (copy) ? 0 : bytes.length * 2)];
+
+      source = buf.duplicate();
+      int n = 0;
+      for (int f=0; f<KEYS.length; f++) {
+         if (!found[f])
+            continue;
+         int start = n;
+         if (escaped[f])
+            n = unescape(starts[f], ends[f], bytes, n);
+         else
+            n = copy(starts[f], ends[f], bytes, n);
+         starts[f] = start;
+         ends[f] = n;
+      }
+
+      if (copy)
+         return ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+      if (bytes != scratch) {
+         scratch = bytes;
+         scratchView = ByteBuffer.wrap(scratch).order(ByteOrder.nativeOrder());
+      }
+      return scratchView;
+   }
+
+
+   /**
+    * Unescape the JSON string buf[start..end) into bytes from position n
+    * (UTF-8, never longer than the escaped string).
+    *
+    * @return the position after the string in bytes
+    */
+   private int unescape (int start, int end, byte[] bytes, int n) {
+      int i = start;
+      while (i < end) {
+         // copy everything up to the next escape at once
+         int escape = DelimiterScanner.nextQuoteOrBackslash(buf, i, end);
+         n = copy(i, escape, bytes, n);
+         i = escape + 1;
+         if (i >= end) {
+            if (escape < end)
+               bytes[n++] = '\\';
+            break;
+         }
+         byte b = buf.get(i++);
+         switch (b) {
+         case 'n': bytes[n++] = '\n'; break;
+         case 't': bytes[n++] = '\t'; break;
+         case 'r': bytes[n++] = '\r'; break;
+         case 'b': bytes[n++] = '\b'; break;
+         case 'f': bytes[n++] = '\f'; break;
+         case 'u':
+            int c = parseHex(i, end);
+            if (c < 0) {
+               bytes[n++] = '\\';
+               bytes[n++] = 'u';
+               break;
+            }
+            i += 4;
+            // surrogate pair
+            if (c >= 0xD800 && c < 0xDC00 && i + 6 <= end && buf.get(i) == '\\' && buf.get(i+1) == 'u') {
+               int low = parseHex(i + 2, end);
+               if (low >= 0xDC00 && low < 0xE000) {
+                  c = 0x10000 + ((c - 0xD800) << 10) + (low - 0xDC00);
+                  i += 6;
+               }
+            }
+            n = writeUtf8(c, bytes, n);
+            break;
+         default: // " \ / and anything unknown
+            bytes[n++] = b;
+         }
+      }
+      return n;
+   }
+
+
+   /**
+    * Copy buf[start..end) into bytes from position n.
+    *
+    * @return the position after the copy in bytes
+    */
+   private int copy (int start, int end, byte[] bytes, int n) {
+      source.position(start);
+      source.get(bytes, n, end - start);
+      return n + end - start;
+   }
+
+
+   private int parseHex (int start, int end) {
+      if (start + 4 > end)
+         return -1;
+      int c = 0;
+      for (int i=start; i<start+4; i++) {
+         int d = Character.digit(buf.get(i), 16);
+         if (d < 0)
+            return -1;
+         c = (c << 4) | d;
+      }
+      return c;
+   }
+
+
+   private static int writeUtf8 (int c, byte[] bytes, int n) {
+      if (c < 0x80) {
+         bytes[n++] = (byte) c;
+      } else if (c < 0x800) {
+         bytes[n++] = (byte) (0xC0 | (c >> 6));
+         bytes[n++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c < 0x10000) {
+         bytes[n++] = (byte) (0xE0 | (c >> 12));
+         bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+         bytes[n++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+         bytes[n++] = (byte) (0xF0 | (c >> 18));
+         bytes[n++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+         bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+         bytes[n++] = (byte) (0x80 | (c & 0x3F));
+      }
+      return n;
+   }
+
+}
@@ -0,0 +1,94 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Set of relevant products that is looked up with the bytes
+ * of the product ID of a review, without creating a String.
+ * The lookup returns the product ID String from the set,
+ * so the same String instance is used for all reviews of a product.
+ *
+ * (Open addressing, read-only after construction, can be shared by threads.)
+ */
+public class ProductLookup {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private String[] products;
+   private byte[][] bytes;
+   private int[] hashes;
+   private int mask;
+
+
+   /**
+    * Lookup for these products.
+    *
+    * @param relevantProducts
+    */
+   public ProductLookup (Collection<String> relevantProducts) {
+      int size = 16;
+      while (size < relevantProducts.size() * 2)
+         size *= 2;
+      products = new String[size];
+      bytes = new byte[size][];
+      hashes = new int[size];
+      mask = size - 1;
+
+      for (String product : relevantProducts) {
+         byte[] b = product.getBytes(UTF8);
+         int h = ByteSlice.hash(b);
+         int i = mix(h) & mask;
+         while (products[i] != null)
+            i = (i + 1) & mask;
+         products[i] = product;
+         bytes[i] = b;
+         hashes[i] = h;
+      }
+   }
+
+
+   /**
+    * The relevant product with this ID, null if it is not relevant.
+    *
+    * @param productID
+    */
+   public String lookup (ByteSlice productID) {
+      int h = productID.hashCode();
+      int i = mix(h) & mask;
+      while (products[i] != null) {
+         if (hashes[i] == h && productID.contentEquals(bytes[i]))
+            return products[i];
+         i = (i + 1) & mask;
+      }
+      return null;
+   }
+
+
+   /**
+    * The relevant product of this review, null if it is not relevant
+    * (or the review is not valid).
+    *
+    * @param review
+    */
+   public String lookup (Review review) {
+      if (!review.isValid())
+         return null;
+      return lookup(review.getProductIDView());
+   }
+
+
+   private static int mix (int h) {
+      return h ^ (h >>> 16);
+   }
+
+}
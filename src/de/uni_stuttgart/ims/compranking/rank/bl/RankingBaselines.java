@@ -0,0 +1,676 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.uni_stuttgart.ims.compranking.rank.BlockPublisher;
+import de.uni_stuttgart.ims.compranking.rank.Checkpoint;
+import de.uni_stuttgart.ims.compranking.rank.DirectoryWatcher;
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.InputFiles;
+import de.uni_stuttgart.ims.compranking.rank.ProductMapper;
+import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounter;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool.TokenizerType;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+import de.uni_stuttgart.ims.compranking.rank.bl.SentimentDictionary.DictionaryType;
+import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
+
+
+/**
+
+Extract all baseline rankings from Amazon reviews in one pass:
+star ratings, number of reviews (mentions), review length
+and counting sentiment terms (all dictionaries, with and without normalization).
+
+Every review is read and tokenized only once,
+the tokens are given to the length and all term counting baselines.
+The output files are the same as for
+RankingFromReviews, RankingFromLength and RankingFromTermCounting.
+
+If the input is a folder, the folder is watched:
+all Amazon files in it are read, then every new file that arrives,
+and the rankings are written again after each batch of new files.
+The counts and the files that are done are kept in a checkpoint
+next to the star ranking, so a restarted run reads only new files.
+
+With partitionThreads > 0, the input files are partitions by product
+(see ReviewPartitioner) that are ranked on several threads.
+
+With pipelineWorkers > 0, all input files are read as one stream of blocks
+that several threads count (see ChunkedReviewReader.processPipelined).
+
+**/
+public class RankingBaselines implements ReviewConsumer<RankingBaselines> {
+
+
+   private boolean ignoreformaterrors = true;
+
+   /**
+    * How to read the input files.
+    */
+   static ReadMode readMode = ReadMode.mapped;
+
+   /**
+    * Number of threads that process one input file
+    * (the file is split into parts).
+    */
+   static int numberThreads = 1;
+
+   /**
+    * Convert the input files to review stores on the first run
+    * and read the stores afterwards (see ReviewStore).
+    */
+   static boolean useReviewStore = false;
+
+   /**
+    * Read only the reviews of relevant products,
+    * using a product index for every input file (see ProductIndex).
+    * Not used for review stores and gzipped files.
+    */
+   static boolean useProductIndex = false;
+
+   /**
+    * Drop reviews that were already read from another file
+    * (or earlier in the same file): same product, reviewer and text,
+    * see FingerprintSet.
+    */
+   static boolean dropDuplicates = false;
+
+   /**
+    * The input files are partitions by product (see ReviewPartitioner):
+    * rank this number of files at the same time (one fork per file),
+    * keep only the scores of the products of a file, not the counts.
+    * 0 to read all files into the same counters.
+    */
+   static int partitionThreads = 0;
+
+   /**
+    * Read all input files as one stream of blocks (see BlockPublisher)
+    * that this number of threads count with forks of the baselines,
+    * reading goes on while the reviews are tokenized
+    * and at most LinePipeline.queueLength blocks are in memory.
+    * 0 to read file by file (see numberThreads).
+    * Not used with review stores and product indexes.
+    */
+   static int pipelineWorkers = 0;
+
+
+   static boolean[] useNormalization = new boolean[] {true, false};
+   static DictionaryType[] useDictionaries = DictionaryType.values();
+
+
+   private RankingFromReviews stars;
+   private RankingFromLength length;
+   private List<RankingFromTermCounting> terms;
+
+   private TreeSet<String> relevantProducts;
+   private ProductLookup relevantLookup;
+
+   /**
+    * Fingerprints of the reviews read so far (with dropDuplicates).
+    */
+   private FingerprintSet seenReviews = null;
+
+   private Tokenizer tokenizer;
+
+   private boolean includeTitle = false;
+
+
+
+   /**
+    * Extract all baseline rankings from Amazon reviews in one pass.
+    *
+    * Usage: RankingBaselines <output filename stars> <output filename reviews> <output filename length> <output filename terms> <relevant products file> <input files (Amazon CSV)>* | <input folder (watched)>
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      String outputRankingStars = null;
+      String outputRankingMentions = null;
+      String outputRankingLength = null;
+      String outputRankingTerms = null;
+      String[] files = null;
+      String relevantProductsFile = null;
+
+
+
+      // ===== GET USER-DEFINED OPTIONS =====
+
+      try {
+
+         if (args.length < 5) {
+            System.err.println("Usage: RankingBaselines <output filename stars> <output filename reviews> <output filename length> <output filename terms> <relevant products file> <input files (Amazon CSV)>* | <input folder (watched)>");
+            System.exit(1);
+         } else {
+
+            outputRankingStars = args[0];
+            outputRankingMentions = args[1];
+            outputRankingLength = args[2];
+            outputRankingTerms = args[3];
+            relevantProductsFile = args[4];
+            files = Arrays.copyOfRange(args, 5, args.length);
+         }
+
+      } catch (Exception e) {
+         System.err.println("ERROR !!! in initialization: " + e.getMessage());
+         System.exit(1);
+      }
+
+      System.out.println("Print output to files: " + outputRankingStars + " (stars), " + outputRankingMentions + " (reviews), "
+            + outputRankingLength + " (length), " + outputRankingTerms + " (terms)");
+      System.out.println("Take relevant products from file: " + relevantProductsFile);
+      System.out.println("Take input files: " + Arrays.toString(files));
+
+
+
+      // ===== PROCESS =====
+
+      ProductMapper prodmapper = new ProductMapper();
+      try {
+         prodmapper.readRelevantProducts(relevantProductsFile);
+      } catch (FileNotFoundException e) {
+         e.printStackTrace();
+      }
+
+      if (files.length == 1 && new File(files[0]).isDirectory()) {
+         watch(files[0], prodmapper.getRelevantProducts(), outputRankingStars, outputRankingMentions, outputRankingLength, outputRankingTerms);
+         return;
+      }
+
+      if (partitionThreads > 0) {
+         rankPartitions(files, prodmapper.getRelevantProducts(),
+               getOutputFilenames(outputRankingStars, outputRankingMentions, outputRankingLength, outputRankingTerms));
+         System.out.println("done.");
+         return;
+      }
+
+      RankingBaselines a = new RankingBaselines(prodmapper.getRelevantProducts());
+
+      if (pipelineWorkers > 0 && !useReviewStore && !useProductIndex) {
+         a.analyzePipelined(files);
+      } else {
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            a.analyze(csvFile);
+         }
+      }
+
+
+      // ===== OUTPUT, END =====
+
+      a.writeToFiles(outputRankingStars, outputRankingMentions, outputRankingLength, outputRankingTerms);
+
+      a.endDocument();
+
+      System.out.println(TokenizerPool.getStatistics());
+      System.out.println("done.");
+
+   }
+
+
+
+
+   /**
+    * Watch the folder, read all Amazon files in it that are not done
+    * and every new file, rewrite the rankings after each batch of files.
+    * Runs until the program is stopped.
+    *
+    * The counts, the files that are done and the file prefixes
+    * of the review keys are kept in a checkpoint next to the star ranking.
+    * Files that change after they were read are not read again
+    * (their reviews are counted already).
+    */
+   private static void watch (String inFolder, TreeSet<String> relevantProducts,
+         String outputRankingStars, String outputRankingMentions, String outputRankingLength, String outputRankingTerms) {
+
+      String settings = "Baselines " + Arrays.toString(useDictionaries) + " " + Arrays.toString(useNormalization)
+            + " " + relevantProducts.size() + " " + relevantProducts.hashCode();
+
+      RankingBaselines a = new RankingBaselines(relevantProducts);
+      Checkpoint state = Checkpoint.read(outputRankingStars, settings, a.getCounters());
+      if (state != null) {
+         if (!AmazonFormatReader.restoreFilePrefixes(getFilePrefixes(state))) {
+            System.err.println("ERROR while restoring the review keys from the checkpoint");
+            System.exit(1);
+         }
+      } else {
+         // counters may be filled partly
+         a = new RankingBaselines(relevantProducts);
+         state = new Checkpoint(outputRankingStars, settings);
+      }
+
+      DirectoryWatcher watcher = null;
+      try {
+         watcher = new DirectoryWatcher(inFolder, new FileFilter() {
+            public boolean accept(File file) {
+               return file.isFile() && (InputFiles.hasExtension(file.getName(), ".csv") || InputFiles.hasExtension(file.getName(), ".json"));
+            }
+         });
+      } catch (IOException e) {
+         System.err.println("ERROR while watching folder " + inFolder + ": " + e.getMessage());
+         System.exit(1);
+      }
+
+      List<String> files = null;
+      try {
+         files = watcher.listSettledFiles();
+      } catch (InterruptedException e) {
+         System.err.println("ERROR while watching folder " + inFolder + ": " + e.getMessage());
+         System.exit(1);
+      }
+      while (true) {
+
+         boolean changed = false;
+         for (String csvFile : files) {
+            if (state.contains(csvFile)) {
+               if (!state.isDone(csvFile))
+                  System.err.println("WARNING: file " + csvFile + " has changed after it was read, ignore the changes");
+               continue;
+            }
+            System.out.println("Process file: " + csvFile);
+            a.analyze(csvFile);
+            state.setDone(csvFile);
+            changed = true;
+         }
+
+         // first the rankings, then the checkpoint:
+         // after a crash in between the new files are read again
+         if (changed) {
+            a.writeToFiles(outputRankingStars, outputRankingMentions, outputRankingLength, outputRankingTerms);
+            setFilePrefixes(state, AmazonFormatReader.getFilePrefixes());
+            state.writeIfDue(true, a.getCounters());
+         }
+
+         System.out.println("wait for new files in " + inFolder);
+         try {
+            files = watcher.waitForFiles();
+         } catch (Exception e) {
+            System.err.println("ERROR while watching folder " + inFolder + ": " + e.getMessage());
+            break;
+         }
+      }
+
+      watcher.close();
+      a.endDocument();
+   }
+
+
+   /**
+    * Scores of all rankings for the products of one partition.
+    */
+   private static class PartitionScores {
+      List<HashMap<String, Double>> rankings = new ArrayList<HashMap<String, Double>>();
+      List<HashMap<String, String>> comments = new ArrayList<HashMap<String, String>>();
+   }
+
+
+   /**
+    * Rank input files that are partitions by product (see ReviewPartitioner):
+    * every file is read by its own fork on one of partitionThreads threads,
+    * then the scores of its products are kept and the counters are dropped.
+    * A product is only in one file, so the scores are the same
+    * as when counting all files together.
+    * If a partition fails, no ranking is written
+    * (a RuntimeException is thrown).
+    */
+   private static void rankPartitions (String[] files, TreeSet<String> relevantProducts, String[] outputFilenames) {
+
+      final RankingBaselines a = new RankingBaselines(relevantProducts);
+
+      ExecutorService pool = Executors.newFixedThreadPool(partitionThreads);
+      List<Future<PartitionScores>> parts = new ArrayList<Future<PartitionScores>>();
+      for (final String csvFile : files) {
+         parts.add(pool.submit(new Callable<PartitionScores>() {
+            public PartitionScores call () {
+               System.out.println("Process file: " + csvFile);
+               RankingBaselines part = a.fork();
+               part.analyze(csvFile);
+               PartitionScores scores = new PartitionScores();
+               for (ProductOpinionCounter counter : part.getCounters()) {
+                  scores.rankings.add(counter.getOverallOpinion());
+                  scores.comments.add(counter.getComments());
+               }
+               part.endDocument();
+               return scores;
+            }
+         }));
+      }
+
+      // Collect the scores in file order
+      // (starting with the products that are added without reviews)
+      PartitionScores all = new PartitionScores();
+      for (ProductOpinionCounter counter : a.getCounters()) {
+         all.rankings.add(counter.getOverallOpinion());
+         all.comments.add(counter.getComments());
+      }
+      try {
+         for (Future<PartitionScores> part : parts) {
+            PartitionScores scores = part.get();
+            for (int i=0; i<outputFilenames.length; i++) {
+               all.rankings.get(i).putAll(scores.rankings.get(i));
+               all.comments.get(i).putAll(scores.comments.get(i));
+            }
+         }
+      } catch (InterruptedException e) {
+         // no rankings from the partitions collected so far
+         pool.shutdownNow();
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("ERROR while ranking partitions, no rankings written", e);
+      } catch (ExecutionException e) {
+         pool.shutdownNow();
+         throw new RuntimeException("ERROR while ranking partitions, no rankings written: " + e.getCause().getMessage(), e.getCause());
+      }
+      pool.shutdown();
+
+      for (int i=0; i<outputFilenames.length; i++)
+         ProductOpinionCounter.writeRankingToFile(outputFilenames[i], all.rankings.get(i), all.comments.get(i));
+
+      a.endDocument();
+   }
+
+
+   /**
+    * Store the file prefixes of the review keys in the checkpoint
+    * (as statistics "filePrefix <prefix>" = index).
+    */
+   private static void setFilePrefixes (Checkpoint state, List<String> prefixes) {
+      for (int i=0; i<prefixes.size(); i++)
+         state.setStatistic("filePrefix " + prefixes.get(i), i);
+   }
+
+
+   /**
+    * The file prefixes of the review keys in the checkpoint (in index order).
+    */
+   private static List<String> getFilePrefixes (Checkpoint state) {
+      TreeMap<Integer, String> prefixes = new TreeMap<Integer, String>();
+      for (String name : state.getStatisticNames()) {
+         if (name.startsWith("filePrefix "))
+            prefixes.put(state.getStatistic(name), name.substring("filePrefix ".length()));
+      }
+      return new ArrayList<String>(prefixes.values());
+   }
+
+
+
+   /**
+    * All baselines for these relevant products.
+    *
+    * @param relevantProducts
+    */
+   private RankingBaselines (TreeSet<String> relevantProducts) {
+
+      this.relevantProducts = relevantProducts;
+      this.relevantLookup = new ProductLookup(relevantProducts);
+
+      // Initialize tokenizer (Stanford)
+      tokenizer = TokenizerPool.acquire(TokenizerType.stanford);
+
+      stars = new RankingFromReviews();
+      stars.relevantProducts = relevantProducts;
+
+      length = new RankingFromLength((Tokenizer) null);
+      length.relevantProducts = relevantProducts;
+
+      terms = new ArrayList<RankingFromTermCounting>();
+      for (DictionaryType dictionarytype : useDictionaries) {
+         for (boolean normalization : useNormalization) {
+            RankingFromTermCounting termCounter = new RankingFromTermCounting((Tokenizer) null);
+            termCounter.setRelevantProducts(relevantProducts, true);
+            termCounter.reset(dictionarytype, normalization);
+            terms.add(termCounter);
+            includeTitle |= termCounter.isIncludeTitle();
+         }
+      }
+
+   }
+
+
+   /**
+    * Fork: same settings and dictionaries, empty counters.
+    */
+   private RankingBaselines (RankingBaselines parent) {
+
+      relevantProducts = parent.relevantProducts;
+      relevantLookup = parent.relevantLookup;
+      includeTitle = parent.includeTitle;
+
+      tokenizer = TokenizerPool.acquire(TokenizerType.stanford);
+
+      stars = parent.stars.fork();
+
+      length = new RankingFromLength((Tokenizer) null);
+      length.relevantProducts = relevantProducts;
+
+      terms = new ArrayList<RankingFromTermCounting>();
+      for (RankingFromTermCounting termCounter : parent.terms) {
+         terms.add(new RankingFromTermCounting(termCounter, null));
+      }
+   }
+
+
+
+
+   private void analyze (String csvFile) {
+
+      if (useReviewStore)
+         csvFile = ReviewStore.convertIfNeeded(csvFile);
+
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
+
+      int lines = ChunkedReviewReader.process(csvFile, this, numberThreads, readMode, ignoreformaterrors, (useProductIndex) ? relevantProducts : null, seenReviews);
+
+      System.out.println("... processed " + lines + " reviews.");
+      if (seenReviews != null)
+         System.out.println("... " + seenReviews.getNumberDuplicates() + " duplicate reviews dropped so far.");
+
+   }
+
+
+
+   /**
+    * Read all files in one pipeline (see pipelineWorkers).
+    */
+   private void analyzePipelined (String[] files) {
+
+      for (String csvFile : files) {
+         if (ReviewStore.isStore(csvFile)) {
+            System.out.println("review stores are not read in a pipeline, read file by file");
+            for (String file : files) {
+               System.out.println("Process file: " + file);
+               analyze(file);
+            }
+            return;
+         }
+      }
+
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
+
+      System.out.println("Process files in a pipeline with " + pipelineWorkers + " workers: " + Arrays.toString(files));
+      try {
+         int lines = ChunkedReviewReader.processPipelined(new BlockPublisher(files), this, pipelineWorkers, ignoreformaterrors, seenReviews);
+         System.out.println("... processed " + lines + " reviews.");
+      } catch (IOException e) {
+         // the counts are incomplete, do not write them
+         throw new UncheckedIOException("ERROR while reading files " + Arrays.toString(files), e);
+      }
+      if (seenReviews != null)
+         System.out.println("... " + seenReviews.getNumberDuplicates() + " duplicate reviews dropped so far.");
+   }
+
+
+
+   /**
+    * Give one review to all baselines,
+    * tokenize it only once.
+    */
+   public void processReview (Review review) {
+
+      // stars and mentions
+      stars.processReview(review);
+
+
+      // Ignore things that are not reviews
+      // (there are some errors in the extraction script)
+      // and consider only relevant products
+      String product = relevantLookup.lookup(review);
+      if (product == null)
+         return;
+
+      long key = review.getKey();
+
+
+      // Tokenize
+      String[] tokens = tokenizer.tokenize(review.getText());
+      String[] titleTokens = null;
+      if (includeTitle)
+         titleTokens = tokenizer.tokenize(review.getTitle());
+
+
+      // length
+      length.addLength(product, key, tokens.length);
+
+      // terms
+      for (RankingFromTermCounting termCounter : terms) {
+         termCounter.processTokens(tokens, titleTokens, product, key);
+      }
+
+   }
+
+
+
+   /**
+    * The fields used by all baselines.
+    */
+   public EnumSet<Field> getFields () {
+      EnumSet<Field> fields = stars.getFields();
+      fields.addAll(length.getFields());
+      if (includeTitle)
+         fields.add(Field.title);
+      return fields;
+   }
+
+
+   /**
+    * New instance with the same settings and empty counters.
+    */
+   public RankingBaselines fork () {
+      return new RankingBaselines(this);
+   }
+
+
+   /**
+    * Add the counts of a forked instance.
+    */
+   public void join (RankingBaselines part) {
+      stars.join(part.stars);
+      length.join(part.length);
+      for (int i=0; i<terms.size(); i++) {
+         terms.get(i).join(part.terms.get(i));
+      }
+      TokenizerPool.release(part.tokenizer);
+   }
+
+
+
+
+   /**
+    * All counters of all baselines (always in the same order).
+    */
+   private ProductOpinionCounter[] getCounters () {
+      List<ProductOpinionCounter> counters = new ArrayList<ProductOpinionCounter>();
+      counters.addAll(Arrays.asList(stars.getCounters()));
+      counters.addAll(Arrays.asList(length.getCounters()));
+      for (RankingFromTermCounting termCounter : terms)
+         counters.add(termCounter.getCounter());
+      return counters.toArray(new ProductOpinionCounter[counters.size()]);
+   }
+
+
+
+   /**
+    * Called at the end of processing, write all rankings to files
+    * (same names as the single baselines).
+    *
+    * @param outputRankingStars
+    * @param outputRankingMentions
+    * @param outputRankingLength
+    * @param outputRankingTerms
+    */
+   public void writeToFiles (String outputRankingStars, String outputRankingMentions, String outputRankingLength, String outputRankingTerms) {
+
+      ProductOpinionCounter[] counters = getCounters();
+      String[] filenames = getOutputFilenames(outputRankingStars, outputRankingMentions, outputRankingLength, outputRankingTerms);
+      for (int i=0; i<counters.length; i++)
+         counters[i].writeRankingToFile(filenames[i]);
+
+   }
+
+
+   /**
+    * Names of the ranking files, in the same order as getCounters().
+    */
+   private static String[] getOutputFilenames (String outputRankingStars, String outputRankingMentions, String outputRankingLength, String outputRankingTerms) {
+
+      List<String> filenames = new ArrayList<String>();
+      filenames.add(outputRankingStars);
+      filenames.add(outputRankingMentions);
+
+      filenames.add(outputRankingLength.replace(".txt", "_avg.txt"));
+      filenames.add(outputRankingLength.replace(".txt", "_abs.txt"));
+
+      for (DictionaryType dictionarytype : useDictionaries) {
+         for (boolean normalization : useNormalization) {
+            String f = (normalization)?"Norm":"NN";
+            filenames.add(outputRankingTerms.replace(".txt", "_" + dictionarytype + f + ".txt"));
+         }
+      }
+
+      return filenames.toArray(new String[filenames.size()]);
+   }
+
+
+
+   /**
+    * Called at the end of the document, clean up.
+    */
+   public void endDocument () {
+      stars.endDocument();
+      length.endDocument();
+      for (RankingFromTermCounting termCounter : terms) {
+         termCounter.endDocument();
+      }
+      TokenizerPool.release(tokenizer);
+      tokenizer = null;
+   }
+
+}
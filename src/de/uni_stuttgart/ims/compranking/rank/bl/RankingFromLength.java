@@ -18,10 +18,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.TreeSet;
 
+import de.uni_stuttgart.ims.compranking.rank.FastTokenizer;
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounter;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterNumeric;
-import de.uni_stuttgart.ims.nlpbase.tools.TokenizerStanford;
+import de.uni_stuttgart.ims.compranking.rank.TokenCountCache;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool.TokenizerType;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
 import de.uni_stuttgart.ims.util.Fileutils;
 
 
@@ -30,7 +40,7 @@ import de.uni_stuttgart.ims.util.Fileutils;
 Extract ranking from Amazon reviews by review length
 
 **/
-public class RankingFromLength {
+public class RankingFromLength implements ReviewConsumer<RankingFromLength> {
 
 
    // Debug/bookkeeping
@@ -38,15 +48,66 @@ public class RankingFromLength {
    private int numberTokens = 0;
 
 
-   //private int correctpartslength = 8; // OLD amazon format
-   private int correctpartslength = 10; // NEW amazon format
    private boolean ignoreformaterrors = true;
 
+   /**
+    * How to read the input files.
+    */
+   static ReadMode readMode = ReadMode.mapped;
+
+   /**
+    * Number of threads that process one input file
+    * (the file is split into parts).
+    */
+   static int numberThreads = 1;
+
+   /**
+    * Convert the input files to review stores on the first run
+    * and read the stores afterwards (see ReviewStore).
+    */
+   static boolean useReviewStore = false;
+
+   /**
+    * Read only the reviews of relevant products,
+    * using a product index for every input file (see ProductIndex).
+    * Not used for review stores and gzipped files.
+    */
+   static boolean useProductIndex = false;
+
+   /**
+    * Drop reviews that were already read from another file
+    * (or earlier in the same file): same product, reviewer and text,
+    * see FingerprintSet.
+    */
+   static boolean dropDuplicates = false;
+
+   /**
+    * Number of input files that are read at the same time,
+    * each into its own counters that are joined in file order
+    * (see ChunkedReviewReader.processFiles), the output is the same.
+    * 0 to read one file after the other.
+    * Not used with dropDuplicates (which of two duplicates is kept
+    * would depend on the threads).
+    */
+   static int fileThreads = 0;
+
+   /**
+    * Tokenize with FastTokenizer instead of TokenizerStanford
+    * (much faster, the tokens differ a little, see TokenizerComparison).
+    * The token count cache has to be another file for each tokenizer.
+    */
+   static boolean useFastTokenizer = false;
+
+   /**
+    * File of the token counts of all texts that were tokenized before
+    * (see TokenCountCache), the texts in it are not tokenized again.
+    * null to tokenize every text.
+    */
+   static String tokenCountCache = null;
+
    private ProductOpinionCounterNumeric counterLengthNorm;
    private ProductOpinionCounterNumeric counterLengthNonNorm;
-
-   private boolean useMyOwnID = true; // generate own ID, discard those found in Amazon file
-   private TokenizerStanford tokenizer;
+   private Tokenizer tokenizer;
 
    /**
     * Extract ranking from Amazon reviews by review length
@@ -97,10 +158,22 @@ public class RankingFromLength {
          e.printStackTrace();
       }
 
+      if (tokenCountCache != null) {
+         try {
+            a.tokenCounts = new TokenCountCache(tokenCountCache);
+         } catch (IOException e) {
+            System.err.println("ERROR while opening token count cache: " + e.getMessage());
+         }
+      }
+
 
-      for (String csvFile : files) {
-         System.out.println("Process file: " + csvFile);
-         a.analyze(csvFile);
+      if (fileThreads > 0) {
+         a.analyzeFiles(files);
+      } else {
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            a.analyze(csvFile);
+         }
       }
 
 
@@ -111,6 +184,7 @@ public class RankingFromLength {
 
       a.endDocument();
 
+      System.out.println(TokenizerPool.getStatistics());
       System.out.println("done.");
    }
 
@@ -118,18 +192,45 @@ public class RankingFromLength {
 
 
    private RankingFromLength () {
+      // Initialize tokenizer (Stanford)
+      this(newTokenizer());
+   }
+
+
+   /**
+    * Use this tokenizer (may be null if the lengths
+    * are given with addLength).
+    *
+    * @param tokenizer
+    */
+   RankingFromLength (Tokenizer tokenizer) {
 
       // Initialize product counter
       counterLengthNorm = new ProductOpinionCounterNumeric(true);
       counterLengthNonNorm = new ProductOpinionCounterNumeric(false);
 
-      // Initialize tokenizer (Stanford)
-      tokenizer = new TokenizerStanford();
+      this.tokenizer = tokenizer;
 
    }
 
 
-   private TreeSet<String> relevantProducts;
+   TreeSet<String> relevantProducts;
+
+   /**
+    * Lookup of the relevant products by the bytes of the product ID
+    * (created on first use).
+    */
+   private ProductLookup relevantLookup = null;
+
+   /**
+    * Fingerprints of the reviews read so far (with dropDuplicates).
+    */
+   private FingerprintSet seenReviews = null;
+
+   /**
+    * Token counts of texts (with tokenCountCache, shared with the forks).
+    */
+   private TokenCountCache tokenCounts = null;
 
 
    private void readRelevantProducts (String filename) throws FileNotFoundException {
@@ -160,105 +261,159 @@ public class RankingFromLength {
 
 
 
-   private void analyze (String csvFile) {
+   /**
+    * Tokenizer of the type that is set (see useFastTokenizer)
+    * from the tokenizer pool.
+    */
+   private static Tokenizer newTokenizer () {
+      return TokenizerPool.acquire((useFastTokenizer) ? TokenizerType.fast : TokenizerType.stanford);
+   }
 
 
-      // open input file
-      BufferedReader br = null;
-      try {
-         br = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(csvFile)), Charset.forName("UTF-8")));
-      } catch (FileNotFoundException e) {
-         e.printStackTrace();
-      }
 
-      int tmp = csvFile.lastIndexOf('/');
-      String prefix = csvFile.substring(Math.max(0, tmp+1), Math.max(0, csvFile.indexOf('.', tmp))) + "-";
+   /**
+    * Read all files at the same time (see fileThreads).
+    */
+   private void analyzeFiles (String[] files) {
+
+      // the first file that has a review is the one that counts it
+      if (dropDuplicates) {
+         System.err.println("WARNING: fileThreads is not used with dropDuplicates, read one file after the other");
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            analyze(csvFile);
+         }
+         return;
+      }
 
-      String strLine = "";
-      int lineno = 0;
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
+
+      ChunkedReviewReader.processFiles(files, this, fileThreads, new ChunkedReviewReader.FileTask<RankingFromLength>() {
+         public void analyze (RankingFromLength part, String csvFile) {
+            System.out.println("Process file: " + csvFile);
+            part.seenReviews = seenReviews;
+            part.tokenCounts = tokenCounts;
+            part.analyze(csvFile);
+         }
+      });
+   }
 
-      while (strLine != null) {
 
-         String id = prefix + lineno; // fallback id
-         lineno++;
 
-         // Read line (= 1 review)
-         try {
-            strLine = br.readLine();
-         } catch (IOException e1) {
-            e1.printStackTrace();
-         }
-         if (strLine == null) break;
+   private void analyze (String csvFile) {
 
+      if (useReviewStore)
+         csvFile = ReviewStore.convertIfNeeded(csvFile);
 
-         // Split at "," (delims)
-         // for "all" format - split at \t
-         String[] parts = strLine.split("\",\"");
-         if (parts.length != correctpartslength) {
-            parts = strLine.split("\t");
-         }
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
 
-         // Ignore things that are not reviews
-         // (there are some errors in the extraction script)
-         if (parts.length != correctpartslength ) {
-            if (!ignoreformaterrors)
-               System.out.println(parts.length + " parts -- ignore line " + Arrays.toString(parts));
-            continue;
-         } else {
-            //System.out.println(parts.length + " parts correct " + Arrays.toString(parts));
+      int lines = ChunkedReviewReader.process(csvFile, this, numberThreads, readMode, ignoreformaterrors, (useProductIndex) ? relevantProducts : null, seenReviews);
 
-         }
+      System.out.println("... processed " + lines + " reviews.");
+      if (seenReviews != null)
+         System.out.println("... " + seenReviews.getNumberDuplicates() + " duplicate reviews dropped so far.");
 
+   }
 
 
-         /// Format:
-         // all:
-         // Username \t Date \t Product ID \t Reviewer ID \t ? \t <empty> \t Rating \t Helpful \t Title \t \Review
-         // = 9 parts
-         // S. Pulgarin 25.09.2014  B00KKG1846  R28SZ7VYJM9XC6 84    5.0   0/0   Five Stars  Works as expected.
 
-         // italy:
-         // 0 \t XX \t Product ID \t Rating \t ? \t ? \t Date \t Reviewer ID \t Title \t \Review
-         // = 10 parts
-         // "0","XX","0061785679","5.0","0","0","February 9, 2015","A3GZG3F23DL9U1","Five Stars","Loved it"
+   /**
+    * Count the length of one review.
+    */
+   public void processReview (Review review) {
+
+      // Ignore things that are not reviews
+      // (there are some errors in the extraction script)
+      if (!review.isValid())
+         return;
+
+      // consider only relevant products
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
+      String product = relevantLookup.lookup(review.getProductIDView());
+      if (product == null)
+         return;
+
+      // Tokenize (if the text is not in the cache)
+      int numberTokens = -1;
+      long hash = 0;
+      if (tokenCounts != null) {
+         hash = review.getTextHash();
+         numberTokens = tokenCounts.get(hash);
+      }
+      if (numberTokens < 0) {
+         numberTokens = FastTokenizer.countTokens(tokenizer, review.getText());
+         if (tokenCounts != null)
+            tokenCounts.put(hash, numberTokens);
+      }
+      addLength(product, review.getKey(), numberTokens);
 
+   }
 
-         // Get parts (id, title, text, product)
-         if (!parts[0].trim().isEmpty() & !useMyOwnID)
-            id = parts[0].substring(1); // clip of first "
 
-         String product = parts[2];
 
-         // consider only relevant products
-         if (!relevantProducts.contains(product))
-            continue;
+   /**
+    * Count a review of this product with this length (in tokens).
+    *
+    * @param product
+    * @param key numeric key of the review
+    * @param length
+    */
+   void addLength (String product, long key, int length) {
+      numberReviews++;
+      numberTokens+=length;
+      counterLengthNorm.addRating(product, key, length);
+      counterLengthNonNorm.addRating(product, key, length);
+   }
 
-         numberReviews++;
 
-         String text = parts[parts.length-1];
-         text = text.substring(0, text.length()-1); // clip of last "
 
+   /**
+    * Only product and text are used (no title).
+    */
+   public EnumSet<Field> getFields () {
+      return EnumSet.of(Field.product, Field.text);
+   }
 
-         // Tokenize
-         String[] tokens = tokenizer.tokenize(text);
-         numberTokens+=tokens.length;
-         counterLengthNorm.addRating(product, id, tokens.length);
-         counterLengthNonNorm.addRating(product, id, tokens.length);
 
+   /**
+    * New instance with the same relevant products and empty counters.
+    */
+   public RankingFromLength fork () {
+      RankingFromLength part = new RankingFromLength();
+      part.relevantProducts = relevantProducts;
+      part.relevantLookup = relevantLookup;
+      part.tokenCounts = tokenCounts;
+      return part;
+   }
 
-         //if (lineno > 25) break; // DEBUG !!!
 
+   /**
+    * Add the counts of a forked instance.
+    */
+   public void join (RankingFromLength part) {
+      numberReviews += part.numberReviews;
+      numberTokens += part.numberTokens;
+      counterLengthNorm.merge(part.counterLengthNorm);
+      counterLengthNonNorm.merge(part.counterLengthNonNorm);
+      TokenizerPool.release(part.tokenizer);
+   }
 
-      }
 
-      System.out.println("... processed " + lineno + " reviews.");
 
 
+   /**
+    * The counters (normalized, not normalized), e.g. for a checkpoint.
+    */
+   ProductOpinionCounter[] getCounters () {
+      return new ProductOpinionCounter[] {counterLengthNorm, counterLengthNonNorm};
    }
 
 
-
-
    /**
     * Called at the end of processing, write ranking to file
     */
@@ -280,6 +435,13 @@ public class RankingFromLength {
    public void endDocument () {
       System.out.println( "Processed " + numberReviews + " relevant reviews, with "
                + numberTokens + " tokens.");
+      if (tokenCounts != null) {
+         System.out.println("token count cache: " + tokenCounts.getStatistics());
+         Fileutils.closeSilently(tokenCounts);
+         tokenCounts = null;
+      }
+      TokenizerPool.release(tokenizer);
+      tokenizer = null;
    }
 
 }
@@ -14,13 +14,18 @@ import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.TreeSet;
 
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounter;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterNumeric;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
 import de.uni_stuttgart.ims.util.Fileutils;
 
 
@@ -29,7 +34,7 @@ import de.uni_stuttgart.ims.util.Fileutils;
 Extract ranking from Amazon reviews by star ratings
 
 **/
-public class RankingFromReviews {
+public class RankingFromReviews implements ReviewConsumer<RankingFromReviews> {
 
 
    // Debug/bookkeeping
@@ -37,16 +42,53 @@ public class RankingFromReviews {
    int[] ratingDistribution;
    int numberReviewsRelevant = 0;
 
-   //private int correctpartslength = 8; // OLD amazon format
-   private int correctpartslength = 10; // NEW amazon format
    private boolean ignoreformaterrors = true;
 
+   /**
+    * How to read the input files.
+    */
+   static ReadMode readMode = ReadMode.mapped;
+
+   /**
+    * Number of threads that process one input file
+    * (the file is split into parts).
+    */
+   static int numberThreads = 1;
+
+   /**
+    * Convert the input files to review stores on the first run
+    * and read the stores afterwards (see ReviewStore).
+    */
+   static boolean useReviewStore = false;
+
+   /**
+    * Read only the reviews of relevant products,
+    * using a product index for every input file (see ProductIndex).
+    * Not used for review stores and gzipped files.
+    */
+   static boolean useProductIndex = false;
+
+   /**
+    * Drop reviews that were already read from another file
+    * (or earlier in the same file): same product, reviewer and text,
+    * see FingerprintSet.
+    */
+   static boolean dropDuplicates = false;
+
+   /**
+    * Number of input files that are read at the same time,
+    * each into its own counters that are joined in file order
+    * (see ChunkedReviewReader.processFiles), the output is the same.
+    * 0 to read one file after the other.
+    * Not used with dropDuplicates (which of two duplicates is kept
+    * would depend on the threads).
+    */
+   static int fileThreads = 0;
+
    private ProductOpinionCounterNumeric counterStars;
    private ProductOpinionCounterNumeric counterMentions;
 
 
-   private boolean useMyOwnID = true; // generate own ID, discard those found in Amazon file
-
 
    /**
     * Extract ranking from Amazon reviews by star ratings
@@ -101,9 +143,13 @@ public class RankingFromReviews {
          e.printStackTrace();
       }
 
-      for (String csvFile : files) {
-         System.out.println("Process file: " + csvFile);
-         a.analyze(csvFile);
+      if (fileThreads > 0) {
+         a.analyzeFiles(files);
+      } else {
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            a.analyze(csvFile);
+         }
       }
 
       a.writeToFileStars(outputRankingStars);
@@ -120,7 +166,7 @@ public class RankingFromReviews {
 
 
 
-   private RankingFromReviews () {
+   RankingFromReviews () {
 
 
       // Initialize product counter
@@ -133,7 +179,18 @@ public class RankingFromReviews {
 
 
 
-   private TreeSet<String> relevantProducts;
+   TreeSet<String> relevantProducts;
+
+   /**
+    * Lookup of the relevant products by the bytes of the product ID
+    * (created on first use).
+    */
+   private ProductLookup relevantLookup = null;
+
+   /**
+    * Fingerprints of the reviews read so far (with dropDuplicates).
+    */
+   private FingerprintSet seenReviews = null;
 
 
    private void readRelevantProducts (String filename) throws FileNotFoundException {
@@ -165,113 +222,136 @@ public class RankingFromReviews {
 
 
 
-   private void analyze (String csvFile) {
-
-
-      // open input file
-      BufferedReader br = null;
-      try {
-         br = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(csvFile)), Charset.forName("UTF-8")));
-      } catch (FileNotFoundException e) {
-         e.printStackTrace();
+   /**
+    * Read all files at the same time (see fileThreads).
+    */
+   private void analyzeFiles (String[] files) {
+
+      // the first file that has a review is the one that counts it
+      if (dropDuplicates) {
+         System.err.println("WARNING: fileThreads is not used with dropDuplicates, read one file after the other");
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            analyze(csvFile);
+         }
+         return;
       }
 
-      int tmp = csvFile.lastIndexOf('/');
-      String prefix = csvFile.substring(Math.max(0, tmp+1), Math.max(0, csvFile.indexOf('.', tmp))) + "-";
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
 
-      String strLine = "";
-      int lineno = 0;
+      ChunkedReviewReader.processFiles(files, this, fileThreads, new ChunkedReviewReader.FileTask<RankingFromReviews>() {
+         public void analyze (RankingFromReviews part, String csvFile) {
+            System.out.println("Process file: " + csvFile);
+            part.seenReviews = seenReviews;
+            part.analyze(csvFile);
+         }
+      });
+   }
 
-      while (strLine != null) {
 
-         String id = prefix + lineno; // fallback id
-         numberReviews++;
-         lineno++;
 
-         // Read line (= 1 review)
-         try {
-            strLine = br.readLine();
-         } catch (IOException e1) {
-            e1.printStackTrace();
-         }
-         if (strLine == null) break;
+   private void analyze (String csvFile) {
 
+      if (useReviewStore)
+         csvFile = ReviewStore.convertIfNeeded(csvFile);
 
-         // Split at "," (delims)
-         // for "all" format - split at \t
-         boolean splitTab = false;
-         String[] parts = strLine.split("\",\"");
-         if (parts.length != correctpartslength) {
-            parts = strLine.split("\t");
-            splitTab = true;
-         }
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
 
-         // Ignore things that are not reviews
-         // (there are some errors in the extraction script)
-         if (parts.length != correctpartslength) {
-            if (!ignoreformaterrors)
-               System.out.println(parts.length + " parts -- ignore line " + Arrays.toString(parts));
-            continue;
-         } else {
-            //System.out.println(parts.length + " parts correct " + Arrays.toString(parts));
+      int lines = ChunkedReviewReader.process(csvFile, this, numberThreads, readMode, ignoreformaterrors, (useProductIndex) ? relevantProducts : null, seenReviews);
 
-         }
+      System.out.println("... processed " + lines + " reviews.");
+      if (seenReviews != null)
+         System.out.println("... " + seenReviews.getNumberDuplicates() + " duplicate reviews dropped so far.");
 
+   }
 
 
-         /// Format:
-         // all:
-         // Username \t Date \t Product ID \t Reviewer ID \t ? \t <empty> \t Rating \t Helpful \t Title \t \Review
-         // = 9 parts
-         // S. Pulgarin 25.09.2014  B00KKG1846  R28SZ7VYJM9XC6 84    5.0   0/0   Five Stars  Works as expected.
 
-         // italy:
-         // 0 \t XX \t Product ID \t Rating \t ? \t ? \t Date \t Reviewer ID \t Title \t \Review
-         // = 10 parts
-         // "0","XX","0061785679","5.0","0","0","February 9, 2015","A3GZG3F23DL9U1","Five Stars","Loved it"
+   /**
+    * Count the rating of one review.
+    */
+   public void processReview (Review review) {
 
+      numberReviews++;
 
-         // Get parts (id, title, text, product)
-         if (!parts[0].trim().isEmpty() & !useMyOwnID)
-            id = parts[0].substring(1); // clip of first "
+      // Ignore things that are not reviews
+      // (there are some errors in the extraction script)
+      if (!review.isValid())
+         return;
 
-         String product = parts[2];
+      // consider only relevant products
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
+      String product = relevantLookup.lookup(review.getProductIDView());
+      if (product == null)
+         return;
 
+      numberReviewsRelevant++;
 
-         // consider only relevant products
-         if (!relevantProducts.contains(product))
-            continue;
 
-         numberReviewsRelevant++;
+      double rating = review.getRating();
 
+      // DEBUG
+      ratingDistribution[(int) rating]++;
 
-         String rating = parts[3];
-         if (splitTab)
-            rating = parts[6];
+      // TODO throw exception if rating is out of range??
 
-         // DEBUG
-         ratingDistribution[(int) Double.parseDouble(rating)]++;
+      long key = review.getKey();
+      counterStars.addRating(product, key, rating);
+      counterMentions.addRating(product, key, 1);
 
-         // TODO throw exception if rating is out of range??
+      //System.out.println(product + " - " + rating );
 
-         counterStars.addRating(product, id, rating);
-         counterMentions.addRating(product,id, 1);
+   }
 
-         //System.out.println(product + " - " + rating );
 
-         //if (lineno > 25) break; // DEBUG !!!
 
+   /**
+    * Only product and rating are used.
+    */
+   public EnumSet<Field> getFields () {
+      return EnumSet.of(Field.product, Field.rating);
+   }
 
-      }
 
-      System.out.println("... processed " + lineno + " reviews.");
+   /**
+    * New instance with the same relevant products and empty counters.
+    */
+   public RankingFromReviews fork () {
+      RankingFromReviews part = new RankingFromReviews();
+      part.relevantProducts = relevantProducts;
+      part.relevantLookup = relevantLookup;
+      return part;
+   }
 
 
+   /**
+    * Add the counts of a forked instance.
+    */
+   public void join (RankingFromReviews part) {
+      numberReviews += part.numberReviews;
+      numberReviewsRelevant += part.numberReviewsRelevant;
+      for (int i=0; i<ratingDistribution.length; i++)
+         ratingDistribution[i] += part.ratingDistribution[i];
+      counterStars.merge(part.counterStars);
+      counterMentions.merge(part.counterMentions);
    }
 
 
 
 
+   /**
+    * The counters (stars, mentions), e.g. for a checkpoint.
+    */
+   ProductOpinionCounter[] getCounters () {
+      return new ProductOpinionCounter[] {counterStars, counterMentions};
+   }
+
+
    /**
     * Called at the end of processing, write ranking to file
     */
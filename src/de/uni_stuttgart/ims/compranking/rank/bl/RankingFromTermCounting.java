@@ -16,15 +16,26 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.TreeSet;
 
+import de.uni_stuttgart.ims.compranking.rank.FastTokenizer;
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline.Block;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg.PolarityMode;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool.TokenizerType;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
 import de.uni_stuttgart.ims.compranking.rank.bl.SentimentDictionary.DictionaryType;
 import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
-import de.uni_stuttgart.ims.nlpbase.tools.TokenizerStanford;
 import de.uni_stuttgart.ims.util.Fileutils;
 
 
@@ -33,7 +44,7 @@ import de.uni_stuttgart.ims.util.Fileutils;
 Extract ranking from Amazon reviews by counting sentiment terms
 
 **/
-public class RankingFromTermCounting {
+public class RankingFromTermCounting implements ReviewConsumer<RankingFromTermCounting> {
 
 
 
@@ -43,21 +54,93 @@ public class RankingFromTermCounting {
    private int numberTermsNeg = 0;
 
 
-   //private int correctpartslength = 8; // OLD amazon format
-   private int correctpartslength = 10; // NEW amazon format
    private boolean ignoreformaterrors = true;
 
+   /**
+    * How to read the input files.
+    */
+   static ReadMode readMode = ReadMode.mapped;
+
+   /**
+    * Number of threads that process one input file
+    * (the file is split into parts).
+    */
+   static int numberThreads = 1;
+
+   /**
+    * Convert the input files to review stores on the first run
+    * and read the stores afterwards (see ReviewStore).
+    */
+   static boolean useReviewStore = false;
+
+   /**
+    * Read only the reviews of relevant products,
+    * using a product index for every input file (see ProductIndex).
+    * Not used for review stores and gzipped files.
+    */
+   static boolean useProductIndex = false;
+
+   /**
+    * Drop reviews that were already read from another file
+    * (or earlier in the same file): same product, reviewer and text,
+    * see FingerprintSet.
+    */
+   static boolean dropDuplicates = false;
+
+   /**
+    * Number of input files that are read at the same time,
+    * each into its own counters that are joined in file order
+    * (see ChunkedReviewReader.processFiles), the output is the same.
+    * 0 to read one file after the other.
+    * Not used with dropDuplicates (which of two duplicates is kept
+    * would depend on the threads).
+    */
+   static int fileThreads = 0;
+
+   /**
+    * Tokenize with FastTokenizer instead of TokenizerStanford
+    * (much faster, the tokens differ a little, see TokenizerComparison).
+    */
+   static boolean useFastTokenizer = false;
+
+   /**
+    * Find the terms with TermScanner in the bytes of the reviews
+    * instead of tokenizing them (much faster, the number of tokens
+    * is estimated and the terms are almost the same as with a tokenizer).
+    */
+   static boolean useTermScanner = false;
+
+   /**
+    * Number of tokenizer threads in a read-ahead pipeline
+    * (see LinePipeline): one thread reads blocks of the file,
+    * the workers tokenize the reviews, this thread counts the terms.
+    * 0 to read with ChunkedReviewReader instead.
+    * Not used for review stores and with the product index.
+    */
+   static int pipelineWorkers = 0;
+
 
    private ProductOpinionCounterPosNeg counterTerms;
 
    private SentimentDictionary dictionary;
 
-
-   private boolean useMyOwnID = true; // generate own ID, discard those found in Amazon file
    private boolean includeTitle;
+   private boolean normalization;
 
    private Tokenizer tokenizer;
 
+   /**
+    * Counts the terms of a text with the tokenizer and dictionary
+    * (created on first use).
+    */
+   private TermCounts termCounts = null;
+
+   /**
+    * Finds the terms of the dictionary without tokenizer
+    * (with useTermScanner, shared with the forks).
+    */
+   private TermScanner scanner = null;
+
 
    /**
     * Extract ranking from Amazon reviews by counting sentiment terms.
@@ -125,9 +208,13 @@ public class RankingFromTermCounting {
 
             a.reset(dictionarytype, normalization);
 
-            for (String csvFile : files) {
-               System.out.println("Process file: " + csvFile);
-               a.analyze(csvFile);
+            if (fileThreads > 0) {
+               a.analyzeFiles(files);
+            } else {
+               for (String csvFile : files) {
+                  System.out.println("Process file: " + csvFile);
+                  a.analyze(csvFile);
+               }
             }
 
             String f = (normalization)?"Norm":"NN";
@@ -137,6 +224,8 @@ public class RankingFromTermCounting {
          }
       }
 
+      TokenizerPool.release(a.tokenizer);
+      System.out.println(TokenizerPool.getStatistics());
       System.out.println("done.");
    }
 
@@ -150,21 +239,64 @@ public class RankingFromTermCounting {
    private RankingFromTermCounting (DictionaryType dictionarytype, boolean normalization) {
 
       // Initialize tokenizer (Stanford)
-      tokenizer = new TokenizerStanford();
+      tokenizer = newTokenizer();
 
       reset(dictionarytype, normalization);
    }
 
 
-   private void reset (DictionaryType dictionarytype, boolean normalization)  {
+   /**
+    * Use this tokenizer (may be null if the tokens
+    * are given with processTokens), call reset before use.
+    *
+    * @param tokenizer
+    */
+   RankingFromTermCounting (Tokenizer tokenizer) {
+      this.tokenizer = tokenizer;
+   }
+
+
+   /**
+    * Fork: same settings and dictionary, empty counter.
+    */
+   private RankingFromTermCounting (RankingFromTermCounting parent) {
+      this(parent, newTokenizer());
+   }
+
+
+   /**
+    * Fork: same settings and dictionary, empty counter, this tokenizer.
+    */
+   RankingFromTermCounting (RankingFromTermCounting parent, Tokenizer tokenizer) {
+
+      this.tokenizer = tokenizer;
+
+      counterTerms = new ProductOpinionCounterPosNeg(PolarityMode.both, parent.normalization);
+      dictionary = parent.dictionary;
+      scanner = parent.scanner;
+      normalization = parent.normalization;
+      includeTitle = parent.includeTitle;
+      relevantProducts = parent.relevantProducts;
+      relevantLookup = parent.relevantLookup;
+   }
+
+
+   void reset (DictionaryType dictionarytype, boolean normalization)  {
 
       // Initialize polarity score counter
       // (do both polarities, normalize)
       counterTerms = new ProductOpinionCounterPosNeg(PolarityMode.both, normalization);
+      this.normalization = normalization;
+
+      // every setting reads all files again
+      seenReviews = null;
 
 
       // Initialize sentiment dictionary
-      dictionary = new SentimentDictionary(dictionarytype);
+      // (read only once for all settings, see SentimentDictionary.get)
+      dictionary = SentimentDictionary.get(dictionarytype);
+      termCounts = null;
+      scanner = (useTermScanner) ? dictionary.getScanner() : null;
 
 
       if (addAsNeutral) {
@@ -179,9 +311,34 @@ public class RankingFromTermCounting {
 
 
    private TreeSet<String> relevantProducts;
+
+   /**
+    * Lookup of the relevant products by the bytes of the product ID
+    * (created on first use).
+    */
+   private ProductLookup relevantLookup = null;
+
+   /**
+    * Fingerprints of the reviews read so far (with dropDuplicates).
+    */
+   private FingerprintSet seenReviews = null;
+
    private boolean addAsNeutral;
 
 
+   /**
+    * Use these relevant products (call before reset).
+    *
+    * @param relevantProducts
+    * @param addAsNeutral
+    */
+   void setRelevantProducts (TreeSet<String> relevantProducts, boolean addAsNeutral) {
+      this.relevantProducts = relevantProducts;
+      this.relevantLookup = null;
+      this.addAsNeutral = addAsNeutral;
+   }
+
+
    private void readRelevantProducts (String filename, boolean addAsNeutral) throws FileNotFoundException {
 
       DataInputStream fstream = new DataInputStream(new FileInputStream(filename));
@@ -215,131 +372,327 @@ public class RankingFromTermCounting {
 
 
 
-   private void analyze (String csvFile) {
+   /**
+    * Tokenizer of the type that is set (see useFastTokenizer)
+    * from the tokenizer pool, null with useTermScanner.
+    */
+   private static Tokenizer newTokenizer () {
+      if (useTermScanner)
+         return null;
+      return TokenizerPool.acquire((useFastTokenizer) ? TokenizerType.fast : TokenizerType.stanford);
+   }
 
 
-      // open input file
-      BufferedReader br = null;
-      try {
-         br = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(csvFile)), Charset.forName("UTF-8")));
-      } catch (FileNotFoundException e) {
-         // TODO Auto-generated catch block
-         e.printStackTrace();
+
+   /**
+    * Read all files at the same time (see fileThreads).
+    */
+   private void analyzeFiles (String[] files) {
+
+      // the first file that has a review is the one that counts it
+      if (dropDuplicates) {
+         System.err.println("WARNING: fileThreads is not used with dropDuplicates, read one file after the other");
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            analyze(csvFile);
+         }
+         return;
       }
 
-      int tmp = csvFile.lastIndexOf('/');
-      String prefix = csvFile.substring(Math.max(0, tmp+1), Math.max(0, csvFile.indexOf('.', tmp))) + "-";
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
 
-      String strLine = "";
-      int lineno = 0;
+      ChunkedReviewReader.processFiles(files, this, fileThreads, new ChunkedReviewReader.FileTask<RankingFromTermCounting>() {
+         public void analyze (RankingFromTermCounting part, String csvFile) {
+            System.out.println("Process file: " + csvFile);
+            part.seenReviews = seenReviews;
+            part.analyze(csvFile);
+         }
+      });
+   }
 
-      while (strLine != null) {
 
-         String id = prefix + lineno; // fallback id
-         lineno++;
 
-         // Read line (= 1 review)
-         try {
-            strLine = br.readLine();
-         } catch (IOException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-         }
-         if (strLine == null) break;
+   private void analyze (String csvFile) {
 
+      if (useReviewStore)
+         csvFile = ReviewStore.convertIfNeeded(csvFile);
 
-         // Split at "," (delims)
-         // for "all" format - split at \t
-         String[] parts = strLine.split("\",\"");
-         if (parts.length != correctpartslength) {
-            parts = strLine.split("\t");
-         }
+      if (dropDuplicates && seenReviews == null)
+         seenReviews = new FingerprintSet();
 
-         // Ignore things that are not reviews
-         // (there are some errors in the extraction script)
-         if (parts.length != correctpartslength ) {
-            if (!ignoreformaterrors)
-               System.out.println(parts.length + " parts -- ignore line " + Arrays.toString(parts));
-            continue;
-         } else {
-            //System.out.println(parts.length + " parts correct " + Arrays.toString(parts));
+      if (pipelineWorkers > 0 && !useProductIndex && !ReviewStore.isStore(csvFile))
+         analyzePipelined(csvFile);
+      else
+         ChunkedReviewReader.process(csvFile, this, numberThreads, readMode, ignoreformaterrors, (useProductIndex) ? relevantProducts : null, seenReviews);
 
-         }
+      if (seenReviews != null)
+         System.out.println("... " + seenReviews.getNumberDuplicates() + " duplicate reviews dropped so far.");
 
+   }
 
 
-         /// Format:
-         // all:
-         // Username \t Date \t Product ID \t Reviewer ID \t ? \t <empty> \t Rating \t Helpful \t Title \t \Review
-         // = 9 parts
-         // S. Pulgarin 25.09.2014  B00KKG1846  R28SZ7VYJM9XC6 84    5.0   0/0   Five Stars  Works as expected.
+   /**
+    * Number of tokens and sentiment terms of a text,
+    * counted without creating Strings for the tokens with FastTokenizer
+    * (see FastTokenizer.TokenVisitor, CompiledLexicon)
+    * or without tokenizer by the scanner. One per thread.
+    */
+   private static class TermCounts extends TermScanner.Counts implements FastTokenizer.TokenVisitor {
+
+      private Tokenizer tokenizer;
+      private SentimentDictionary dictionary;
+      private TermScanner scanner;
+
+      /**
+       * Count with the scanner if it is not null, else with the tokenizer.
+       */
+      TermCounts (Tokenizer tokenizer, SentimentDictionary dictionary, TermScanner scanner) {
+         this.tokenizer = tokenizer;
+         this.dictionary = dictionary;
+         this.scanner = scanner;
+      }
 
-         // italy:
-         // 0 \t XX \t Product ID \t Rating \t ? \t ? \t Date \t Reviewer ID \t Title \t \Review
-         // = 10 parts
-         // "0","XX","0061785679","5.0","0","0","February 9, 2015","A3GZG3F23DL9U1","Five Stars","Loved it"
+      /**
+       * Count the terms in the text (or title) of the review.
+       */
+      void count (Review review, boolean title) {
+         if (scanner != null) {
+            scanner.scan((title) ? review.getTitleView() : review.getTextView(), this);
+            return;
+         }
+         numberPos = 0;
+         numberNeg = 0;
+         numberTokens = FastTokenizer.tokenize(tokenizer, (title) ? review.getTitle() : review.getText(), this);
+      }
 
+      public void token (char[] text, int offset, int length) {
+         byte polarity = dictionary.polarityOf(text, offset, length);
+         if ((polarity & SentimentDictionary.POSITIVE) != 0)
+            numberPos++;
+         if ((polarity & SentimentDictionary.NEGATIVE) != 0)
+            numberNeg++;
+      }
+   }
 
-         // Get parts (id, title, text, product)
-         if (!parts[0].trim().isEmpty() & !useMyOwnID)
-            id = parts[0].substring(1); // clip of first "
 
-         String product = parts[2];
+   /**
+    * Counts of one review of a relevant product
+    * (result of the workers of the pipeline).
+    */
+   private static class CountedReview {
+      int numberTokens;
+      int numberPos;
+      int numberNeg;
+      int numberTitleTokens;
+      int numberTitlePos;
+      int numberTitleNeg;
+      String product;
+      long key;
+      long fingerprint;
+   }
 
 
-         // consider only relevant products
-         if (!relevantProducts.contains(product))
-            continue;
+   /**
+    * Read the file in a pipeline:
+    * the workers tokenize the reviews of relevant products
+    * and look up the terms, the counts are added in this thread in file order.
+    * Duplicates are dropped when the counts are added (in file order),
+    * so they are tokenized as well.
+    */
+   private void analyzePipelined (final String csvFile) {
 
-         numberReviews++;
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
 
+      final EnumSet<Field> fields = ChunkedReviewReader.getFields(this, seenReviews);
 
-         String text = parts[parts.length-1];
-         text = text.substring(0, text.length()-1); // clip of last "
-         processText(text, product, id);
+      LinePipeline.Stage<TermCounts, CountedReview> stage = new LinePipeline.Stage<TermCounts, CountedReview>() {
 
-         if (includeTitle) {
-            String title = parts[parts.length-2];
-            processText(title, product, id);
+         public TermCounts newWorker () {
+            return new TermCounts(newTokenizer(), dictionary, scanner);
+         }
+
+         public void prepare (TermCounts worker, Block block, List<CountedReview> results) {
+            AmazonFormatReader reader = new AmazonFormatReader(block.filename, block.bytes, block.length, block.firstLineno);
+            reader.setIgnoreFormatErrors(ignoreformaterrors);
+            reader.setFields(fields);
+            while (reader.next()) {
+               Review review = reader.getReview();
+               String product = relevantLookup.lookup(review);
+               if (product == null)
+                  continue;
+               CountedReview result = new CountedReview();
+               if (seenReviews != null)
+                  result.fingerprint = review.getFingerprint();
+               worker.count(review, false);
+               result.numberTokens = worker.numberTokens;
+               result.numberPos = worker.numberPos;
+               result.numberNeg = worker.numberNeg;
+               if (includeTitle) {
+                  worker.count(review, true);
+                  result.numberTitleTokens = worker.numberTokens;
+                  result.numberTitlePos = worker.numberPos;
+                  result.numberTitleNeg = worker.numberNeg;
+               }
+               result.product = product;
+               result.key = review.getKey();
+               results.add(result);
+            }
+            reader.close();
+         }
 
+         public void consume (CountedReview result) {
+            // duplicates are dropped here, in file order
+            if (seenReviews != null && !seenReviews.add(result.fingerprint))
+               return;
+            numberReviews++;
+            addCounts(result.product, result.key, result.numberTokens, result.numberPos, result.numberNeg);
+            if (includeTitle)
+               addCounts(result.product, result.key, result.numberTitleTokens, result.numberTitlePos, result.numberTitleNeg);
          }
 
-         //System.out.println(product + " - " + rating );
+         public void closeWorker (TermCounts worker) {
+            TokenizerPool.release(worker.tokenizer);
+         }
+      };
 
-         //if (lineno > 25) break; // DEBUG !!!
+      try {
+         new LinePipeline<TermCounts, CountedReview>(stage, pipelineWorkers).process(csvFile);
+      } catch (IOException e) {
+         // the counts are incomplete, do not write them
+         throw new UncheckedIOException("ERROR while reading file " + csvFile, e);
+      }
+   }
 
 
+
+   /**
+    * Count the sentiment terms in one review.
+    */
+   public void processReview (Review review) {
+
+      // Ignore things that are not reviews
+      // (there are some errors in the extraction script)
+      if (!review.isValid())
+         return;
+
+      // consider only relevant products
+      if (relevantLookup == null)
+         relevantLookup = new ProductLookup(relevantProducts);
+      String product = relevantLookup.lookup(review.getProductIDView());
+      if (product == null)
+         return;
+
+      // Tokenize (or scan) and count without creating Strings for the tokens
+      if (termCounts == null)
+         termCounts = new TermCounts(tokenizer, dictionary, scanner);
+      long key = review.getKey();
+
+      numberReviews++;
+      termCounts.count(review, false);
+      addCounts(product, key, termCounts.numberTokens, termCounts.numberPos, termCounts.numberNeg);
+      if (includeTitle) {
+         termCounts.count(review, true);
+         addCounts(product, key, termCounts.numberTokens, termCounts.numberPos, termCounts.numberNeg);
       }
 
-      //System.out.println("... processed " + lineno + " reviews.");
+      //System.out.println(product + " - " + rating );
+
+   }
 
 
+
+   /**
+    * Count the sentiment terms of one review
+    * in the tokenized text (and title).
+    *
+    * @param tokens
+    * @param titleTokens only used if the title is included
+    * @param product
+    * @param key numeric key of the review
+    */
+   void processTokens (String[] tokens, String[] titleTokens, String product, long key) {
+
+      numberReviews++;
+
+      processTokens(tokens, product, key);
+
+      if (includeTitle) {
+         processTokens(titleTokens, product, key);
+      }
    }
 
 
+   /**
+    * Are titles counted as well?
+    */
+   boolean isIncludeTitle () {
+      return includeTitle;
+   }
+
 
-   private void processText (String text, String product, String id) {
 
-      //for (String word : text.split(" ")) { // todo real tokenization??
+   /**
+    * Product and text are used, the title only if it is counted.
+    */
+   public EnumSet<Field> getFields () {
+      EnumSet<Field> fields = EnumSet.of(Field.product, Field.text);
+      if (includeTitle)
+         fields.add(Field.title);
+      return fields;
+   }
+
+
+   /**
+    * New instance with the same settings and dictionary,
+    * and an empty counter.
+    */
+   public RankingFromTermCounting fork () {
+      return new RankingFromTermCounting(this);
+   }
+
+
+   /**
+    * Add the counts of a forked instance.
+    */
+   public void join (RankingFromTermCounting part) {
+      numberReviews += part.numberReviews;
+      numberTermsPos += part.numberTermsPos;
+      numberTermsNeg += part.numberTermsNeg;
+      counterTerms.merge(part.counterTerms);
+      TokenizerPool.release(part.tokenizer);
+   }
 
 
-      String[] tokens = tokenizer.tokenize(text);
 
+   /**
+    * Count the sentiment terms in a tokenized text
+    * (review text or title).
+    *
+    * @param tokens
+    * @param product
+    * @param key numeric key of the review
+    */
+   private void processTokens (String[] tokens, String product, long key) {
 
-      counterTerms.addReviewWithLength(product, id, tokens.length);
-      //System.out.println("process: " + id + "   proct: " + product  + "   add len: " + tokens.length );
+      counterTerms.addReviewWithLength(product, key, tokens.length);
+      //System.out.println("process: " + key + "   proct: " + product  + "   add len: " + tokens.length );
 
       for (int i=0; i<tokens.length; i++) {
 
-         String token = tokens[i].toLowerCase();
+         // one lookup for both polarities, ignoring case
+         byte polarity = dictionary.polarityOf(tokens[i]);
 
-         if (dictionary.isPositiveWord(token)) {
-            counterTerms.addPos(product,id);
+         if ((polarity & SentimentDictionary.POSITIVE) != 0) {
+            counterTerms.addPos(product,key);
             numberTermsPos++;
             //System.out.println("add pos " + word);
          }
-         if (dictionary.isNegative(token)) {
-            counterTerms.addNeg(product,id);
+         if ((polarity & SentimentDictionary.NEGATIVE) != 0) {
+            counterTerms.addNeg(product,key);
             numberTermsNeg++;
             //System.out.println("add neg " + word);
          }
@@ -349,6 +702,37 @@ public class RankingFromTermCounting {
 
 
 
+   /**
+    * Add the counts of a text (review text or title).
+    *
+    * @param product
+    * @param key numeric key of the review
+    * @param numberTokens
+    * @param numberPos number of positive terms
+    * @param numberNeg number of negative terms
+    */
+   private void addCounts (String product, long key, int numberTokens, int numberPos, int numberNeg) {
+
+      counterTerms.addReviewWithLength(product, key, numberTokens);
+
+      for (int i=0; i<numberPos; i++)
+         counterTerms.addPos(product,key);
+      for (int i=0; i<numberNeg; i++)
+         counterTerms.addNeg(product,key);
+      numberTermsPos += numberPos;
+      numberTermsNeg += numberNeg;
+   }
+
+
+
+   /**
+    * The counter, e.g. for a checkpoint.
+    */
+   ProductOpinionCounterPosNeg getCounter () {
+      return counterTerms;
+   }
+
+
    /**
     * Called at the end of processing, write ranking to file
     */
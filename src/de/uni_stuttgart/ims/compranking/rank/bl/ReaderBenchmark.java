@@ -0,0 +1,112 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.File;
+
+import de.uni_stuttgart.ims.compranking.rank.DelimiterScanner;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Compare the speed of reading review dumps
+ * with the delimiters found byte by byte
+ * and 8 bytes at a time (see DelimiterScanner).
+ *
+ * Every file is read completely (split into lines and fields)
+ * in mapped and in stream mode, a few times per setting,
+ * the best time is printed.
+ * Run on files that are in the page cache (run twice)
+ * to measure parsing and not the disk.
+ */
+public class ReaderBenchmark {
+
+
+   /**
+    * Number of runs per file and setting.
+    */
+   static int repetitions = 5;
+
+
+   /**
+    * Usage: ReaderBenchmark <input files (Amazon CSV)>*
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      if (args.length < 1) {
+         System.err.println("Usage: ReaderBenchmark <input files (Amazon CSV)>*");
+         System.exit(1);
+      }
+
+      for (String csvFile : args) {
+
+         double megabytes = new File(csvFile).length() / (1024.0 * 1024.0);
+         System.out.println("File: " + csvFile + String.format(" (%.1f MB)", megabytes));
+
+         for (ReadMode readMode : ReadMode.values()) {
+
+            // warm up both versions
+            DelimiterScanner.useWords = false;
+            read(csvFile, readMode);
+            DelimiterScanner.useWords = true;
+            read(csvFile, readMode);
+
+            DelimiterScanner.useWords = false;
+            long timeBytes = best(csvFile, readMode);
+            DelimiterScanner.useWords = true;
+            long timeWords = best(csvFile, readMode);
+
+            System.out.println(String.format("  %-6s  bytes: %7.1f MB/s  words: %7.1f MB/s  speedup: %.2f",
+                  readMode,
+                  megabytes / (timeBytes / 1e9),
+                  megabytes / (timeWords / 1e9),
+                  timeBytes / (double) timeWords));
+         }
+      }
+
+      DelimiterScanner.useWords = true;
+   }
+
+
+
+   /**
+    * Best time of all repetitions (nanoseconds).
+    */
+   private static long best (String csvFile, ReadMode readMode) {
+      long best = Long.MAX_VALUE;
+      for (int i=0; i<repetitions; i++) {
+         long start = System.nanoTime();
+         read(csvFile, readMode);
+         best = Math.min(best, System.nanoTime() - start);
+      }
+      return best;
+   }
+
+
+   /**
+    * Read all reviews of the file, touch the product ID
+    * so the parsing is not optimized away.
+    *
+    * @return checksum (number of valid reviews plus product ID lengths)
+    */
+   private static long read (String csvFile, ReadMode readMode) {
+      AmazonFormatReader reader = new AmazonFormatReader(csvFile, readMode);
+      reader.setIgnoreFormatErrors(true);
+      long checksum = 0;
+      while (reader.next()) {
+         Review review = reader.getReview();
+         if (review.isValid())
+            checksum += 1 + review.getProductIDView().length();
+      }
+      reader.close();
+      return checksum;
+   }
+
+}
@@ -0,0 +1,62 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.util.EnumSet;
+
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Something that counts reviews read by an AmazonFormatReader.
+ *
+ * For parallel processing the consumer is forked into parts
+ * that have the same settings but empty counters,
+ * after processing the parts are joined back in a fixed order.
+ *
+ * @param <T> the implementing class
+ */
+public interface ReviewConsumer<T extends ReviewConsumer<T>> {
+
+
+   /**
+    * Process one review (the review may have a format error,
+    * check isValid()).
+    * The review object is reused for the next line,
+    * do not keep it (or its views) after the call.
+    *
+    * @param review
+    */
+   public void processReview (Review review);
+
+
+   /**
+    * The fields of the reviews that are used by processReview
+    * (the reader does not need to read the others).
+    *
+    * @return
+    */
+   public EnumSet<Field> getFields ();
+
+
+   /**
+    * Create a new consumer with the same settings and empty counters.
+    *
+    * @return
+    */
+   public T fork ();
+
+
+   /**
+    * Add the counts of a forked consumer to this one.
+    *
+    * @param part
+    */
+   public void join (T part);
+
+}
@@ -0,0 +1,371 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import de.uni_stuttgart.ims.compranking.rank.FingerprintSet;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Field;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Distribute the reviews of many Amazon files into partitions by product:
+ * all reviews of a product end up in the same partition
+ * (chosen by a hash of the product ID), so every partition
+ * can be ranked on its own (see RankingBaselines.partitionThreads)
+ * and the counters never hold all products at once.
+ *
+ * The reviews are collected in memory up to bufferSize bytes,
+ * then the reviews of every partition are sorted by product
+ * and written as a sorted run. At the end, the runs of each partition
+ * are merged into one Amazon file (part-00000.csv, ...)
+ * in which the reviews of a product are in one block
+ * (in the order of the input files).
+ *
+ * The lines are copied unchanged, lines with format errors are dropped.
+ */
+public class ReviewPartitioner {
+
+
+   /**
+    * Bytes of reviews kept in memory before sorted runs are written.
+    */
+   public static int bufferSize = 1 << 27;
+
+   private static final String RUNEXTENSION = ".run";
+
+
+   /**
+    * Reviews of one partition that are not written yet.
+    */
+   private static class Buffer {
+      byte[] bytes = new byte[1 << 12];
+      int length = 0;
+
+      // per review: start and end of line, start and end of product (in bytes)
+      int[] lines = new int[64];
+      int[] lineEnds = new int[64];
+      int[] productStarts = new int[64];
+      int[] productEnds = new int[64];
+      int numberReviews = 0;
+
+      List<File> runs = new ArrayList<File>();
+   }
+
+
+   private String outputFolder;
+   private Buffer[] partitions;
+   private long bufferedBytes = 0;
+
+   private int numberReviews = 0;
+   private int numberErrors = 0;
+
+
+
+   /**
+    * Partition Amazon files by product.
+    *
+    * Usage: ReviewPartitioner <output folder> <number of partitions> <input files (Amazon CSV)>*
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      String outputFolder = null;
+      int numberPartitions = 0;
+      String[] files = null;
+
+      try {
+         if (args.length < 3) {
+            System.err.println("Usage: ReviewPartitioner <output folder> <number of partitions> <input files (Amazon CSV)>*");
+            System.exit(1);
+         } else {
+            outputFolder = args[0];
+            numberPartitions = Integer.parseInt(args[1]);
+            files = Arrays.copyOfRange(args, 2, args.length);
+         }
+      } catch (Exception e) {
+         System.err.println("ERROR !!! in initialization: " + e.getMessage());
+         System.exit(1);
+      }
+
+      System.out.println("Write " + numberPartitions + " partitions to folder: " + outputFolder);
+      System.out.println("Take input files: " + Arrays.toString(files));
+
+      try {
+         ReviewPartitioner partitioner = new ReviewPartitioner(outputFolder, numberPartitions);
+         for (String csvFile : files) {
+            System.out.println("Process file: " + csvFile);
+            partitioner.add(csvFile);
+         }
+         partitioner.finish();
+      } catch (IOException e) {
+         System.err.println("ERROR while partitioning: " + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+
+      System.out.println("done.");
+   }
+
+
+
+   /**
+    * Write this number of partitions into the output folder.
+    *
+    * @param outputFolder
+    * @param numberPartitions
+    */
+   public ReviewPartitioner (String outputFolder, int numberPartitions) {
+      this.outputFolder = outputFolder;
+      new File(outputFolder).mkdirs();
+      partitions = new Buffer[numberPartitions];
+      for (int i=0; i<numberPartitions; i++)
+         partitions[i] = new Buffer();
+   }
+
+
+   /**
+    * Name of the file of this partition.
+    */
+   public String getPartitionFilename (int partition) {
+      return new File(outputFolder, String.format("part-%05d.csv", partition)).getPath();
+   }
+
+
+
+   /**
+    * Add all reviews of this Amazon file.
+    *
+    * @param csvFile
+    * @throws IOException
+    */
+   public void add (String csvFile) throws IOException {
+
+      if (ReviewStore.isStore(csvFile))
+         throw new IOException("Review stores do not contain the lines, use the CSV file instead of " + csvFile);
+
+      AmazonFormatReader reader = new AmazonFormatReader(csvFile, ReadMode.mapped);
+      reader.setIgnoreFormatErrors(true);
+      reader.setFields(EnumSet.of(Field.product));
+      try {
+         while (reader.next()) {
+            Review review = reader.getReview();
+            if (!review.isValid()) {
+               numberErrors++;
+               continue;
+            }
+            add(review);
+            if (bufferedBytes > bufferSize)
+               writeRuns();
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+
+   private void add (Review review) {
+
+      int lineLength = review.lineEnd - review.lineStart;
+      int productLength = review.productEnd - review.productStart;
+      long hash = FingerprintSet.hash(FingerprintSet.SEED, review.productBuf, review.productStart, review.productEnd);
+      Buffer partition = partitions[(int) ((hash >>> 1) % partitions.length)];
+
+      // copy the line (and a newline) and the product
+      // (the product is not always part of the line, e.g. unescaped JSON)
+      int length = lineLength + 1 + productLength;
+      if (partition.length + length > partition.bytes.length)
+         partition.bytes = Arrays.copyOf(partition.bytes, Math.max(partition.bytes.length * 2, partition.length + length));
+      ByteBuffer line = review.lineBuf.duplicate();
+      line.position(review.lineStart);
+      line.get(partition.bytes, partition.length, lineLength);
+      partition.bytes[partition.length + lineLength] = '\n';
+      ByteBuffer product = review.productBuf.duplicate();
+      product.position(review.productStart);
+      product.get(partition.bytes, partition.length + lineLength + 1, productLength);
+
+      int n = partition.numberReviews;
+      if (n == partition.lines.length) {
+         partition.lines = Arrays.copyOf(partition.lines, n * 2);
+         partition.lineEnds = Arrays.copyOf(partition.lineEnds, n * 2);
+         partition.productStarts = Arrays.copyOf(partition.productStarts, n * 2);
+         partition.productEnds = Arrays.copyOf(partition.productEnds, n * 2);
+      }
+      partition.lines[n] = partition.length;
+      partition.lineEnds[n] = partition.length + lineLength + 1;
+      partition.productStarts[n] = partition.lineEnds[n];
+      partition.productEnds[n] = partition.lineEnds[n] + productLength;
+      partition.numberReviews++;
+
+      partition.length += length;
+      bufferedBytes += length;
+      numberReviews++;
+   }
+
+
+
+   /**
+    * Sort the buffered reviews of every partition by product
+    * and write them as a run.
+    * Run format: per review product length, product, line length, line.
+    */
+   private void writeRuns () throws IOException {
+
+      for (int p=0; p<partitions.length; p++) {
+         final Buffer partition = partitions[p];
+         if (partition.numberReviews == 0)
+            continue;
+
+         // stable: reviews of the same product stay in input order
+         Integer[] order = new Integer[partition.numberReviews];
+         for (int i=0; i<order.length; i++)
+            order[i] = i;
+         Arrays.sort(order, new Comparator<Integer>() {
+            public int compare (Integer a, Integer b) {
+               return compareBytes(partition.bytes, partition.productStarts[a], partition.productEnds[a],
+                     partition.bytes, partition.productStarts[b], partition.productEnds[b]);
+            }
+         });
+
+         File run = new File(getPartitionFilename(p) + RUNEXTENSION + partition.runs.size());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+         try {
+            for (int i : order) {
+               int lineEnd = partition.lineEnds[i];
+               out.writeInt(partition.productEnds[i] - partition.productStarts[i]);
+               out.write(partition.bytes, partition.productStarts[i], partition.productEnds[i] - partition.productStarts[i]);
+               out.writeInt(lineEnd - partition.lines[i]);
+               out.write(partition.bytes, partition.lines[i], lineEnd - partition.lines[i]);
+            }
+         } finally {
+            out.close();
+         }
+         partition.runs.add(run);
+
+         partition.length = 0;
+         partition.numberReviews = 0;
+      }
+      bufferedBytes = 0;
+   }
+
+
+
+   /**
+    * One review of a run while merging.
+    */
+   private static class RunReader {
+      DataInputStream in;
+      int run;
+      byte[] product;
+      byte[] line;
+
+      RunReader (File file, int run) throws IOException {
+         this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+         this.run = run;
+      }
+
+      boolean next () throws IOException {
+         int length;
+         try {
+            length = in.readInt();
+         } catch (EOFException e) {
+            return false;
+         }
+         product = new byte[length];
+         in.readFully(product);
+         line = new byte[in.readInt()];
+         in.readFully(line);
+         return true;
+      }
+   }
+
+
+   /**
+    * Write the last runs and merge the runs of every partition
+    * into the partition file.
+    *
+    * @throws IOException
+    */
+   public void finish () throws IOException {
+
+      writeRuns();
+
+      for (int p=0; p<partitions.length; p++) {
+         List<File> runs = partitions[p].runs;
+
+         // k-way merge, reviews of the same product by run order
+         PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+            public int compare (RunReader a, RunReader b) {
+               int c = compareBytes(a.product, 0, a.product.length, b.product, 0, b.product.length);
+               return (c != 0) ? c : a.run - b.run;
+            }
+         });
+         List<RunReader> readers = new ArrayList<RunReader>();
+         OutputStream out = new BufferedOutputStream(new FileOutputStream(getPartitionFilename(p)), 1 << 16);
+         try {
+            for (int r=0; r<runs.size(); r++) {
+               RunReader reader = new RunReader(runs.get(r), r);
+               readers.add(reader);
+               if (reader.next())
+                  queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+               RunReader reader = queue.poll();
+               out.write(reader.line);
+               if (reader.next())
+                  queue.add(reader);
+            }
+         } finally {
+            out.close();
+            for (RunReader reader : readers)
+               reader.in.close();
+         }
+
+         for (File run : runs)
+            run.delete();
+         runs.clear();
+      }
+
+      System.out.println("... " + numberReviews + " reviews in " + partitions.length + " partitions, "
+            + numberErrors + " lines with format errors dropped.");
+   }
+
+
+
+   /**
+    * Compare two byte ranges (unsigned, like the UTF-8 strings).
+    */
+   private static int compareBytes (byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+      int length = Math.min(aEnd - aStart, bEnd - bStart);
+      for (int i=0; i<length; i++) {
+         int c = (a[aStart + i] & 0xff) - (b[bStart + i] & 0xff);
+         if (c != 0)
+            return c;
+      }
+      return (aEnd - aStart) - (bEnd - bStart);
+   }
+
+}
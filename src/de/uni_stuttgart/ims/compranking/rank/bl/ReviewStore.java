@@ -0,0 +1,628 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+
+
+/**
+ * Binary store of parsed Amazon reviews.
+ *
+ * Convert the Amazon CSV files once, afterwards all baselines
+ * read the store with sequential, memory-mapped I/O
+ * instead of parsing the CSV again.
+ *
+ * Format:
+ * - header (magic, version, size and date of the CSV file, counts, section offsets)
+ * - file prefixes (for the fallback review IDs) and product IDs (string table)
+ * - one fixed-size record per review:
+ *   product, prefix, line number, rating, offset and lengths of title and text,
+ *   fingerprint (see Review.getFingerprint, the reviewer ID is not stored)
+ * - title and text of all reviews (UTF-8)
+ */
+public class ReviewStore implements Closeable {
+
+
+   /**
+    * Extension of store files.
+    */
+   public static final String EXTENSION = ".rvs";
+
+   private static final int MAGIC = 0x52565331; // RVS1
+   private static final int VERSION = 2;
+
+   private static final int HEADERSIZE = 64;
+
+   /**
+    * Size of one record:
+    * product (int), prefix (int), line number (int), rating (double),
+    * data offset (long), title length (int), text length (int),
+    * fingerprint (long).
+    */
+   static final int RECORDSIZE = 44;
+
+   private static final int RECORDSPERWINDOW = 1 << 22;
+   private static final int DATAWINDOWSIZE = 1 << 28;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+
+   /**
+    * Convert Amazon CSV files to review stores
+    * (the store is written next to the CSV file).
+    *
+    * Usage: ReviewStore <input files (Amazon CSV)>*
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      if (args.length < 1) {
+         System.err.println("Usage: ReviewStore <input files (Amazon CSV)>*");
+         System.exit(1);
+      }
+
+      for (String csvFile : args) {
+         try {
+            convert(csvFile, getStoreFilename(csvFile));
+         } catch (IOException e) {
+            System.err.println("ERROR while converting " + csvFile + ": " + e.getMessage());
+            e.printStackTrace();
+         }
+      }
+
+      System.out.println("done.");
+   }
+
+
+
+   // FILES
+
+
+   /**
+    * Is this file a review store?
+    */
+   public static boolean isStore (String filename) {
+      return filename.endsWith(EXTENSION);
+   }
+
+
+   /**
+    * Name of the store for this CSV file.
+    */
+   public static String getStoreFilename (String csvFilename) {
+      return csvFilename + EXTENSION;
+   }
+
+
+   /**
+    * Return the store for this CSV file,
+    * convert the CSV file if there is no store yet
+    * or the CSV file has changed.
+    *
+    * @param csvFilename
+    * @return the filename of the store (or the CSV file if the conversion fails)
+    */
+   public static String convertIfNeeded (String csvFilename) {
+      if (isStore(csvFilename))
+         return csvFilename;
+      String storeFilename = getStoreFilename(csvFilename);
+      File csv = new File(csvFilename);
+      try {
+         if (!isUpToDate(storeFilename, csv)) {
+            convert(csvFilename, storeFilename);
+         }
+         return storeFilename;
+      } catch (IOException e) {
+         System.err.println("ERROR while converting " + csvFilename + ": " + e.getMessage());
+         e.printStackTrace();
+         return csvFilename;
+      }
+   }
+
+
+   /**
+    * Check whether the store was created from this version of the CSV file.
+    */
+   private static boolean isUpToDate (String storeFilename, File csv) throws IOException {
+      if (!new File(storeFilename).exists())
+         return false;
+      RandomAccessFile file = new RandomAccessFile(storeFilename, "r");
+      try {
+         if (file.length() < HEADERSIZE || file.readInt() != MAGIC || file.readInt() != VERSION)
+            return false;
+         return file.readLong() == csv.length() && file.readLong() == csv.lastModified();
+      } finally {
+         file.close();
+      }
+   }
+
+
+   /**
+    * Convert this CSV file into a store.
+    * If the CSV file cannot be read completely, no store is written.
+    *
+    * @param csvFilename
+    * @param storeFilename
+    * @throws IOException
+    */
+   public static void convert (String csvFilename, String storeFilename) throws IOException {
+
+      System.out.println("Convert " + csvFilename + " to " + storeFilename);
+
+      File csv = new File(csvFilename);
+      long sourceSize = csv.length();
+      long sourceModified = csv.lastModified();
+
+      Writer writer = new Writer(storeFilename);
+      try {
+         AmazonFormatReader reader = new AmazonFormatReader(csvFilename, ReadMode.mapped);
+         reader.setIgnoreFormatErrors(true);
+         try {
+            Review review;
+            while ((review = reader.getLine()) != null) {
+               writer.add(review);
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (UncheckedIOException e) {
+         writer.abort();
+         throw e.getCause();
+      } catch (IOException e) {
+         writer.abort();
+         throw e;
+      } catch (RuntimeException e) {
+         writer.abort();
+         throw e;
+      }
+
+      writer.close(sourceSize, sourceModified);
+
+      System.out.println("... converted " + writer.getNumberRecords() + " reviews.");
+   }
+
+
+
+
+   // WRITING
+
+
+   /**
+    * Write reviews to a store.
+    * Records and texts are written to temporary files first
+    * and copied into the store when it is closed.
+    * The store is written to a temporary file and renamed,
+    * so a conversion that is killed or fails leaves no store
+    * that looks up to date.
+    */
+   public static class Writer {
+
+      private String storeFilename;
+
+      private File recordsFile;
+      private File dataFile;
+      private DataOutputStream records;
+      private DataOutputStream data;
+
+      private long dataLength = 0;
+      private long numberRecords = 0;
+
+      private HashMap<String, Integer> prefixIndex = new HashMap<String, Integer>();
+      private List<String> prefixes = new ArrayList<String>();
+      private HashMap<String, Integer> productIndex = new HashMap<String, Integer>();
+      private List<String> products = new ArrayList<String>();
+
+
+      public Writer (String storeFilename) throws IOException {
+         this.storeFilename = storeFilename;
+         File dir = new File(storeFilename).getAbsoluteFile().getParentFile();
+         try {
+            recordsFile = File.createTempFile("records", ".tmp", dir);
+            dataFile = File.createTempFile("data", ".tmp", dir);
+            records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordsFile), 1 << 16));
+            data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16));
+         } catch (IOException e) {
+            abort();
+            throw e;
+         }
+      }
+
+
+      /**
+       * Add a review (reviews with format errors are kept
+       * as invalid records, so the number of lines stays the same).
+       *
+       * @param review
+       * @throws IOException
+       */
+      public void add (Review review) throws IOException {
+
+         int product = -1;
+         int titleLength = 0;
+         int textLength = 0;
+         double rating = 0;
+         long dataOffset = dataLength;
+         long fingerprint = 0;
+
+         if (review.isValid()) {
+            product = getIndex(productIndex, products, review.getProductID());
+            rating = review.getRating();
+            titleLength = write(review.buf, review.titleStart, review.titleEnd);
+            textLength = write(review.buf, review.textStart, review.textEnd);
+            fingerprint = review.getFingerprint();
+         }
+
+         records.writeInt(product);
+         records.writeInt(getIndex(prefixIndex, prefixes, review.prefix));
+         records.writeInt(review.recordNumber);
+         records.writeDouble(rating);
+         records.writeLong(dataOffset);
+         records.writeInt(titleLength);
+         records.writeInt(textLength);
+         records.writeLong(fingerprint);
+
+         numberRecords++;
+      }
+
+
+      /**
+       * Number of records written so far.
+       */
+      public long getNumberRecords () {
+         return numberRecords;
+      }
+
+
+      private int write (ByteBuffer buf, int start, int end) throws IOException {
+         if (buf.hasArray()) {
+            data.write(buf.array(), buf.arrayOffset() + start, end - start);
+         } else {
+            for (int i=start; i<end; i++)
+               data.write(buf.get(i));
+         }
+         dataLength += end - start;
+         return end - start;
+      }
+
+
+      private static int getIndex (HashMap<String, Integer> index, List<String> list, String string) {
+         Integer i = index.get(string);
+         if (i == null) {
+            i = list.size();
+            list.add(string);
+            index.put(string, i);
+         }
+         return i;
+      }
+
+
+      /**
+       * Write the store file and delete the temporary files.
+       *
+       * @param sourceSize size of the CSV file (to check if the store is up to date)
+       * @param sourceModified date of the CSV file
+       * @throws IOException
+       */
+      public void close (long sourceSize, long sourceModified) throws IOException {
+         File tmpFile = new File(storeFilename + ".tmp");
+         try {
+            writeStore(tmpFile, sourceSize, sourceModified);
+            Files.move(tmpFile.toPath(), new File(storeFilename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         } finally {
+            tmpFile.delete();
+            abort();
+         }
+      }
+
+
+      /**
+       * Stop writing without a store, delete the temporary files.
+       */
+      public void abort () {
+         closeSilently(records);
+         closeSilently(data);
+         if (recordsFile != null)
+            recordsFile.delete();
+         if (dataFile != null)
+            dataFile.delete();
+      }
+
+
+      private void writeStore (File storeFile, long sourceSize, long sourceModified) throws IOException {
+
+         records.close();
+         data.close();
+
+         // string table
+         ByteArrayOutputStream stringsBytes = new ByteArrayOutputStream();
+         DataOutputStream strings = new DataOutputStream(stringsBytes);
+         for (String prefix : prefixes)
+            writeString(strings, prefix);
+         for (String product : products)
+            writeString(strings, product);
+         strings.close();
+
+         long stringsOffset = HEADERSIZE;
+         long recordsOffset = stringsOffset + stringsBytes.size();
+         long dataOffset = recordsOffset + numberRecords * RECORDSIZE;
+
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile), 1 << 16));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(sourceSize);
+         out.writeLong(sourceModified);
+         out.writeInt(prefixes.size());
+         out.writeInt(products.size());
+         out.writeLong(numberRecords);
+         out.writeLong(stringsOffset);
+         out.writeLong(recordsOffset);
+         out.writeLong(dataOffset);
+         stringsBytes.writeTo(out);
+         out.flush();
+
+         out.close();
+         FileChannel outChannel = new FileOutputStream(storeFile, true).getChannel();
+         try {
+            append(outChannel, recordsFile);
+            append(outChannel, dataFile);
+         } finally {
+            outChannel.close();
+         }
+      }
+
+
+      private static void closeSilently (Closeable stream) {
+         try {
+            if (stream != null)
+               stream.close();
+         } catch (IOException e) {
+            // ignore
+         }
+      }
+
+
+      private static void writeString (DataOutputStream out, String string) throws IOException {
+         byte[] bytes = string.getBytes(UTF8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+
+
+      private static void append (FileChannel outChannel, File file) throws IOException {
+         FileChannel in = new FileInputStream(file).getChannel();
+         long position = 0;
+         long size = in.size();
+         while (position < size)
+            position += in.transferTo(position, size - position, outChannel);
+         in.close();
+      }
+
+   }
+
+
+
+
+   // READING
+
+
+   private FileChannel channel;
+
+   private String[] prefixes;
+   private int[] fileIndexes;
+   private String[] products;
+
+   /**
+    * String table and positions of the product IDs in it
+    * (for the byte views of the product IDs).
+    */
+   private ByteBuffer strings;
+   private int[] productStarts;
+
+   private long numberRecords;
+   private long recordsOffset;
+   private long dataOffset;
+
+   private long nextRecord;
+   private long endRecord;
+
+   private ByteBuffer recordsWindow = null;
+   private long recordsWindowStart = 0;
+
+   private ByteBuffer dataWindow = null;
+   private long dataWindowStart = 0;
+
+   private boolean readTexts = true;
+
+
+
+   /**
+    * Open a store for reading all records.
+    *
+    * @param storeFilename
+    * @throws IOException
+    */
+   public ReviewStore (String storeFilename) throws IOException {
+      this(storeFilename, 0, -1);
+   }
+
+
+   /**
+    * Open a store for reading a range of records.
+    *
+    * @param storeFilename
+    * @param firstRecord
+    * @param endRecord end of the range (exclusive), -1 for all records
+    * @throws IOException
+    */
+   public ReviewStore (String storeFilename, long firstRecord, long endRecord) throws IOException {
+
+      channel = new RandomAccessFile(storeFilename, "r").getChannel();
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADERSIZE);
+      if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+         channel.close();
+         throw new IOException("Not a review store (or wrong version): " + storeFilename);
+      }
+      int numberPrefixes = header.getInt(24);
+      int numberProducts = header.getInt(28);
+      numberRecords = header.getLong(32);
+      long stringsOffset = header.getLong(40);
+      recordsOffset = header.getLong(48);
+      dataOffset = header.getLong(56);
+
+      // read string table
+      strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, recordsOffset - stringsOffset);
+      prefixes = new String[numberPrefixes];
+      fileIndexes = new int[numberPrefixes];
+      for (int i=0; i<numberPrefixes; i++) {
+         prefixes[i] = readString(strings);
+         fileIndexes[i] = AmazonFormatReader.getFileIndex(prefixes[i]);
+      }
+      products = new String[numberProducts];
+      productStarts = new int[numberProducts];
+      for (int i=0; i<numberProducts; i++) {
+         productStarts[i] = strings.position() + 4;
+         products[i] = readString(strings);
+      }
+
+      this.nextRecord = firstRecord;
+      this.endRecord = (endRecord < 0) ? numberRecords : Math.min(endRecord, numberRecords);
+   }
+
+
+   private static String readString (ByteBuffer buf) {
+      int length = buf.getInt();
+      byte[] bytes = new byte[length];
+      buf.get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+
+   /**
+    * Number of records in this store file.
+    */
+   public static long getNumberRecords (String storeFilename) throws IOException {
+      ReviewStore store = new ReviewStore(storeFilename);
+      long number = store.numberRecords;
+      store.close();
+      return number;
+   }
+
+
+
+   /**
+    * Read title and text of the reviews
+    * (otherwise only the records are read, the texts are not mapped).
+    *
+    * @param readTexts
+    */
+   void setReadTexts (boolean readTexts) {
+      this.readTexts = readTexts;
+   }
+
+
+
+   /**
+    * Fill the review with the next record.
+    *
+    * @param review
+    * @return false if there are no more records
+    * @throws IOException
+    */
+   boolean next (Review review) throws IOException {
+
+      if (nextRecord >= endRecord)
+         return false;
+
+      // map the next records if necessary
+      if (recordsWindow == null || nextRecord >= recordsWindowStart + RECORDSPERWINDOW) {
+         recordsWindowStart = nextRecord;
+         long number = Math.min(RECORDSPERWINDOW, numberRecords - nextRecord);
+         recordsWindow = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset + nextRecord * RECORDSIZE, number * RECORDSIZE);
+      }
+      int r = (int) (nextRecord - recordsWindowStart) * RECORDSIZE;
+      nextRecord++;
+
+      int product = recordsWindow.getInt(r);
+      int prefix = recordsWindow.getInt(r+4);
+      review.prefix = prefixes[prefix];
+      review.fileIndex = fileIndexes[prefix];
+      review.recordNumber = recordsWindow.getInt(r+8);
+      review.valid = product >= 0;
+      if (!review.valid)
+         return true;
+
+      review.productid = products[product];
+      review.productBuf = strings;
+      review.productStart = productStarts[product];
+      review.productEnd = strings.getInt(productStarts[product] - 4) + productStarts[product];
+      review.rating = recordsWindow.getDouble(r+12);
+
+      long textOffset = recordsWindow.getLong(r+20);
+      int titleLength = recordsWindow.getInt(r+28);
+      int textLength = recordsWindow.getInt(r+32);
+      review.fingerprint = recordsWindow.getLong(r+36);
+      if (!readTexts)
+         return true;
+
+      // map the texts if necessary
+      // (mapping does not read anything, only the requested fields are read)
+      long end = textOffset + titleLength + textLength;
+      if (dataWindow == null || textOffset < dataWindowStart || end > dataWindowStart + dataWindow.limit()) {
+         dataWindowStart = textOffset;
+         long size = channel.size() - dataOffset;
+         long length = Math.min(Math.max(DATAWINDOWSIZE, end - textOffset), size - textOffset);
+         dataWindow = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + textOffset, length);
+      }
+      int d = (int) (textOffset - dataWindowStart);
+      review.buf = dataWindow;
+      review.titleStart = d;
+      review.titleEnd = d + titleLength;
+      review.textStart = review.titleEnd;
+      review.textEnd = review.titleEnd + textLength;
+
+      return true;
+   }
+
+
+
+   /**
+    * Close the store file.
+    */
+   public void close () {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      recordsWindow = null;
+      dataWindow = null;
+   }
+
+}
@@ -8,10 +8,23 @@
 
 package de.uni_stuttgart.ims.compranking.rank.bl;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import de.uni_stuttgart.ims.util.Fileutils;
@@ -24,6 +37,40 @@ public class SentimentDictionary {
 
    TreeSet<String> negativeDictionary ;
 
+   /**
+    * Strength of the MPQA words (STRONG, WEAK), GI has no strength.
+    */
+   private TreeMap<String, Byte> strengths = new TreeMap<String, Byte>();
+
+   /**
+    * Polarity and strength of every word (values see polarityOf).
+    */
+   private TreeMap<String, Byte> polarities;
+
+   /**
+    * Both dictionaries for lookup from a char array
+    * (values see polarityOf).
+    */
+   private CompiledLexicon lexicon;
+
+   /**
+    * Scanner for the words (created on first use).
+    */
+   private TermScanner scanner = null;
+
+   /**
+    * Bits of the value of polarityOf:
+    * polarity (NONE, POSITIVE, NEGATIVE or BOTH, see POLARITY)
+    * and MPQA strength (STRONG or WEAK, 0 if not known).
+    */
+   public static final byte NONE = 0;
+   public static final byte POSITIVE = 1;
+   public static final byte NEGATIVE = 2;
+   public static final byte BOTH = POSITIVE | NEGATIVE;
+   public static final byte POLARITY = BOTH;
+   public static final byte STRONG = 4;
+   public static final byte WEAK = 8;
+
    public enum DictionaryType { mpqa, gi };
 
    public enum Polarity { positive, negative, neutral;
@@ -42,13 +89,73 @@ public class SentimentDictionary {
 
    public static String giFilename = "gi_dictionary";
 
+   /**
+    * Keep the compiled dictionary in a snapshot next to the dictionary file
+    * (<file>.lex) and read the snapshot instead of the file
+    * (the snapshot is written again if the file has changed).
+    */
+   public static boolean useSnapshot = false;
+
+   /**
+    * Extension of snapshot files.
+    */
+   public static final String EXTENSION = ".lex";
+
+   private static final int MAGIC = 0x534C4558; // SLEX
+   private static final int VERSION = 1;
+
+
+   /**
+    * Dictionaries that were read (see get).
+    */
+   private static final EnumMap<DictionaryType, SentimentDictionary> dictionaries = new EnumMap<DictionaryType, SentimentDictionary>(DictionaryType.class);
+
+
+
+   /**
+    * The dictionary of this type, it is read only once
+    * and shared by all users (the dictionary cannot be changed).
+    *
+    * @param dictionaryType
+    */
+   public static SentimentDictionary get(DictionaryType dictionaryType) {
+      synchronized (dictionaries) {
+         SentimentDictionary dictionary = dictionaries.get(dictionaryType);
+         if (dictionary == null) {
+            dictionary = new SentimentDictionary(dictionaryType);
+            dictionaries.put(dictionaryType, dictionary);
+         }
+         return dictionary;
+      }
+   }
 
+
+
+   /**
+    * Read the dictionary of this type
+    * (use get to read every dictionary only once).
+    *
+    * @param dictionaryType
+    */
    public SentimentDictionary(DictionaryType dictionaryType) {
-      int count = 0;
-      if (dictionaryType == DictionaryType.mpqa)
-         count = readWWH();
-      else
-         count = readGI();
+      String filename = (dictionaryType == DictionaryType.mpqa) ? wwhFilename : giFilename;
+
+      int count = -1;
+      if (useSnapshot)
+         count = readSnapshot(filename);
+
+      if (count < 0) {
+         if (dictionaryType == DictionaryType.mpqa)
+            count = readWWH();
+         else
+            count = readGI();
+
+         polarities = getPolarities();
+         lexicon = new CompiledLexicon(polarities);
+
+         if (useSnapshot)
+            writeSnapshot(filename, count);
+      }
 
       System.out.println("Read " + count + " entries.");
       System.out.println("Dictionary " + dictionaryType + ": "
@@ -82,6 +189,167 @@ public class SentimentDictionary {
    }
 
 
+   /**
+    * Is the word text[offset..offset+length) positive (ignoring case)?
+    * No Strings are created.
+    */
+   public boolean isPositiveWord(char[] text, int offset, int length) {
+      return (lexicon.get(text, offset, length) & POSITIVE) != 0;
+   }
+
+
+   /**
+    * Is the word text[offset..offset+length) negative (ignoring case)?
+    * No Strings are created.
+    */
+   public boolean isNegative(char[] text, int offset, int length) {
+      return (lexicon.get(text, offset, length) & NEGATIVE) != 0;
+   }
+
+
+   /**
+    * Polarity and strength of the word (ignoring case) with one lookup:
+    * value & POLARITY is NONE, POSITIVE, NEGATIVE or BOTH,
+    * value & STRONG / WEAK are set for MPQA words with this type
+    * (both if the word has entries of both types).
+    * No Strings are created.
+    *
+    * @param word
+    */
+   public byte polarityOf(CharSequence word) {
+      return lexicon.get(word, 0, word.length());
+   }
+
+
+   /**
+    * Polarity and strength of the word text[offset..offset+length),
+    * see polarityOf(CharSequence).
+    */
+   public byte polarityOf(char[] text, int offset, int length) {
+      return lexicon.get(text, offset, length);
+   }
+
+
+   /**
+    * Scanner for all words of the dictionary
+    * (built once and shared).
+    */
+   public synchronized TermScanner getScanner() {
+      if (scanner == null)
+         scanner = new TermScanner(polarities);
+      return scanner;
+   }
+
+
+   /**
+    * All words (lowercase) with polarity and strength
+    * (values see polarityOf), in alphabetical order.
+    */
+   public Map<String, Byte> getPolarityMap() {
+      return Collections.unmodifiableMap(polarities);
+   }
+
+
+   /**
+    * Put the words of both dictionaries into one map,
+    * with their strength.
+    */
+   private TreeMap<String, Byte> getPolarities () {
+      TreeMap<String, Byte> entries = new TreeMap<String, Byte>();
+      for (String word : positiveDictionary)
+         entries.put(word, POSITIVE);
+      for (String word : negativeDictionary) {
+         Byte value = entries.get(word);
+         entries.put(word, (byte) ((value == null) ? NEGATIVE : value | NEGATIVE));
+      }
+      for (String word : entries.keySet()) {
+         Byte strength = strengths.get(word);
+         if (strength != null)
+            entries.put(word, (byte) (entries.get(word) | strength));
+      }
+      strengths = null;
+      return entries;
+   }
+
+
+   /**
+    * Read the compiled dictionary from the snapshot of this file.
+    *
+    * @param filename the dictionary file
+    * @return number of entries that were read from the file,
+    *         -1 if there is no snapshot or it is out of date
+    */
+   private int readSnapshot (String filename) {
+
+      File source = new File(filename);
+      File snapshot = new File(filename + EXTENSION);
+      if (!snapshot.exists())
+         return -1;
+
+      int count;
+      RandomAccessFile raf = null;
+      try {
+         raf = new RandomAccessFile(snapshot, "r");
+         ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+         if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+               || buf.getLong() != source.length() || buf.getLong() != source.lastModified())
+            return -1;
+         count = buf.getInt();
+         lexicon = CompiledLexicon.read(buf);
+      } catch (Exception e) {
+         System.err.println("ERROR while reading dictionary snapshot " + snapshot + ": " + e.getMessage());
+         return -1;
+      } finally {
+         Fileutils.closeSilently(raf);
+      }
+
+      polarities = lexicon.toMap();
+      positiveDictionary = new TreeSet<String>();
+      negativeDictionary = new TreeSet<String>();
+      for (Map.Entry<String, Byte> entry : polarities.entrySet()) {
+         if ((entry.getValue() & POSITIVE) != 0)
+            positiveDictionary.add(entry.getKey());
+         if ((entry.getValue() & NEGATIVE) != 0)
+            negativeDictionary.add(entry.getKey());
+      }
+      System.out.println("Read dictionary snapshot " + snapshot);
+      return count;
+   }
+
+
+   /**
+    * Write the compiled dictionary to the snapshot of this file
+    * (print an error if this fails, e.g. the folder is not writable).
+    *
+    * @param filename the dictionary file
+    * @param count number of entries that were read from the file
+    */
+   private void writeSnapshot (String filename, int count) {
+
+      File source = new File(filename);
+      File snapshot = new File(filename + EXTENSION);
+      File tmpFile = new File(snapshot.getPath() + ".tmp");
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+         try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(count);
+            lexicon.write(out);
+         } finally {
+            out.close();
+         }
+         Files.move(tmpFile.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         System.err.println("ERROR while writing dictionary snapshot " + snapshot + ": " + e.getMessage());
+         tmpFile.delete();
+      }
+   }
+
+
+
    private int readWWH () {
 
 //      Insert all words from the file into the dictionary with sentiment "label",
@@ -101,6 +369,7 @@ public class SentimentDictionary {
             String[] parts = strLine.split(" ");
             String word = null;
             Polarity pol = Polarity.neutral;
+            byte strength = 0;
 
             for (String part : parts) {
                String[] components = part.split("=");
@@ -109,6 +378,8 @@ public class SentimentDictionary {
                   word = components[1].toLowerCase();
                else if (components[0].equals("priorpolarity"))
                   pol = Polarity.getPolarity(components[1]);
+               else if (components[0].equals("type"))
+                  strength = (components[1].equals("strongsubj")) ? STRONG : (components[1].equals("weaksubj")) ? WEAK : 0;
 
             }
 
@@ -117,6 +388,8 @@ public class SentimentDictionary {
                   negativeDictionary.add(word);
                if (pol == Polarity.positive)
                   positiveDictionary.add(word);
+               Byte strengthBefore = strengths.get(word);
+               strengths.put(word, (byte) ((strengthBefore == null) ? strength : strengthBefore | strength));
             }
 
             i++;
@@ -0,0 +1,285 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ * Find the sentiment terms of a dictionary in the UTF-8 bytes of a text
+ * in one pass, without decoding and tokenizing the text
+ * (Aho-Corasick automaton over all words of the dictionary).
+ *
+ * A word is only found as a whole word: the bytes before and after it
+ * are no word bytes (letters, digits, - _ and all non-ASCII bytes).
+ * ASCII letters are matched ignoring case, other characters exactly
+ * (the dictionary words are lowercase).
+ * The number of tokens is estimated on the way: every word,
+ * every clitic ('s n't ...) and every run of the same punctuation character
+ * is one token, dots within words and commas and colons between digits
+ * are part of the word.
+ *
+ * The hits and the number of tokens are close to counting the tokens
+ * of a tokenizer (TokenizerStanford, FastTokenizer), but not the same,
+ * e.g. for abbreviations and words with typographic apostrophes.
+ *
+ * The automaton is a table with one state for every prefix of a word
+ * and one column for every byte that occurs in the words
+ * (all other bytes go back to the start), the failure transitions are
+ * resolved when it is built, so a scan is one table lookup per byte.
+ * The scanner cannot be changed after it is built
+ * and can be used by several threads.
+ */
+public class TermScanner {
+
+
+   /**
+    * Result of a scan.
+    */
+   public static class Counts {
+
+      /**
+       * Estimated number of tokens.
+       */
+      public int numberTokens;
+
+      /**
+       * Number of positive / negative terms
+       * (terms with both polarities are counted for both).
+       */
+      public int numberPos;
+      public int numberNeg;
+   }
+
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final boolean[] WORDBYTE = new boolean[256];
+   static {
+      for (int b=0; b<256; b++)
+         WORDBYTE[b] = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+               || b == '-' || b == '_' || b >= 0x80;
+   }
+
+
+
+   /**
+    * Column of every byte (0 = the byte does not occur in any word).
+    */
+   private int[] columns = new int[256];
+   private int numberColumns;
+
+   /**
+    * Next state for state s and column c: next[s * numberColumns + c],
+    * state 0 is the start.
+    */
+   private int[] next;
+
+   /**
+    * Polarity of the word that ends in the state (0 = no word).
+    */
+   private byte[] values;
+
+   /**
+    * Length of the word (in bytes) that ends in the state.
+    */
+   private int[] depths;
+
+   /**
+    * Next shorter word that ends in the state (by failure transitions),
+    * 0 if there is none.
+    */
+   private int[] outputs;
+
+   private int numberStates;
+
+
+
+   /**
+    * Build the automaton for all words of the dictionary.
+    *
+    * @param dictionary
+    */
+   public TermScanner (SentimentDictionary dictionary) {
+      this(dictionary.getPolarityMap());
+   }
+
+
+   /**
+    * Build the automaton for these words with their polarity
+    * (see SentimentDictionary.polarityOf).
+    *
+    * @param polarities
+    */
+   public TermScanner (Map<String, Byte> polarities) {
+
+      // columns for all bytes of the words (upper and lower case the same)
+      byte[][] words = new byte[polarities.size()][];
+      int numberBytes = 0;
+      int w = 0;
+      for (String word : polarities.keySet()) {
+         words[w] = word.toLowerCase().getBytes(UTF8);
+         numberBytes += words[w].length;
+         w++;
+      }
+      numberColumns = 1;
+      for (byte[] word : words) {
+         for (byte b : word) {
+            if (columns[b & 0xFF] == 0)
+               columns[b & 0xFF] = numberColumns++;
+         }
+      }
+      for (int b='A'; b<='Z'; b++)
+         columns[b] = columns[b + 32];
+
+      // trie
+      int maxStates = numberBytes + 1;
+      next = new int[maxStates * numberColumns];
+      values = new byte[maxStates];
+      depths = new int[maxStates];
+      outputs = new int[maxStates];
+      numberStates = 1;
+      w = 0;
+      for (byte value : polarities.values()) {
+         int state = 0;
+         for (byte b : words[w]) {
+            int i = state * numberColumns + columns[b & 0xFF];
+            if (next[i] == 0) {
+               depths[numberStates] = depths[state] + 1;
+               next[i] = numberStates++;
+            }
+            state = next[i];
+         }
+         values[state] |= value;
+         w++;
+      }
+
+      // failure transitions (breadth first), resolved into the table
+      int[] failures = new int[numberStates];
+      ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+      for (int c=1; c<numberColumns; c++) {
+         if (next[c] != 0)
+            queue.add(next[c]);
+      }
+      while (!queue.isEmpty()) {
+         int state = queue.poll();
+         int failure = failures[state];
+         outputs[state] = (values[failure] != 0) ? failure : outputs[failure];
+         for (int c=1; c<numberColumns; c++) {
+            int i = state * numberColumns + c;
+            if (next[i] != 0) {
+               failures[next[i]] = next[failure * numberColumns + c];
+               queue.add(next[i]);
+            } else {
+               next[i] = next[failure * numberColumns + c];
+            }
+         }
+      }
+
+      next = Arrays.copyOf(next, numberStates * numberColumns);
+      values = Arrays.copyOf(values, numberStates);
+      depths = Arrays.copyOf(depths, numberStates);
+      outputs = Arrays.copyOf(outputs, numberStates);
+   }
+
+
+
+   /**
+    * Find the terms and estimate the number of tokens in the text.
+    *
+    * @param text
+    * @param counts
+    */
+   public void scan (ByteSlice text, Counts counts) {
+      scan(text.getBuffer(), text.getStart(), text.getEnd(), counts);
+   }
+
+
+   /**
+    * Find the terms and estimate the number of tokens
+    * in buf[start..end) (UTF-8).
+    *
+    * @param buf
+    * @param start
+    * @param end
+    * @param counts
+    */
+   public void scan (ByteBuffer buf, int start, int end, Counts counts) {
+
+      int numberTokens = 0;
+      int numberPos = 0;
+      int numberNeg = 0;
+
+      int state = 0;
+      boolean inWord = false;
+      int lastPunctuation = -1;
+
+      for (int i=start; i<end; i++) {
+         int b = buf.get(i) & 0xFF;
+         int after = (i+1 < end) ? buf.get(i+1) & 0xFF : ' ';
+
+         // terms that end here (if it is the end of a word)
+         state = next[state * numberColumns + columns[b]];
+         if (state != 0 && !WORDBYTE[after]) {
+            for (int s = (values[state] != 0) ? state : outputs[state]; s != 0; s = outputs[s]) {
+               int wordStart = i + 1 - depths[s];
+               if (wordStart == start || !WORDBYTE[buf.get(wordStart-1) & 0xFF]) {
+                  if ((values[s] & SentimentDictionary.POSITIVE) != 0)
+                     numberPos++;
+                  if ((values[s] & SentimentDictionary.NEGATIVE) != 0)
+                     numberNeg++;
+               }
+            }
+         }
+
+         // tokens
+         if (WORDBYTE[b]) {
+            if (!inWord)
+               numberTokens++;
+            inWord = true;
+            lastPunctuation = -1;
+         } else if (b <= ' ') {
+            inWord = false;
+            lastPunctuation = -1;
+         } else if (b == '\'' && inWord && WORDBYTE[after]) {
+            // clitic (don't, John's)
+            numberTokens++;
+         } else if (b == '.' && inWord && WORDBYTE[after]) {
+            // 3.5 U.S www.amazon.com
+         } else if ((b == ',' || b == ':') && inWord && isDigit(buf.get(i-1)) && isDigit((byte) after)) {
+            // 1,000 3:30
+         } else {
+            if (b != lastPunctuation)
+               numberTokens++;
+            inWord = false;
+            lastPunctuation = b;
+         }
+      }
+
+      counts.numberTokens = numberTokens;
+      counts.numberPos = numberPos;
+      counts.numberNeg = numberNeg;
+   }
+
+
+   /**
+    * Number of states of the automaton.
+    */
+   public int size () {
+      return numberStates;
+   }
+
+
+   private static boolean isDigit (byte b) {
+      return b >= '0' && b <= '9';
+   }
+
+}
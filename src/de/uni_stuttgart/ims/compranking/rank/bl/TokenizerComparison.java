@@ -0,0 +1,219 @@
+// This code is distributed under a Creative Commons
+// Attribution-NonCommercial-ShareAlike 3.0 Unported license
+// http://creativecommons.org/licenses/by-nc-sa/3.0/
+
+
+
+package de.uni_stuttgart.ims.compranking.rank.bl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import de.uni_stuttgart.ims.compranking.rank.FastTokenizer;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.ReadMode;
+import de.uni_stuttgart.ims.compranking.rank.bl.AmazonFormatReader.Review;
+import de.uni_stuttgart.ims.compranking.score.RankedListScorer;
+import de.uni_stuttgart.ims.compranking.score.Ranking;
+import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
+import de.uni_stuttgart.ims.nlpbase.tools.TokenizerStanford;
+import de.uni_stuttgart.ims.util.Fileutils;
+
+
+/**
+ * Compare FastTokenizer with TokenizerStanford on a sample of reviews,
+ * to check whether the fast one can be used for the baselines:
+ * - number of tokens per review (same count, average and largest difference,
+ *   the review with the largest difference is printed),
+ * - time for tokenizing all texts,
+ * - Spearman correlation between the rankings of RankingFromLength
+ *   and RankingFromTermCounting with the two tokenizers
+ *   and of RankingFromTermCounting with TermScanner (no tokenizer)
+ *   (the rankings are written to <output folder>/stanford, /fast and /scanner).
+ *
+ * Only the reviews of relevant products are compared.
+ */
+public class TokenizerComparison {
+
+
+   private long numberReviews = 0;
+   private long numberSame = 0;
+   private long tokensStanford = 0;
+   private long tokensFast = 0;
+   private long sumDifference = 0;
+   private int maxDifference = 0;
+   private String maxDifferenceText = null;
+   private long timeStanford = 0;
+   private long timeFast = 0;
+
+
+
+   /**
+    * Compare the tokenizers.
+    *
+    * Usage: TokenizerComparison <output folder> <relevant products file> <input files (Amazon CSV)>*
+    *
+    * @param args
+    */
+   public static void main(String[] args) {
+
+      String outputFolder = null;
+      String relevantProductsFile = null;
+      String[] files = null;
+
+      try {
+         if (args.length < 3) {
+            System.err.println("Usage: TokenizerComparison <output folder> <relevant products file> <input files (Amazon CSV)>*");
+            System.exit(1);
+         } else {
+            outputFolder = args[0];
+            relevantProductsFile = args[1];
+            files = Arrays.copyOfRange(args, 2, args.length);
+         }
+      } catch (Exception e) {
+         System.err.println("ERROR !!! in initialization: " + e.getMessage());
+         System.exit(1);
+      }
+
+
+      // ===== TOKEN COUNTS =====
+
+      TokenizerComparison comparison = new TokenizerComparison();
+      try {
+         TreeSet<String> relevantProducts = readRelevantProducts(relevantProductsFile);
+         for (String csvFile : files)
+            comparison.compareCounts(csvFile, relevantProducts);
+      } catch (IOException e) {
+         System.err.println("ERROR while reading: " + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+      comparison.printCounts();
+
+
+      // ===== RANKINGS =====
+
+      boolean fastLength = RankingFromLength.useFastTokenizer;
+      boolean fastTerms = RankingFromTermCounting.useFastTokenizer;
+      boolean scanTerms = RankingFromTermCounting.useTermScanner;
+
+      for (String tokenizer : new String[] {"stanford", "fast", "scanner"}) {
+         File folder = new File(outputFolder, tokenizer);
+         folder.mkdirs();
+         RankingFromLength.useFastTokenizer = tokenizer.equals("fast");
+         RankingFromTermCounting.useFastTokenizer = tokenizer.equals("fast");
+         RankingFromTermCounting.useTermScanner = tokenizer.equals("scanner");
+         if (!tokenizer.equals("scanner"))
+            RankingFromLength.main(arguments(new File(folder, "length.txt").getPath(), relevantProductsFile, files));
+         RankingFromTermCounting.main(arguments(new File(folder, "terms.txt").getPath(), relevantProductsFile, files));
+      }
+
+      RankingFromLength.useFastTokenizer = fastLength;
+      RankingFromTermCounting.useFastTokenizer = fastTerms;
+      RankingFromTermCounting.useTermScanner = scanTerms;
+
+      System.out.println();
+      System.out.println("Spearman between the rankings with Stanford and fast tokenizer / scanner:");
+      File[] rankings = new File(outputFolder, "stanford").listFiles();
+      Arrays.sort(rankings);
+      for (File stanford : rankings) {
+         Ranking rankingStanford = new Ranking(stanford, true, false);
+         StringBuilder sb = new StringBuilder(String.format("%-30s", stanford.getName()));
+         for (String other : new String[] {"fast", "scanner"}) {
+            File file = new File(new File(outputFolder, other), stanford.getName());
+            if (file.exists())
+               sb.append(String.format(" %s %.4f", other, RankedListScorer.getSpearman(rankingStanford, new Ranking(file, true, false))));
+         }
+         System.out.println(sb + " (" + rankingStanford.size() + " products)");
+      }
+
+      System.out.println("done.");
+   }
+
+
+
+   /**
+    * Tokenize all texts of relevant products in the file with both tokenizers.
+    */
+   private void compareCounts (String csvFile, TreeSet<String> relevantProducts) {
+
+      Tokenizer stanford = new TokenizerStanford();
+      Tokenizer fast = new FastTokenizer();
+
+      AmazonFormatReader reader = new AmazonFormatReader(csvFile, ReadMode.mapped);
+      reader.setIgnoreFormatErrors(true);
+      while (reader.next()) {
+         Review review = reader.getReview();
+         if (!review.isValid() || !relevantProducts.contains(review.getProductID()))
+            continue;
+         String text = review.getText();
+
+         long start = System.nanoTime();
+         int numberStanford = stanford.tokenize(text).length;
+         long middle = System.nanoTime();
+         int numberFast = fast.tokenize(text).length;
+         long end = System.nanoTime();
+         timeStanford += middle - start;
+         timeFast += end - middle;
+
+         numberReviews++;
+         tokensStanford += numberStanford;
+         tokensFast += numberFast;
+         int difference = Math.abs(numberStanford - numberFast);
+         if (difference == 0)
+            numberSame++;
+         sumDifference += difference;
+         if (difference > maxDifference) {
+            maxDifference = difference;
+            maxDifferenceText = text;
+         }
+      }
+      reader.close();
+
+      Fileutils.closeSilently(stanford);
+      Fileutils.closeSilently(fast);
+   }
+
+
+   private void printCounts () {
+      System.out.println();
+      System.out.println("Compared " + numberReviews + " reviews of relevant products.");
+      if (numberReviews == 0)
+         return;
+      System.out.println(String.format("Tokens: %d Stanford, %d fast (%+.2f%%)", tokensStanford, tokensFast,
+            100.0 * (tokensFast - tokensStanford) / Math.max(1, tokensStanford)));
+      System.out.println(String.format("Same number of tokens: %d reviews (%.2f%%)", numberSame, 100.0 * numberSame / numberReviews));
+      System.out.println(String.format("Average difference: %.3f tokens per review, largest difference: %d tokens",
+            (double) sumDifference / numberReviews, maxDifference));
+      if (maxDifferenceText != null)
+         System.out.println("Review with the largest difference: "
+               + maxDifferenceText.substring(0, Math.min(300, maxDifferenceText.length())));
+      System.out.println(String.format("Time: %d ms Stanford, %d ms fast (%.1f times faster)",
+            timeStanford / 1000000, timeFast / 1000000, (double) timeStanford / Math.max(1, timeFast)));
+      System.out.println();
+   }
+
+
+
+   private static TreeSet<String> readRelevantProducts (String filename) throws IOException {
+      TreeSet<String> relevantProducts = new TreeSet<String>();
+      BufferedReader br = Fileutils.getReadFile(filename);
+      String nextLine;
+      while ((nextLine = br.readLine()) != null)
+         relevantProducts.add(nextLine.split("\t")[0]);
+      Fileutils.closeSilently(br);
+      return relevantProducts;
+   }
+
+
+   private static String[] arguments (String outputFile, String relevantProductsFile, String[] files) {
+      String[] args = new String[files.length + 2];
+      args[0] = outputFile;
+      args[1] = relevantProductsFile;
+      System.arraycopy(files, 0, args, 2, files.length);
+      return args;
+   }
+
+}
@@ -11,13 +11,10 @@
 package de.uni_stuttgart.ims.compranking.rank.csrl;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -26,6 +23,9 @@ import java.util.Set;
 import de.uni_stuttgart.ims.nlpbase.nlp.ArgumentType;
 import de.uni_stuttgart.ims.compranking.rank.AspectFilter;
 import de.uni_stuttgart.ims.compranking.rank.AspectFilter.NormAspect;
+import de.uni_stuttgart.ims.compranking.rank.Checkpoint;
+import de.uni_stuttgart.ims.compranking.rank.InputFiles;
+import de.uni_stuttgart.ims.compranking.rank.ProductIndex;
 import de.uni_stuttgart.ims.compranking.rank.ProductMapper;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg.PolarityMode;
@@ -54,11 +54,25 @@ public class CSRLRanker {
     */
    static boolean useOnlyRelevantProductReviews = true; // PAPER: use true
 
+   /**
+    * Skip files without sentences of relevant products,
+    * using a product index of the sentence files (see ProductIndex).
+    * The parsed sentences can only be read sequentially,
+    * so files with relevant products are read completely.
+    */
+   static boolean useProductIndex = false;
+
    /**
     * Create aspect-specific rankings or just take all
     */
    static boolean useAspects = true;
 
+   /**
+    * Write checkpoints while processing (see Checkpoint)
+    * and resume from the last checkpoint of the same settings.
+    */
+   static boolean useCheckpoints = false;
+
 
    /**
     *
@@ -105,7 +119,7 @@ public class CSRLRanker {
       File myfolder = new File(inFolder);
       File[] files = myfolder.listFiles(new FileFilter() {
           public boolean accept(File file) {
-              return file.isFile() && file.getName().endsWith(".out");
+              return file.isFile() && InputFiles.hasExtension(file.getName(), ".out");
           }
       });
 
@@ -173,13 +187,26 @@ public class CSRLRanker {
          System.out.println(useAspect2);
          i++;
          blubb.reset(useAspect2);
+
+         String outFilenameAspect = outFilename.substring(0, outFilename.lastIndexOf(".")) + "_" + useAspect2 + outFilename.substring(outFilename.lastIndexOf("."), outFilename.length());
+
+         Checkpoint checkpoint = null;
+         if (useCheckpoints)
+            checkpoint = blubb.resume(outFilenameAspect, "CSRL " + useAspect2 + " " + useOnlyRelevantProductReviews);
+
          for (File csvFile : files) {
+            if (checkpoint != null && checkpoint.isDone(csvFile.getAbsolutePath())) {
+               System.out.println("skip file (done in checkpoint): " + csvFile.getName());
+               continue;
+            }
            System.out.println("Process file: " + csvFile.getName() + " (" + i + " of " + files.length + ")");
-            blubb.analyzeFile(csvFile.getAbsolutePath(), csvFile.getAbsolutePath().replace(".sentences.parsed.txt.out", ".sentencesID.csv"));
+            blubb.analyzeFile(csvFile.getAbsolutePath(), InputFiles.findFile(csvFile.getAbsolutePath().replace(".sentences.parsed.txt.out", ".sentencesID.csv")));
+            if (checkpoint != null)
+               blubb.saveCheckpoint(checkpoint, csvFile.getAbsolutePath(), csvFile == files[files.length-1]);
          }
 
 
-         blubb.writeToFile(outFilename.substring(0, outFilename.lastIndexOf(".")) + "_" + useAspect2 + outFilename.substring(outFilename.lastIndexOf("."), outFilename.length()));
+         blubb.writeToFile(outFilenameAspect);
 
 
          blubb.endIt();
@@ -259,6 +286,61 @@ public class CSRLRanker {
 
 
 
+   /**
+    * Restore the counter and statistics from the checkpoint
+    * of the run that writes this output file (call after reset).
+    *
+    * @param outFilename
+    * @param settings
+    * @return the checkpoint (a new one if there is none
+    *    or input files of the checkpoint have changed)
+    */
+   private Checkpoint resume (String outFilename, String settings) {
+
+      ProductOpinionCounterPosNeg restored = counter.emptyCopy();
+      Checkpoint checkpoint = Checkpoint.read(outFilename, settings, restored);
+      if (checkpoint == null)
+         return new Checkpoint(outFilename, settings);
+
+      // the restored counts contain the old version of changed files,
+      // start this setting again from empty counters
+      List<String> changed = checkpoint.getChangedFiles();
+      if (!changed.isEmpty()) {
+         System.err.println("WARNING: files have changed since checkpoint of " + outFilename + ", start again: " + changed);
+         return new Checkpoint(outFilename, settings);
+      }
+
+      counter = restored;
+      alllineno = checkpoint.getStatistic("alllineno");
+      compno = checkpoint.getStatistic("compno");
+      entityno = checkpoint.getStatistic("entityno");
+      aspectsno = checkpoint.getStatistic("aspectsno");
+      aspectsmapped = checkpoint.getStatistic("aspectsmapped");
+      entityMapped = checkpoint.getStatistic("entityMapped");
+      return checkpoint;
+   }
+
+
+   /**
+    * Mark this input file as done and write the checkpoint if it is due.
+    *
+    * @param checkpoint
+    * @param filename
+    * @param force write the checkpoint in any case
+    */
+   private void saveCheckpoint (Checkpoint checkpoint, String filename, boolean force) {
+      checkpoint.setDone(filename);
+      checkpoint.setStatistic("alllineno", alllineno);
+      checkpoint.setStatistic("compno", compno);
+      checkpoint.setStatistic("entityno", entityno);
+      checkpoint.setStatistic("aspectsno", aspectsno);
+      checkpoint.setStatistic("aspectsmapped", aspectsmapped);
+      checkpoint.setStatistic("entityMapped", entityMapped);
+      checkpoint.writeIfDue(force, counter);
+   }
+
+
+
    /**
     * Analyze this file
     *
@@ -268,21 +350,40 @@ public class CSRLRanker {
    public void analyzeFile (String filenameParsed, String filenameCSV) {
 
 
+      // ===== SKIP FILES WITHOUT RELEVANT PRODUCTS =====
+
+      if (useOnlyRelevantProductReviews && useProductIndex && prodmapper.getRelevantProducts() != null) {
+         try {
+            ProductIndex index = ProductIndex.forTabSeparated(filenameCSV);
+            if (!index.containsAny(prodmapper.getRelevantProducts())) {
+               System.out.println("no relevant products in file " + filenameCSV);
+               return;
+            }
+         } catch (IOException e) {
+            System.err.println("ERROR while reading product index: " + e.getMessage());
+         }
+      }
+
+
       // ===== INITIALIZATION =====
 
       BufferedReader brAnnotations = null;
 
       ParseReaderCoNLL parseReader = null;
+      String parsedFile = null;
 
       try {
 
          // open input file with csv info about product and review
          //System.out.println("annotations input file: " + filename);
-        brAnnotations = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(filenameCSV)), Charset.forName("UTF-8")));
+        brAnnotations = InputFiles.openReader(filenameCSV);
 
 
          // Open input parsed sentences file
-         parseReader = new ParseReaderCoNLL(filenameParsed);
+         // (the parse reader needs a file, gzipped files are decompressed to a temporary file,
+         // it is deleted after the file is read, every aspect reads the file again)
+         parsedFile = InputFiles.decompressToTempFile(filenameParsed);
+         parseReader = new ParseReaderCoNLL(parsedFile);
          parseReader.openFile();
          //System.out.println("Analyze : " + filename);
 
@@ -337,6 +438,8 @@ public class CSRLRanker {
 
 
       Fileutils.closeSilently(parseReader);
+      Fileutils.closeSilently(brAnnotations);
+      InputFiles.deleteTempFile(filenameParsed, parsedFile);
 
       //System.out.println("Went through " + lineno + " lines with annotations.");
 
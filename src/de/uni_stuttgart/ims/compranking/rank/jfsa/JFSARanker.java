@@ -11,13 +11,10 @@
 package de.uni_stuttgart.ims.compranking.rank.jfsa;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,11 +24,18 @@ import java.util.Set;
 
 import de.uni_stuttgart.ims.compranking.rank.AspectFilter;
 import de.uni_stuttgart.ims.compranking.rank.AspectFilter.NormAspect;
+import de.uni_stuttgart.ims.compranking.rank.Checkpoint;
+import de.uni_stuttgart.ims.compranking.rank.FastTokenizer;
+import de.uni_stuttgart.ims.compranking.rank.InputFiles;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline;
+import de.uni_stuttgart.ims.compranking.rank.LinePipeline.Block;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg;
 import de.uni_stuttgart.ims.compranking.rank.ProductOpinionCounterPosNeg.PolarityMode;
 import de.uni_stuttgart.ims.compranking.rank.ProductMapper;
+import de.uni_stuttgart.ims.compranking.rank.TokenCountCache;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool;
+import de.uni_stuttgart.ims.compranking.rank.TokenizerPool.TokenizerType;
 import de.uni_stuttgart.ims.nlpbase.tools.Tokenizer;
-import de.uni_stuttgart.ims.nlpbase.tools.TokenizerStanford;
 import de.uni_stuttgart.ims.util.Fileutils;
 
 
@@ -50,6 +54,27 @@ public class JFSARanker {
     */
    static boolean useAspects = true;
 
+   /**
+    * Number of tokenizer threads in a read-ahead pipeline
+    * for the review texts (see LinePipeline),
+    * 0 to read and tokenize them in this thread.
+    */
+   static int pipelineWorkers = 0;
+
+   /**
+    * Write checkpoints while processing (see Checkpoint)
+    * and resume from the last checkpoint of the same settings.
+    */
+   static boolean useCheckpoints = false;
+
+   /**
+    * File of the token counts of all review texts that were tokenized before
+    * (see TokenCountCache): the texts are tokenized only once,
+    * not again for every setting and run.
+    * null to tokenize the texts for every setting.
+    */
+   static String tokenCountCache = null;
+
 
    /**
     * Ranks products by the ranking depending on the analysis of JFSA.
@@ -106,7 +131,7 @@ public class JFSARanker {
       File myfolder = new File(inFolder);
       File[] files = myfolder.listFiles(new FileFilter() {
           public boolean accept(File file) {
-              return file.isFile() && file.getName().endsWith(".csv");
+              return file.isFile() && InputFiles.hasExtension(file.getName(), ".csv");
           }
       });
 
@@ -172,6 +197,13 @@ public class JFSARanker {
 
 
       JFSARanker blubb = new JFSARanker(af, prodmapper);
+      if (tokenCountCache != null) {
+         try {
+            blubb.tokenCounts = new TokenCountCache(tokenCountCache);
+         } catch (IOException e) {
+            System.err.println("ERROR while opening token count cache: " + e.getMessage());
+         }
+      }
       for (PolarityMode usePolarityMode2 : usePolarityMode) {
          for (NormAspect useAspect2 : allAspects) {
             for (boolean useNormalization2 : useNormalization) {
@@ -179,12 +211,25 @@ public class JFSARanker {
                blubb.reset(usePolarityMode2, useAspect2, useNormalization2);
 
                System.out.println("Polarity mode: " + usePolarityMode2 + ", use aspect: " + useAspect2 + ", use normalization: " + useNormalization2);
+
+               String f = (useNormalization2)?"Norm":"NN";
+               String outFilenameSetting = outFilename.substring(0, outFilename.lastIndexOf(".")) + "_" + useAspect2.toString().replace(" ","") + "_" + usePolarityMode2  + f + outFilename.substring(outFilename.lastIndexOf("."), outFilename.length());
+
+               Checkpoint checkpoint = null;
+               if (useCheckpoints)
+                  checkpoint = blubb.resume(outFilenameSetting, "JFSA " + usePolarityMode2 + " " + useAspect2 + " " + useNormalization2);
+
                for (File csvFile : files) {
-                  blubb.analyze(csvFile, csvFile.getAbsolutePath().replace(".csv", ".txt"));
+                  if (checkpoint != null && checkpoint.isDone(csvFile.getAbsolutePath())) {
+                     System.out.println("skip file (done in checkpoint): " + csvFile);
+                     continue;
+                  }
+                  blubb.analyze(csvFile, InputFiles.findFile(csvFile.getAbsolutePath().replace(".csv", ".txt")));
+                  if (checkpoint != null)
+                     blubb.saveCheckpoint(checkpoint, csvFile.getAbsolutePath(), csvFile == files[files.length-1]);
                }
 
-               String f = (useNormalization2)?"Norm":"NN";
-               blubb.writeToFile(outFilename.substring(0, outFilename.lastIndexOf(".")) + "_" + useAspect2.toString().replace(" ","") + "_" + usePolarityMode2  + f + outFilename.substring(outFilename.lastIndexOf("."), outFilename.length()));
+               blubb.writeToFile(outFilenameSetting);
                blubb.endIt();
 
                //System.exit(1);
@@ -192,6 +237,12 @@ public class JFSARanker {
          }
       }
 
+      if (blubb.tokenCounts != null) {
+         System.out.println("token count cache: " + blubb.tokenCounts.getStatistics());
+         Fileutils.closeSilently(blubb.tokenCounts);
+      }
+
+      System.out.println(TokenizerPool.getStatistics());
       System.out.println("done!");
 
 
@@ -205,6 +256,11 @@ public class JFSARanker {
 
    private ProductOpinionCounterPosNeg counter;
 
+   /**
+    * Token counts of review texts (with tokenCountCache).
+    */
+   private TokenCountCache tokenCounts = null;
+
    private int alllineno = 0;
    private int subjno = 0;
    private int subjPosno = 0;
@@ -276,6 +332,61 @@ public class JFSARanker {
 
 
 
+   /**
+    * Restore the counter and statistics from the checkpoint
+    * of the run that writes this output file (call after reset).
+    *
+    * @param outFilename
+    * @param settings
+    * @return the checkpoint (a new one if there is none
+    *    or input files of the checkpoint have changed)
+    */
+   private Checkpoint resume (String outFilename, String settings) {
+
+      ProductOpinionCounterPosNeg restored = counter.emptyCopy();
+      Checkpoint checkpoint = Checkpoint.read(outFilename, settings, restored);
+      if (checkpoint == null)
+         return new Checkpoint(outFilename, settings);
+
+      // the restored counts contain the old version of changed files,
+      // start this setting again from empty counters
+      List<String> changed = checkpoint.getChangedFiles();
+      if (!changed.isEmpty()) {
+         System.err.println("WARNING: files have changed since checkpoint of " + outFilename + ", start again: " + changed);
+         return new Checkpoint(outFilename, settings);
+      }
+
+      counter = restored;
+      alllineno = checkpoint.getStatistic("alllineno");
+      subjno = checkpoint.getStatistic("subjno");
+      subjPosno = checkpoint.getStatistic("subjPosno");
+      subjNegno = checkpoint.getStatistic("subjNegno");
+      aspectsno = checkpoint.getStatistic("aspectsno");
+      sentsNull = checkpoint.getStatistic("sentsNull");
+      return checkpoint;
+   }
+
+
+   /**
+    * Mark this input file as done and write the checkpoint if it is due.
+    *
+    * @param checkpoint
+    * @param filename
+    * @param force write the checkpoint in any case
+    */
+   private void saveCheckpoint (Checkpoint checkpoint, String filename, boolean force) {
+      checkpoint.setDone(filename);
+      checkpoint.setStatistic("alllineno", alllineno);
+      checkpoint.setStatistic("subjno", subjno);
+      checkpoint.setStatistic("subjPosno", subjPosno);
+      checkpoint.setStatistic("subjNegno", subjNegno);
+      checkpoint.setStatistic("aspectsno", aspectsno);
+      checkpoint.setStatistic("sentsNull", sentsNull);
+      checkpoint.writeIfDue(force, counter);
+   }
+
+
+
    /**
     * Analyze this file
     *
@@ -289,27 +400,10 @@ public class JFSARanker {
 
       HashMap<String, Integer> reviewLengths = new HashMap<String, Integer>();
 
-      try {
-
-         BufferedReader brReviews = Fileutils.getReadFile(filenameAllText);
-
-         Tokenizer tokenizer = new TokenizerStanford();
-         String nextLine;
-         while ((nextLine = brReviews.readLine()) != null) {
-            String[] parts = nextLine.split("\t");
-            if (parts.length >= 3) {
-               String[] spans = tokenizer.tokenize(parts[2]);
-               reviewLengths.put(parts[0], spans.length);
-            }
-         }
-         Fileutils.closeSilently(tokenizer);
-         Fileutils.closeSilently(brReviews);
-
-      } catch (Exception e) {
-         System.err.println("ERROR in initialization: " + e.getMessage());
-         e.printStackTrace();
-         System.exit(1);
-      }
+      if (pipelineWorkers > 0)
+         readReviewLengthsPipelined(filenameAllText, reviewLengths);
+      else
+         readReviewLengths(filenameAllText, reviewLengths);
 
 
 
@@ -321,7 +415,7 @@ public class JFSARanker {
 
          // open input file with annotations
          //System.out.println("annotations input file: " + filename);
-         brAnnotations = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(filename)), Charset.forName("UTF-8")));
+         brAnnotations = InputFiles.openReader(filename.getPath());
 
       } catch (Exception e) {
          System.err.println("ERROR in initialization: " + e.getMessage());
@@ -418,6 +512,110 @@ public class JFSARanker {
 
 
 
+   /**
+    * Read the review texts and tokenize them.
+    *
+    * @param filenameAllText
+    * @param reviewLengths length (in tokens) for every review ID
+    */
+   private void readReviewLengths (String filenameAllText, HashMap<String, Integer> reviewLengths) {
+
+      try {
+
+         BufferedReader brReviews = InputFiles.openReader(filenameAllText);
+
+         Tokenizer tokenizer = TokenizerPool.acquire(TokenizerType.stanford);
+         String nextLine;
+         while ((nextLine = brReviews.readLine()) != null) {
+            String[] parts = nextLine.split("\t");
+            if (parts.length >= 3) {
+               reviewLengths.put(parts[0], getNumberTokens(tokenizer, parts[2]));
+            }
+         }
+         TokenizerPool.release(tokenizer);
+         Fileutils.closeSilently(brReviews);
+
+      } catch (Exception e) {
+         System.err.println("ERROR in initialization: " + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+
+   /**
+    * Number of tokens of this text,
+    * from the token count cache if it has been tokenized before.
+    */
+   private int getNumberTokens (Tokenizer tokenizer, String text) {
+      if (tokenCounts == null)
+         return FastTokenizer.countTokens(tokenizer, text);
+      long hash = TokenCountCache.hash(text);
+      int numberTokens = tokenCounts.get(hash);
+      if (numberTokens < 0) {
+         numberTokens = FastTokenizer.countTokens(tokenizer, text);
+         tokenCounts.put(hash, numberTokens);
+      }
+      return numberTokens;
+   }
+
+
+   /**
+    * Length of one review (result of the workers of the pipeline).
+    */
+   private static class ReviewLength {
+      String reviewID;
+      int length;
+   }
+
+
+   /**
+    * Read the review texts in a pipeline,
+    * the workers tokenize the texts.
+    *
+    * @param filenameAllText
+    * @param reviewLengths length (in tokens) for every review ID
+    */
+   private void readReviewLengthsPipelined (String filenameAllText, final HashMap<String, Integer> reviewLengths) {
+
+      LinePipeline.Stage<Tokenizer, ReviewLength> stage = new LinePipeline.Stage<Tokenizer, ReviewLength>() {
+
+         public Tokenizer newWorker () {
+            return TokenizerPool.acquire(TokenizerType.stanford);
+         }
+
+         public void prepare (Tokenizer worker, Block block, List<ReviewLength> results) {
+            for (String line : block.getLines()) {
+               String[] parts = line.split("\t");
+               if (parts.length >= 3) {
+                  ReviewLength result = new ReviewLength();
+                  result.reviewID = parts[0];
+                  result.length = getNumberTokens(worker, parts[2]);
+                  results.add(result);
+               }
+            }
+         }
+
+         public void consume (ReviewLength result) {
+            reviewLengths.put(result.reviewID, result.length);
+         }
+
+         public void closeWorker (Tokenizer worker) {
+            TokenizerPool.release(worker);
+         }
+      };
+
+      try {
+         new LinePipeline<Tokenizer, ReviewLength>(stage, pipelineWorkers).process(filenameAllText);
+      } catch (IOException e) {
+         System.err.println("ERROR in initialization: " + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+
+
    /**
     * Process the JFSA annotations in a review.
     *